@@ -1,6 +1,6 @@
 package bacter;
 
-import bacter.util.IntRanges;
+import bacter.util.IntRangeSet;
 import beast.evolution.tree.Node;
 
 import java.util.*;
@@ -10,162 +10,502 @@ import java.util.*;
  * each conversion. Used to determine which conversions to actually consider
  * when evaluating the ARG likelihood.
  *
+ * Each locus is considered separately: once the MRCA of all sites of a
+ * locus has been reached, later conversions on that locus affect no
+ * sites.  The result for a locus is therefore independent of the
+ * conversions on other loci, and may be computed for a single locus.
+ *
+ * Affected sites are found by sweeping through the ACG events from the
+ * leaves to the root.  Every change the sweep makes to its state is
+ * recorded in an undo journal, so that when conversions are edited the
+ * sweep can be wound back to the lowest time at which the ACG changed and
+ * resumed from there.  ConversionGraph maintains one such list, which is
+ * kept up to date in this way and shared by all users.
+ *
+ * Results are keyed by conversion identity.
+ *
  * @author Tim Vaughan <tgvaughan@gmail.com>
  */
 public class AffectedSiteList {
 
     ConversionGraph acg;
-    public Map<Conversion, List<Integer>> affectedSites;
-    public Map<Conversion, Integer> affectedSiteCount;
-    public Map<Conversion, Double> affectedSiteFraction;
+    public Map<Conversion, IntRangeSet> affectedSites;
+
+    /**
+     * Loci considered.
+     */
+    List<Locus> loci;
+
+    /**
+     * Events visited by the most recent sweep, in order.  Rebuilt only
+     * following clonal frame edits: the events of edited conversions are
+     * otherwise spliced into the existing list.
+     */
+    private List<ACGEventList.Event> events;
+    private long eventListBuildCount;
+
+    /**
+     * Sweep state: ancestral sites of each locus carried by each active
+     * CF edge (indexed by node number then locus index, null for inactive
+     * edges), the total number of sites of each locus carried by active
+     * CF edges and conversions, loci whose MRCA has been reached and the
+     * number of leaves seen.
+     *
+     * Since every site remains ancestral to some active lineage until its
+     * MRCA is reached, the MRCA of every site of a locus has been found
+     * exactly when the carried sites total that of a single leaf.
+     */
+    private IntRangeSet[][] activeCFNodes = new IntRangeSet[0][];
+    private final int[] carriedSites;
+    private final boolean[] lociDone;
+    private int lociDoneCount;
+    private int leavesSeen;
+
+    /**
+     * Undo journal of the sweep.  Entries from journalOffsets[i] onward
+     * undo the processing of events i and above.  Range sets are never
+     * modified once they become part of the sweep state, so the journal
+     * need only record references to them.
+     */
+    private final List<Runnable> journal = new ArrayList<>();
+    private int[] journalOffsets = new int[0];
+
+    /**
+     * Edits since the last update.  A clonal frame edit requires the
+     * sweep to be repeated from the leaves, while conversion edits only
+     * require it to be repeated from the lowest departure time of the
+     * edited conversions.
+     */
+    private boolean sweepRequired = true;
+    private final Set<Conversion> editedConvs = Collections.newSetFromMap(new IdentityHashMap<>());
+    private double editTime = Double.POSITIVE_INFINITY;
 
-    ACGEventList acgEventList;
+    /**
+     * Edits since the last call to store().
+     */
+    private final Set<Conversion> convsEditedSinceStore =
+            Collections.newSetFromMap(new IdentityHashMap<>());
+    private boolean cfEditedSinceStore = false;
 
+    /**
+     * Compute affected sites of conversions on all convertible loci.
+     *
+     * @param acg conversion graph
+     */
     public AffectedSiteList(ConversionGraph acg) {
+        this(acg, acg.getConvertibleLoci());
+    }
+
+    /**
+     * Compute affected sites of conversions on a single locus.
+     *
+     * @param acg conversion graph
+     * @param locus locus
+     */
+    public AffectedSiteList(ConversionGraph acg, Locus locus) {
+        this(acg, Collections.singletonList(locus));
+    }
+
+    /**
+     * Compute affected sites of conversions on the given loci.
+     *
+     * @param acg conversion graph
+     * @param loci loci to consider
+     */
+    public AffectedSiteList(ConversionGraph acg, List<Locus> loci) {
         this.acg = acg;
+        this.loci = loci;
+
+        affectedSites = new IdentityHashMap<>();
+        carriedSites = new int[loci.size()];
+        lociDone = new boolean[loci.size()];
+
+        update();
+    }
+
+    /**
+     * @param conv conversion
+     * @return number of sites whose ancestry involves conv
+     */
+    public int getAffectedSiteCount(Conversion conv) {
+        return affectedSites.get(conv).getTotalSites();
+    }
 
-        acgEventList = new ACGEventList(acg);
-        affectedSites = new HashMap<>();
-        affectedSiteCount = new HashMap<>();
-        affectedSiteFraction = new HashMap<>();
+    /**
+     * @param conv conversion
+     * @return fraction of the sites converted by conv whose ancestry
+     * involves conv
+     */
+    public double getAffectedSiteFraction(Conversion conv) {
+        return getAffectedSiteCount(conv) / (double) conv.getSiteCount();
+    }
 
-        Map<Node, Map<Locus, List<Integer>>> activeCFNodes = new HashMap<>();
-        Map<Locus, Set<Conversion>> activeConversions = new HashMap<>();
-        for (Locus locus : acg.getConvertibleLoci())
-            activeConversions.put(locus, new HashSet<>());
+    /**
+     * @return number of times the event list has been built from scratch
+     */
+    long getEventListBuildCount() {
+        return eventListBuildCount;
+    }
 
-        Map<Locus, List<Integer>> ancestralSitesCF;
+    /**
+     * Record that the clonal frame is about to be edited.
+     */
+    public void makeDirty() {
+        sweepRequired = true;
+        cfEditedSinceStore = true;
+    }
 
-        int leavesSeen = 0;
-        boolean mrcaReached = false;
-        for (ACGEventList.Event event : acgEventList.getACGEvents()) {
+    /**
+     * Record that a conversion is about to be edited, added or removed.
+     *
+     * @param conv conversion
+     */
+    public void conversionEdited(Conversion conv) {
+        convsEditedSinceStore.add(conv);
 
-            if (mrcaReached) {
-                if (event.type == ACGEventList.EventType.CONV_DEPART) {
-                    affectedSites.put(event.conversion, new ArrayList<>());
-                    affectedSiteCount.put(event.conversion, 0);
-                    affectedSiteFraction.put(event.conversion, 0.0);
-                }
+        if (editedConvs.add(conv))
+            editTime = Math.min(editTime, conv.getHeight1());
+    }
 
-                continue;
-            }
+    /**
+     * Mark the start of a new MCMC step.
+     */
+    public void store() {
+        convsEditedSinceStore.clear();
+        cfEditedSinceStore = false;
+    }
 
-            switch (event.type) {
-                case CF_LEAF:
-                    activeCFNodes.put(event.node, getLeafAncestralSites());
-                    leavesSeen += 1;
-                    break;
-
-                case CF_COALESCENCE:
-                    Node node1 = event.node.getLeft();
-                    Node node2 = event.node.getRight();
-
-                    ancestralSitesCF = new HashMap<>();
-                    for (Locus locus : acg.getConvertibleLoci()) {
-                        ancestralSitesCF.put(locus,
-                                IntRanges.getUnion(activeCFNodes.get(node1).get(locus),
-                                        activeCFNodes.get(node2).get(locus)));
-                    }
-
-                    activeCFNodes.remove(node1);
-                    activeCFNodes.remove(node2);
-                    activeCFNodes.put(event.node, ancestralSitesCF);
-
-                    if (leavesSeen == acg.getLeafNodeCount() && haveReachedAllMRCAs(activeCFNodes, activeConversions))
-                        mrcaReached = true;
-
-                    break;
-
-                case CONV_DEPART:
-                    List<Integer> inside = new ArrayList<>();
-                    List<Integer> outside = new ArrayList<>();
-                    IntRanges.partitionRanges(activeCFNodes.get(event.node).get(event.conversion.getLocus()),
-                            event.conversion.getStartSite(),
-                            event.conversion.getEndSite() + 1,
-                            inside, outside);
-
-                    affectedSites.put(event.conversion, inside);
-                    affectedSiteCount.put(event.conversion, IntRanges.getTotalSites(inside));
-                    affectedSiteFraction.put(event.conversion,
-                            IntRanges.getTotalSites(inside) / (double) event.conversion.getSiteCount());
-                    activeCFNodes.get(event.node).put(
-                            event.conversion.getLocus(), outside);
-                    activeConversions.get(event.conversion.locus).add(event.conversion);
-
-                    break;
-
-                case CONV_ARRIVE:
-                    activeCFNodes.get(event.node).put(event.conversion.getLocus(),
-                            IntRanges.getUnion(affectedSites.get(event.conversion),
-                                    activeCFNodes.get(event.node).get(event.conversion.getLocus())));
-                    activeConversions.get(event.conversion.getLocus()).remove(event.conversion);
-
-                    if (leavesSeen == acg.getLeafNodeCount() && haveReachedAllMRCAs(activeCFNodes, activeConversions))
-                        mrcaReached = true;
-                    break;
-            }
+    /**
+     * Prepare for the restoration of the ACG to its stored state.  Must be
+     * called before any conversions are restored, as the conversions
+     * edited since store() are treated as being edited once more.
+     */
+    public void restore() {
+        if (cfEditedSinceStore)
+            sweepRequired = true;
+
+        for (Conversion conv : convsEditedSinceStore)
+            conversionEdited(conv);
 
+        store();
+    }
+
+    /**
+     * Bring affected sites up to date with the ACG.
+     */
+    public void update() {
+        if (!sweepRequired && editedConvs.isEmpty())
+            return;
+
+        int startIdx = 0;
+        if (sweepRequired || events == null) {
+            reset();
+            events = new ACGEventList(acg).getACGEvents();
+            eventListBuildCount += 1;
+        } else {
+            for (Conversion conv : editedConvs)
+                editTime = Math.min(editTime, conv.getHeight1());
+
+            // Events below the lowest edit time are unaffected by the
+            // edits, while all events of edited conversions lie above it.
+            startIdx = getFirstEventIndex(editTime);
+
+            if (startIdx > 0)
+                rollBack(startIdx);
+            else
+                reset();
+
+            spliceEditedConversions(startIdx);
         }
+
+        if (journalOffsets.length < events.size() + 1)
+            journalOffsets = Arrays.copyOf(journalOffsets, 2*events.size() + 1);
+
+        for (int i=startIdx; i<events.size(); i++) {
+            journalOffsets[i] = journal.size();
+            processEvent(events.get(i));
+        }
+
+        sweepRequired = false;
+        editedConvs.clear();
+        editTime = Double.POSITIVE_INFINITY;
     }
 
     /**
-     * Assembles complete site list for association with a leaf node.
+     * @param t time
+     * @return index of first event in the current list occurring at or
+     * after t
+     */
+    private int getFirstEventIndex(double t) {
+        int lo = 0, hi = events.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (events.get(mid).t < t)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+
+        return lo;
+    }
+
+    /**
+     * Replace the events of edited conversions, all of which occur at or
+     * after the given index, with events reflecting their current
+     * attachment points.  Conversions no longer in the graph contribute
+     * no events.
      *
-     * @return list of sites
+     * @param startIdx index of first event which may be affected
      */
-    protected Map<Locus, List<Integer>> getLeafAncestralSites() {
-        Map<Locus, List<Integer>> res = new HashMap<>();
+    private void spliceEditedConversions(int startIdx) {
+        List<ACGEventList.Event> convEvents = new ArrayList<>();
+        for (Conversion conv : editedConvs) {
+            if (isInGraph(conv)) {
+                convEvents.add(new ACGEventList.Event(conv, true));
+                convEvents.add(new ACGEventList.Event(conv, false));
+            }
+        }
+        convEvents.sort(Comparator.comparingDouble(event -> event.t));
 
-        for (Locus locus : acg.getConvertibleLoci()) {
-            List<Integer> siteRange = new ArrayList<>();
-            siteRange.add(0);
-            siteRange.add(locus.getSiteCount() - 1);
-            res.put(locus, siteRange);
+        List<ACGEventList.Event> tail = events.subList(startIdx, events.size());
+        List<ACGEventList.Event> merged = new ArrayList<>(tail.size() + convEvents.size());
+        int ci = 0;
+        for (ACGEventList.Event event : tail) {
+            if (event.conversion != null && editedConvs.contains(event.conversion))
+                continue;
+
+            while (ci < convEvents.size() && convEvents.get(ci).t < event.t)
+                merged.add(convEvents.get(ci++));
+
+            merged.add(event);
         }
+        merged.addAll(convEvents.subList(ci, convEvents.size()));
 
-        return res;
+        tail.clear();
+        events.addAll(merged);
+    }
+
+    /**
+     * @param conv conversion
+     * @return true if conv is currently part of the graph
+     */
+    private boolean isInGraph(Conversion conv) {
+        for (Conversion other : acg.getDepartingConversions(conv.getNode1()))
+            if (other == conv)
+                return true;
+
+        return false;
+    }
+
+    /**
+     * Discard the sweep state and results entirely.
+     */
+    private void reset() {
+        affectedSites.clear();
+
+        if (activeCFNodes.length != acg.getNodeCount())
+            activeCFNodes = new IntRangeSet[acg.getNodeCount()][];
+        else
+            Arrays.fill(activeCFNodes, null);
+
+        Arrays.fill(carriedSites, 0);
+        Arrays.fill(lociDone, false);
+        lociDoneCount = 0;
+        leavesSeen = 0;
+
+        journal.clear();
     }
 
     /**
-     * Test to see whether MRCA of every site has been found.
-     * This is actually pretty expensive.  There's got to be a better way...
+     * Undo the processing of all events from the given index onward.
      *
-     * @param activeCFNodes set of active CF nodes and the sites they represent
-     * @param activeConversions set of active conversions and the sites they represent
-     * @return true if all sites have found an MRCA, false otherwise
+     * @param eventIdx index of first event to undo
      */
-    protected boolean haveReachedAllMRCAs(Map<Node, Map<Locus, List<Integer>>> activeCFNodes,
-                                Map<Locus, Set<Conversion>> activeConversions) {
+    private void rollBack(int eventIdx) {
+        int offset = events != null && eventIdx < events.size()
+                ? journalOffsets[eventIdx]
+                : journal.size();
 
-        for (Locus locus : acg.getConvertibleLoci()) {
-            List<Integer> startSites = new ArrayList<>();
-            List<Integer> endSites = new ArrayList<>();
-            for (Node node : activeCFNodes.keySet()) {
-                for (int i = 0; i < activeCFNodes.get(node).get(locus).size(); i += 2) {
-                    startSites.add(activeCFNodes.get(node).get(locus).get(i));
-                    endSites.add(activeCFNodes.get(node).get(locus).get(i + 1));
-                }
-            }
+        for (int j=journal.size()-1; j>=offset; j--)
+            journal.get(j).run();
 
-            for (Conversion conv : activeConversions.get(locus)) {
-                for (int i = 0; i < affectedSites.get(conv).size(); i += 2) {
-                    startSites.add(affectedSites.get(conv).get(i));
-                    endSites.add(affectedSites.get(conv).get(i + 1));
+        journal.subList(offset, journal.size()).clear();
+    }
+
+    /**
+     * Advance the sweep past a single event.
+     *
+     * @param event event
+     */
+    private void processEvent(ACGEventList.Event event) {
+        int li = event.conversion != null
+                ? loci.indexOf(event.conversion.getLocus())
+                : -1;
+
+        if (event.conversion != null && li < 0)
+            return;
+
+        if (event.type == ACGEventList.EventType.CONV_DEPART && lociDone[li]) {
+            put(affectedSites, event.conversion, new IntRangeSet());
+            return;
+        }
+
+        if (lociDoneCount == loci.size())
+            return;
+
+        IntRangeSet[] nodeSites;
+        IntRangeSet union;
+
+        switch (event.type) {
+            case CF_LEAF:
+                setNodeSites(event.node.getNr(), getLeafAncestralSites());
+                for (int i=0; i<loci.size(); i++)
+                    addCarriedSites(i, getLeafSiteCount(i));
+
+                leavesSeen += 1;
+                journal.add(() -> leavesSeen -= 1);
+                break;
+
+            case CF_COALESCENCE:
+                // Events outlive restore(), which may replace node objects.
+                Node cfNode = acg.getNode(event.node.getNr());
+                int node1Nr = cfNode.getLeft().getNr();
+                int node2Nr = cfNode.getRight().getNr();
+
+                nodeSites = new IntRangeSet[loci.size()];
+                for (int i=0; i<loci.size(); i++) {
+                    IntRangeSet sites1 = activeCFNodes[node1Nr][i];
+                    IntRangeSet sites2 = activeCFNodes[node2Nr][i];
+
+                    nodeSites[i] = new IntRangeSet(2*(sites1.getRangeCount() + sites2.getRangeCount()));
+                    sites1.union(sites2, nodeSites[i]);
+                    addCarriedSites(i, nodeSites[i].getTotalSites()
+                            - sites1.getTotalSites() - sites2.getTotalSites());
                 }
-            }
 
-            Collections.sort(startSites);
-            Collections.sort(endSites);
+                setNodeSites(node1Nr, null);
+                setNodeSites(node2Nr, null);
+                setNodeSites(event.node.getNr(), nodeSites);
 
-            for (int i = 0; i < startSites.size() - 1; i++) {
-                if (startSites.get(i + 1) < endSites.get(i))
-                    return false;
-            }
+                if (leavesSeen == acg.getLeafNodeCount())
+                    updateLociDone();
+
+                break;
+
+            case CONV_DEPART:
+                Conversion conv = event.conversion;
+                nodeSites = activeCFNodes[event.node.getNr()];
+
+                IntRangeSet inside = new IntRangeSet();
+                IntRangeSet outside = new IntRangeSet();
+                nodeSites[li].partition(conv.getStartSite(),
+                        conv.getEndSite() + 1,
+                        inside, outside);
+
+                put(affectedSites, conv, inside);
+                setSites(nodeSites, li, outside);
+
+                break;
+
+            case CONV_ARRIVE:
+                conv = event.conversion;
+                nodeSites = activeCFNodes[event.node.getNr()];
+
+                IntRangeSet convSites = affectedSites.get(conv);
+                union = new IntRangeSet(2*(convSites.getRangeCount() + nodeSites[li].getRangeCount()));
+                convSites.union(nodeSites[li], union);
+                addCarriedSites(li, union.getTotalSites()
+                        - convSites.getTotalSites() - nodeSites[li].getTotalSites());
+                setSites(nodeSites, li, union);
+
+                if (leavesSeen == acg.getLeafNodeCount())
+                    updateLociDone();
+                break;
         }
+    }
+
+    /*
+     * Journaled modifications of the sweep state.
+     */
+
+    private <K, V> void put(Map<K, V> map, K key, V value) {
+        V oldValue = map.put(key, value);
+        if (oldValue != null)
+            journal.add(() -> map.put(key, oldValue));
+        else
+            journal.add(() -> map.remove(key));
+    }
+
+    private void setNodeSites(int nodeNr, IntRangeSet[] nodeSites) {
+        IntRangeSet[] oldNodeSites = activeCFNodes[nodeNr];
+        activeCFNodes[nodeNr] = nodeSites;
+        journal.add(() -> activeCFNodes[nodeNr] = oldNodeSites);
+    }
+
+    private void setSites(IntRangeSet[] nodeSites, int li, IntRangeSet sites) {
+        IntRangeSet oldSites = nodeSites[li];
+        nodeSites[li] = sites;
+        journal.add(() -> nodeSites[li] = oldSites);
+    }
+
+    private void addCarriedSites(int li, int delta) {
+        if (delta != 0) {
+            carriedSites[li] += delta;
+            journal.add(() -> carriedSites[li] -= delta);
+        }
+    }
+
+    private void setLocusDone(int li) {
+        lociDone[li] = true;
+        lociDoneCount += 1;
+        journal.add(() -> {
+            lociDone[li] = false;
+            lociDoneCount -= 1;
+        });
+    }
 
-        return true;
+    /**
+     * Assembles complete site list for association with a leaf node.
+     *
+     * @return site ranges, indexed by locus
+     */
+    protected IntRangeSet[] getLeafAncestralSites() {
+        IntRangeSet[] res = new IntRangeSet[loci.size()];
+
+        for (int i=0; i<loci.size(); i++)
+            res[i] = new IntRangeSet(0, loci.get(i).getSiteCount() - 1);
+
+        return res;
     }
 
+    /**
+     * @param li locus index
+     * @return number of sites of locus carried by each leaf
+     */
+    private int getLeafSiteCount(int li) {
+        return loci.get(li).getSiteCount() - 1;
+    }
 
+    /**
+     * Mark as done those loci for which the MRCA of every site has been
+     * found.
+     */
+    protected void updateLociDone() {
+        for (int i=0; i<loci.size(); i++) {
+            if (!lociDone[i] && haveReachedMRCA(i))
+                setLocusDone(i);
+        }
+    }
 
+    /**
+     * Test to see whether MRCA of every site of a locus has been found.
+     * Sites are never lost before their MRCA is reached, so this is the
+     * case once no site is carried by more than one active lineage.
+     *
+     * @param li index of locus to check
+     * @return true if all sites have found an MRCA, false otherwise
+     */
+    protected boolean haveReachedMRCA(int li) {
+        return carriedSites[li] == getLeafSiteCount(li);
+    }
 }
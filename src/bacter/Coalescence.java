@@ -17,31 +17,31 @@
 
 package bacter;
 
-import java.util.ArrayList;
+import bacter.util.IntRangeSet;
+
+import java.util.Arrays;
 import java.util.BitSet;
-import java.util.List;
 
 /**
  * Class of objects indicating lineages which are coalescing and at which
- * sites.
+ * sites.  As for SiteAncestry, descendant leaf sets are compared by
+ * reference when intervals are added, and objects may be cleared and
+ * reused.
  *
  * @author Tim Vaughan <tgvaughan@gmail.com>
  */
 public class Coalescence {
-    public List<BitSet> descendantLeaves1, descendantLeaves2;
-    public List<Integer> siteRanges;
+    private BitSet[] descendantLeaves1, descendantLeaves2;
+    public IntRangeSet siteRanges;
 
     public Coalescence() {
-        descendantLeaves1 = new ArrayList<>();
-        descendantLeaves2 = new ArrayList<>();
-        siteRanges = new ArrayList<>();
+        descendantLeaves1 = new BitSet[2];
+        descendantLeaves2 = new BitSet[2];
+        siteRanges = new IntRangeSet();
     }
 
     public Coalescence(String string) {
-
-        siteRanges = new ArrayList<>();
-        descendantLeaves1 = new ArrayList<>();
-        descendantLeaves2 = new ArrayList<>();
+        this();
 
         string = string.replaceAll("\\s+","");
 
@@ -55,28 +55,53 @@ public class Coalescence {
             String[] split2 = aSplit1.split("]\\{");
             String[] rangeStr = split2[0].split(",");
 
-            siteRanges.add(Integer.parseInt(rangeStr[0]));
-            siteRanges.add(Integer.parseInt(rangeStr[1]));
-
             String[] split3 = split2[1].split("\\}\\{");
 
             String[] bitStrA = split3[0].split(",");
             BitSet theseDecendentsA = new BitSet();
             for (String aBitStr : bitStrA)
                 theseDecendentsA.set(Integer.parseInt(aBitStr));
-            descendantLeaves1.add(theseDecendentsA);
 
             String[] bitStrB = split3[1].split(",");
             BitSet theseDecendentsB = new BitSet();
             for (String aBitStr : bitStrB)
                 theseDecendentsB.set(Integer.parseInt(aBitStr));
-            descendantLeaves2.add(theseDecendentsB);
 
+            append(Integer.parseInt(rangeStr[0]),
+                    Integer.parseInt(rangeStr[1]),
+                    theseDecendentsA, theseDecendentsB);
         }
     }
 
     public int getIntervalCount() {
-        return descendantLeaves1.size();
+        return siteRanges.getRangeCount();
+    }
+
+    /**
+     * @param i interval index
+     * @return leaves descended from the sites of interval i on the first
+     * coalescing lineage
+     */
+    public BitSet getDescendantLeaves1(int i) {
+        return descendantLeaves1[i];
+    }
+
+    /**
+     * @param i interval index
+     * @return leaves descended from the sites of interval i on the second
+     * coalescing lineage
+     */
+    public BitSet getDescendantLeaves2(int i) {
+        return descendantLeaves2[i];
+    }
+
+    /**
+     * Remove all intervals.
+     */
+    public void clear() {
+        Arrays.fill(descendantLeaves1, 0, getIntervalCount(), null);
+        Arrays.fill(descendantLeaves2, 0, getIntervalCount(), null);
+        siteRanges.clear();
     }
 
     @Override
@@ -87,28 +112,35 @@ public class Coalescence {
             if (i>0)
                 res += " ";
 
-            res += "[" + siteRanges.get(2*i) + "," + siteRanges.get(2*i+1) + "]"
-                    + descendantLeaves1.get(i).toString().replaceAll("\\s","")
-                    + descendantLeaves2.get(i).toString().replaceAll("\\s","");
+            res += "[" + siteRanges.getStart(i) + "," + siteRanges.getEnd(i) + "]"
+                    + descendantLeaves1[i].toString().replaceAll("\\s","")
+                    + descendantLeaves2[i].toString().replaceAll("\\s","");
         }
 
         return res;
     }
 
     public void addInterval(int x, int y, BitSet dl1, BitSet dl2) {
-        if (getIntervalCount()>0
-                && x == siteRanges.get(siteRanges.size()-1)
-                && ((descendantLeaves1.get(descendantLeaves1.size()-1).equals(dl1)
-                && descendantLeaves2.get(descendantLeaves2.size()-1).equals(dl2))
-                || (descendantLeaves1.get(descendantLeaves1.size()-1).equals(dl2)
-                && descendantLeaves2.get(descendantLeaves2.size()-1).equals(dl1))))
-            siteRanges.set(siteRanges.size()-1, y);
-        else {
-            siteRanges.add(x);
-            siteRanges.add(y);
-            descendantLeaves1.add(dl1);
-            descendantLeaves2.add(dl2);
+        int n = getIntervalCount();
+        if (n>0
+                && x == siteRanges.getLastEnd()
+                && ((descendantLeaves1[n-1] == dl1 && descendantLeaves2[n-1] == dl2)
+                || (descendantLeaves1[n-1] == dl2 && descendantLeaves2[n-1] == dl1)))
+            siteRanges.setLastEnd(y);
+        else
+            append(x, y, dl1, dl2);
+    }
+
+    private void append(int x, int y, BitSet dl1, BitSet dl2) {
+        int n = getIntervalCount();
+        if (n == descendantLeaves1.length) {
+            descendantLeaves1 = Arrays.copyOf(descendantLeaves1, 2*n);
+            descendantLeaves2 = Arrays.copyOf(descendantLeaves2, 2*n);
         }
+
+        siteRanges.add(x, y);
+        descendantLeaves1[n] = dl1;
+        descendantLeaves2[n] = dl2;
     }
 
     @Override
@@ -122,10 +154,10 @@ public class Coalescence {
             return false;
 
         for (int i=0; i<getIntervalCount(); i++) {
-            if ((!descendantLeaves1.get(i).equals(that.descendantLeaves1.get(i))
-                    && !descendantLeaves1.get(i).equals(that.descendantLeaves2.get(i)))
-                    || (!descendantLeaves2.get(i).equals(that.descendantLeaves2.get(i))
-                    && !descendantLeaves2.get(i).equals(that.descendantLeaves1.get(i))))
+            if ((!descendantLeaves1[i].equals(that.descendantLeaves1[i])
+                    && !descendantLeaves1[i].equals(that.descendantLeaves2[i]))
+                    || (!descendantLeaves2[i].equals(that.descendantLeaves2[i])
+                    && !descendantLeaves2[i].equals(that.descendantLeaves1[i])))
                 return false;
         }
 
@@ -137,8 +169,8 @@ public class Coalescence {
         int result = siteRanges.hashCode();
 
         for (int i=0; i<getIntervalCount(); i++) {
-            int dl1hash = descendantLeaves1.get(i).hashCode();
-            int dl2hash = descendantLeaves2.get(i).hashCode();
+            int dl1hash = descendantLeaves1[i].hashCode();
+            int dl2hash = descendantLeaves2[i].hashCode();
 
             if (dl1hash < dl2hash)
                 result = 31*(31 * result + dl1hash) + dl2hash;
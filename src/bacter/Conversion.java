@@ -35,7 +35,9 @@ public class Conversion {
     protected ConversionGraph acg;
 
     /**
-     * Nodes below branches to which recombinant edge connects.
+     * Nodes below branches to which recombinant edge connects.  Since
+     * Tree.restore() swaps the node arrays, these may refer to stored
+     * copies of the graph's nodes and should be accessed via the getters.
      */
     protected Node node1, node2;
     
@@ -98,7 +100,7 @@ public class Conversion {
      * @return node
      */
     public Node getNode1() {
-        return node1;
+        return acg != null ? acg.getCurrentNode(node1) : node1;
     }
 
     /**
@@ -108,7 +110,7 @@ public class Conversion {
      * @return node
      */
     public Node getNode2() {
-        return node2;
+        return acg != null ? acg.getCurrentNode(node2) : node2;
     }
     
     /**
@@ -174,7 +176,9 @@ public class Conversion {
      */
     public void setNode1(Node node1) {
         startEditing();
+        boolean indexed = removeFromIndex();
         this.node1 = node1;
+        restoreToIndex(indexed);
     }
 
     /**
@@ -185,7 +189,9 @@ public class Conversion {
      */
     public void setNode2(Node node2) {
         startEditing();
+        boolean indexed = removeFromIndex();
         this.node2 = node2;
+        restoreToIndex(indexed);
     }
 
     /**
@@ -196,7 +202,9 @@ public class Conversion {
      */
     public void setHeight1(double height1) {
         startEditing();
+        boolean indexed = removeFromIndex();
         this.height1 = height1;
+        restoreToIndex(indexed);
     }
 
     /**
@@ -206,7 +214,9 @@ public class Conversion {
      */
     public void setHeight2(double height2) {
         startEditing();
+        boolean indexed = removeFromIndex();
         this.height2 = height2;
+        restoreToIndex(indexed);
     }
 
     /**
@@ -239,6 +249,9 @@ public class Conversion {
      * @return true if specification is valid
      */
     public boolean isValid() {
+        Node node1 = getNode1();
+        Node node2 = getNode2();
+
         if (height1>height2)
             return false;
         
@@ -278,11 +291,52 @@ public class Conversion {
     }
 
     /**
-     * Mark ARG statenode as dirty if available.
+     * Mark ARG statenode as dirty if available, recording the current
+     * state of the conversion so that the edit can be undone.
      */
     public void startEditing() {
-        if (acg != null)
-            acg.startEditing(null);
+        if (acg != null) {
+            acg.journalConversion(this);
+            acg.startEditingConversion(this);
+        }
+    }
+
+    /**
+     * Remove this conversion from the attachment index of its graph
+     * ahead of a change to one of its attachment points.
+     *
+     * @return true if the conversion was indexed
+     */
+    private boolean removeFromIndex() {
+        return acg != null && acg.unindexConversion(this);
+    }
+
+    /**
+     * Return this conversion to the attachment index of its graph
+     * following a change to one of its attachment points.
+     *
+     * @param indexed value returned by removeFromIndex()
+     */
+    private void restoreToIndex(boolean indexed) {
+        if (indexed)
+            acg.indexConversion(this);
+    }
+
+    /**
+     * Reset attachment points and site range to those of another
+     * conversion.  Used to undo edits, so does not mark the graph dirty
+     * or update its attachment index, whose own edits are undone
+     * separately.
+     *
+     * @param other conversion to copy fields from
+     */
+    void restoreFrom(Conversion other) {
+        node1 = other.node1;
+        node2 = other.node2;
+        height1 = other.height1;
+        height2 = other.height2;
+        startSite = other.startSite;
+        endSite = other.endSite;
     }
     
     /**
@@ -318,8 +372,8 @@ public class Conversion {
         if (endSite != that.endSite) return false;
         if (acg != null ? !acg.equals(that.acg) : that.acg != null)
             return false;
-        if (!node1.equals(that.node1)) return false;
-        return node2.equals(that.node2);
+        if (node1.getNr() != that.node1.getNr()) return false;
+        return node2.getNr() == that.node2.getNr();
 
     }
 
@@ -328,8 +382,8 @@ public class Conversion {
         int result;
         long temp;
         result = acg != null ? acg.hashCode() : 0;
-        result = 31 * result + node1.hashCode();
-        result = 31 * result + node2.hashCode();
+        result = 31 * result + node1.getNr();
+        result = 31 * result + node2.getNr();
         temp = Double.doubleToLongBits(height1);
         result = 31 * result + (int) (temp ^ (temp >>> 32));
         temp = Double.doubleToLongBits(height2);
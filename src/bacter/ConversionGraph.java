@@ -16,6 +16,7 @@
  */
 package bacter;
 
+import bacter.util.IntRangeSet;
 import bacter.util.parsers.ExtendedNewickBaseVisitor;
 import bacter.util.parsers.ExtendedNewickLexer;
 import bacter.util.parsers.ExtendedNewickParser;
@@ -71,15 +72,43 @@ public class ConversionGraph extends Tree {
      * List of recombinations on graph.
      */
     protected Map<Locus, List<Conversion>> convs;
-    protected Map<Locus, List<Conversion>> storedConvs;
+
+    /**
+     * Undo journal of conversion edits made since the last call to
+     * store(), replayed in reverse by restore().  Only maintained while
+     * the graph belongs to a State.
+     */
+    protected List<Runnable> convJournal = new ArrayList<>();
+    protected Set<Conversion> journaledConvs =
+            Collections.newSetFromMap(new IdentityHashMap<>());
     protected final static List<Conversion> emptyConvList = new ArrayList<>();
 
+    /**
+     * Conversions departing from and arriving at the edge above each CF
+     * node, indexed by node number and ordered by increasing height of
+     * the corresponding attachment.  Maintained by addConversion(),
+     * deleteConversion() and the Conversion setters.
+     */
+    protected List<List<Conversion>> departingConvs = new ArrayList<>();
+    protected List<List<Conversion>> arrivingConvs = new ArrayList<>();
+
     /**
      * Event and region lists.
      */
     protected Map<Locus, RegionList> regionLists;
     protected CFEventList cfEventList;
 
+    /**
+     * Affected sites of conversions, shared by region lists and loggers.
+     * Created on first use.
+     */
+    protected AffectedSiteList affectedSiteList;
+
+    /**
+     * Incremented whenever the graph is marked as edited or restored.
+     */
+    protected long editCount;
+
     protected List<Locus> loci, convertibleLoci;
     protected int totalConvertibleSequenceLength;
 
@@ -87,7 +116,6 @@ public class ConversionGraph extends Tree {
     public void initAndValidate() {
 
         convs = new HashMap<>();
-        storedConvs = new HashMap<>();
 
         if (lociInput.get().isEmpty())
                 throw new RuntimeException("Must specify at least one locus " +
@@ -102,7 +130,6 @@ public class ConversionGraph extends Tree {
         totalConvertibleSequenceLength = 0;
         for (Locus locus : convertibleLoci) {
             convs.put(locus, new ArrayList<>());
-            storedConvs.put(locus, new ArrayList<>());
             totalConvertibleSequenceLength += locus.getSiteCount();
         }
         
@@ -114,6 +141,8 @@ public class ConversionGraph extends Tree {
             fromExtendedNewick(fromExtNewickInput.get());
         }
 
+        rebuildConversionIndex();
+
         regionLists = new HashMap<>();
         for (Locus locus : loci)
             regionLists.put(locus, new RegionList(this, locus));
@@ -170,7 +199,7 @@ public class ConversionGraph extends Tree {
      * @param conv conversion to add
      */
     public void addConversion(Conversion conv) {
-        startEditing(null);
+        startEditingConversion(conv);
         
         conv.setConversionGraph(this);
 
@@ -185,6 +214,13 @@ public class ConversionGraph extends Tree {
                 break;
         
         convs.get(locus).add(i, conv);
+
+        if (isJournaling()) {
+            final int idx = i;
+            convJournal.add(() -> convs.get(locus).remove(idx));
+        }
+
+        indexConversion(conv);
     }
     
     /**
@@ -193,12 +229,25 @@ public class ConversionGraph extends Tree {
      * @param conv conversion to remove.
      */
     public void deleteConversion(Conversion conv) {
-        startEditing(null);
+        startEditingConversion(conv);
 
         if (!conv.getLocus().conversionsAllowed())
             throw new IllegalStateException("Tried to remove a conversion from a conversion-free locus.");
 
-        convs.get(conv.getLocus()).remove(conv);
+        List<Conversion> convList = convs.get(conv.getLocus());
+        for (int i=0; i<convList.size(); i++) {
+            if (convList.get(i) == conv) {
+                convList.remove(i);
+
+                if (isJournaling()) {
+                    final int idx = i;
+                    convJournal.add(() -> convList.add(idx, conv));
+                }
+
+                unindexConversion(conv);
+                break;
+            }
+        }
     }
     
     /**
@@ -260,6 +309,162 @@ public class ConversionGraph extends Tree {
         return index;
     }
 
+    /**
+     * Obtain the conversions departing from the CF edge above the given
+     * node, ordered by increasing departure height.  The list is updated
+     * in place as conversions are edited, so callers that modify
+     * attachments while iterating must copy it first.  It must not be
+     * modified directly.
+     *
+     * @param node node below CF edge
+     * @return list of conversions
+     */
+    public List<Conversion> getDepartingConversions(Node node) {
+        if (node.getNr() >= departingConvs.size())
+            return emptyConvList;
+
+        return departingConvs.get(node.getNr());
+    }
+
+    /**
+     * Obtain the conversions arriving at the CF edge above the given
+     * node, ordered by increasing arrival height.  The same caveats
+     * apply as for getDepartingConversions().
+     *
+     * @param node node below CF edge
+     * @return list of conversions
+     */
+    public List<Conversion> getArrivingConversions(Node node) {
+        if (node.getNr() >= arrivingConvs.size())
+            return emptyConvList;
+
+        return arrivingConvs.get(node.getNr());
+    }
+
+    /**
+     * Add a conversion belonging to the graph to the attachment index.
+     * Called following any change to its attachment points.
+     *
+     * @param conv conversion to index
+     */
+    void indexConversion(Conversion conv) {
+        insertAttachment(getAttachmentList(departingConvs, conv.node1.getNr()),
+                conv, true);
+        insertAttachment(getAttachmentList(arrivingConvs, conv.node2.getNr()),
+                conv, false);
+    }
+
+    /**
+     * Remove a conversion from the attachment index, if present.  Called
+     * prior to any change to its attachment points.
+     *
+     * @param conv conversion to remove
+     * @return true if conversion was present in index
+     */
+    boolean unindexConversion(Conversion conv) {
+        if (conv.node1 == null || conv.node2 == null
+                || !removeAttachment(getAttachmentList(departingConvs, conv.node1.getNr()), conv))
+            return false;
+
+        if (!removeAttachment(getAttachmentList(arrivingConvs, conv.node2.getNr()), conv))
+            throw new IllegalStateException("Programmer error: conversion " +
+                    "arrival missing from attachment index.");
+
+        return true;
+    }
+
+    /**
+     * Reconstruct the attachment index from the conversion lists.
+     */
+    protected void rebuildConversionIndex() {
+        for (List<Conversion> list : departingConvs)
+            list.clear();
+        for (List<Conversion> list : arrivingConvs)
+            list.clear();
+
+        if (convertibleLoci == null)
+            return;
+
+        for (Locus locus : convertibleLoci)
+            for (Conversion conv : convs.get(locus))
+                indexConversion(conv);
+    }
+
+    /**
+     * @param lists departure or arrival lists
+     * @param nodeNr node number
+     * @return attachment list for node, created if necessary
+     */
+    private static List<Conversion> getAttachmentList(List<List<Conversion>> lists,
+                                                      int nodeNr) {
+        while (lists.size() <= nodeNr)
+            lists.add(new ArrayList<>());
+
+        return lists.get(nodeNr);
+    }
+
+    /**
+     * @param conv conversion
+     * @param departure true for departure, false for arrival
+     * @return height of attachment
+     */
+    private static double getAttachmentHeight(Conversion conv, boolean departure) {
+        return departure ? conv.height1 : conv.height2;
+    }
+
+    /**
+     * Insert conversion into attachment list, after any conversions
+     * attaching at the same height.
+     *
+     * @param list attachment list
+     * @param conv conversion to insert
+     * @param departure true if list holds departures
+     */
+    private void insertAttachment(List<Conversion> list, Conversion conv,
+                                  boolean departure) {
+        double height = getAttachmentHeight(conv, departure);
+
+        int lo = 0, hi = list.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (getAttachmentHeight(list.get(mid), departure) <= height)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+
+        list.add(lo, conv);
+
+        if (isJournaling()) {
+            final int idx = lo;
+            convJournal.add(() -> list.remove(idx));
+        }
+    }
+
+    /**
+     * Remove conversion from attachment list.
+     *
+     * @param list attachment list
+     * @param conv conversion to remove
+     * @return true if conversion was present
+     */
+    private boolean removeAttachment(List<Conversion> list, Conversion conv) {
+        for (int i=0; i<list.size(); i++) {
+            if (list.get(i) == conv) {
+                list.remove(i);
+
+                if (isJournaling()) {
+                    final int idx = i;
+                    convJournal.add(() -> list.add(idx, conv));
+                }
+
+                return true;
+            }
+        }
+
+        return false;
+    }
+
     /**
      * Get list of contiguous regions having fixed marginal trees
      * associated with given locus.
@@ -271,6 +476,14 @@ public class ConversionGraph extends Tree {
         return regionLists.get(locus).getRegions();
     }
 
+    /**
+     * @param locus locus
+     * @return region list associated with given locus
+     */
+    public RegionList getRegionList(Locus locus) {
+        return regionLists.get(locus);
+    }
+
     /**
      * Obtain number of contiguous single-tree regions associated with
      * given locus.
@@ -282,12 +495,28 @@ public class ConversionGraph extends Tree {
         return regionLists.get(locus).getRegions().size();
     }
 
+    /**
+     * Obtain the sites of each conversion whose ancestry involves that
+     * conversion.  The returned object is updated in place as the ACG is
+     * edited, so should not be retained.
+     *
+     * @return up-to-date affected site list
+     */
+    public AffectedSiteList getAffectedSiteList() {
+        if (affectedSiteList == null)
+            affectedSiteList = new AffectedSiteList(this);
+        else
+            affectedSiteList.update();
+
+        return affectedSiteList;
+    }
+
     public int getUselessConvCount() {
-        AffectedSiteList asList = new AffectedSiteList(this);
+        AffectedSiteList asList = getAffectedSiteList();
 
         int count = 0;
-        for (int asCount : asList.affectedSiteCount.values()) {
-            if (asCount == 0)
+        for (IntRangeSet sites : asList.affectedSites.values()) {
+            if (sites.getTotalSites() == 0)
                 count += 1;
         }
 
@@ -305,6 +534,18 @@ public class ConversionGraph extends Tree {
         return cfEventList.getCFEvents();
     }
 
+    /**
+     * Obtain a count of the edits and restores applied to the graph.
+     * Objects holding state derived from the graph can compare this
+     * with the value recorded when their state was assembled to detect
+     * that it may be stale.
+     *
+     * @return edit count
+     */
+    public long getEditCount() {
+        return editCount;
+    }
+
     /**
      * @return Total length of all edges in clonal frame.
      */
@@ -412,6 +653,7 @@ public class ConversionGraph extends Tree {
         // Process recombinations
         for (Locus locus : convertibleLoci)
             convs.get(locus).clear();
+        rebuildConversionIndex();
 
         while(convMatcher.find()) {
             String [] elements = convMatcher.group(1).split(",");
@@ -436,6 +678,7 @@ public class ConversionGraph extends Tree {
             
             addConversion(conv);
         }
+        clearConvJournal();
 
         if (isInvalid()) {
             throw new IllegalArgumentException(
@@ -465,7 +708,6 @@ public class ConversionGraph extends Tree {
         acg.m_taxonset.setValue(m_taxonset.get(), acg);
         
         acg.convs = new HashMap<>();
-        acg.storedConvs = new HashMap<>();
 
         acg.loci = loci;
         acg.convertibleLoci = convertibleLoci;
@@ -478,16 +720,9 @@ public class ConversionGraph extends Tree {
                 convCopy.setNode2(acg.m_nodes[conv.getNode2().getNr()]);
                 acg.convs.get(locus).add(convCopy);
             }
-
-            acg.storedConvs.put(locus, new ArrayList<>());
-            for (Conversion conv : storedConvs.get(locus)) {
-                Conversion convCopy = conv.getCopy();
-                convCopy.setConversionGraph(acg);
-                convCopy.setNode1(acg.m_nodes[conv.getNode1().getNr()]);
-                convCopy.setNode2(acg.m_nodes[conv.getNode2().getNr()]);
-                acg.storedConvs.get(locus).add(convCopy);
-            }
         }
+        acg.rebuildConversionIndex();
+        acg.clearConvJournal();
 
         return acg;
     }
@@ -505,10 +740,8 @@ public class ConversionGraph extends Tree {
             convertibleLoci = acg.convertibleLoci;
 
             convs.clear();
-            storedConvs.clear();
             for (Locus locus : convertibleLoci) {
                 convs.put(locus, new ArrayList<>());
-                storedConvs.put(locus, new ArrayList<>());
                 for (Conversion conv : acg.getConversions(locus)) {
                     Conversion convCopy = conv.getCopy();
                     convCopy.setConversionGraph(this);
@@ -517,6 +750,8 @@ public class ConversionGraph extends Tree {
                     convs.get(locus).add(convCopy);
                 }
             }
+            rebuildConversionIndex();
+            clearConvJournal();
 
             if (cfEventList == null)
                 cfEventList = new CFEventList(this);
@@ -525,6 +760,7 @@ public class ConversionGraph extends Tree {
             for (Locus locus : loci) {
                 regionLists.put(locus, new RegionList(this, locus));
             }
+            affectedSiteList = null;
         }
     }
 
@@ -566,7 +802,7 @@ public class ConversionGraph extends Tree {
     public String getExtendedNewick(boolean computeAffectedSites) {
         AffectedSiteList asList = null;
         if (computeAffectedSites)
-            asList = new AffectedSiteList(this);
+            asList = getAffectedSiteList();
 
         return extendedNewickTraverse(root, asList, false) + ";";
 
@@ -602,26 +838,27 @@ public class ConversionGraph extends Tree {
                 this.conv = conv;
             }
         }
-        List<Event> events = new ArrayList<>();
-        for (Locus locus : getConvertibleLoci()) {
-            for (Conversion conv : getConversions(locus)) {
-                if (intraCFOnly && conv.node2.isRoot())
-                    continue;
-
-                if (conv.node1 == node)
-                    events.add(new Event(false, conv.getHeight1(), conv));
-                if (conv.node2 == node)
-                    events.add(new Event(true, conv.getHeight2(), conv));
+        // Merge departures and arrivals from oldest to youngest.
+        List<Conversion> departures = getDepartingConversions(node);
+        List<Conversion> arrivals = getArrivingConversions(node);
+        List<Event> events = new ArrayList<>(departures.size() + arrivals.size());
+        int di = departures.size()-1, ai = arrivals.size()-1;
+        while (di >= 0 || ai >= 0) {
+            Event event;
+            if (ai < 0 || (di >= 0
+                    && departures.get(di).getHeight1() >= arrivals.get(ai).getHeight2())) {
+                Conversion conv = departures.get(di--);
+                event = new Event(false, conv.getHeight1(), conv);
+            } else {
+                Conversion conv = arrivals.get(ai--);
+                event = new Event(true, conv.getHeight2(), conv);
             }
+
+            if (intraCFOnly && event.conv.getNode2().isRoot())
+                continue;
+
+            events.add(event);
         }
-        
-        // Sort events from oldest to youngest.
-        events.sort((Event e1, Event e2) -> {
-            if (e1.time > e2.time)
-                return -1;
-            else
-                return 1;
-        });
 
         // Process events.
         
@@ -654,8 +891,8 @@ public class ConversionGraph extends Tree {
                 if (asList != null) {
                     meta += String.format(Locale.ENGLISH,
                             ", affectedSites=%d, uselessSiteFraction=%g",
-                            asList.affectedSiteCount.get(event.conv),
-                            1.0-asList.affectedSiteFraction.get(event.conv));
+                            asList.getAffectedSiteCount(event.conv),
+                            1.0-asList.getAffectedSiteFraction(event.conv));
                 }
 
                 if (event.conv.newickMetaDataMiddle != null)
@@ -950,10 +1187,11 @@ public class ConversionGraph extends Tree {
 
         for (Locus locus : getConvertibleLoci())
             convs.get(locus).clear();
+        rebuildConversionIndex();
 
         for (Conversion conv : convIDMap.values())
             addConversion(conv);
-
+        clearConvJournal();
     }
 
     /*
@@ -963,43 +1201,98 @@ public class ConversionGraph extends Tree {
     @Override
     protected void store () {
         super.store();
-        
-        for (Locus locus : convertibleLoci) {
-            storedConvs.get(locus).clear();
-
-            for (Conversion conv : convs.get(locus)) {
-                Conversion convCopy = new Conversion();
-
-                convCopy.setLocus(conv.getLocus());
-                convCopy.setStartSite(conv.getStartSite());
-                convCopy.setEndSite(conv.getEndSite());
-                convCopy.setHeight1(conv.getHeight1());
-                convCopy.setHeight2(conv.getHeight2());
-                convCopy.newickMetaDataBottom = conv.newickMetaDataBottom;
-                convCopy.newickMetaDataMiddle = conv.newickMetaDataMiddle;
-                convCopy.newickMetaDataTop = conv.newickMetaDataTop;
 
-                convCopy.setNode1(m_storedNodes[conv.getNode1().getNr()]);
-                convCopy.setNode2(m_storedNodes[conv.getNode2().getNr()]);
+        clearConvJournal();
 
-                convCopy.setConversionGraph(this);
+        for (RegionList regionList : regionLists.values())
+            regionList.store();
 
-                storedConvs.get(locus).add(convCopy);
-            }
-        }
+        if (affectedSiteList != null)
+            affectedSiteList.store();
     }
     
     @Override
     public void restore() {
+        if (affectedSiteList != null)
+            affectedSiteList.restore();
+
         super.restore();
-        
-        Map<Locus, List<Conversion>> tmp = storedConvs;
-        storedConvs = convs;
-        convs = tmp;
+
+        for (int i=convJournal.size()-1; i>=0; i--)
+            convJournal.get(i).run();
+        clearConvJournal();
 
         cfEventList.makeDirty();
-        for (Locus locus : loci)
-            regionLists.get(locus).makeDirty();
+        for (RegionList regionList : regionLists.values())
+            regionList.restore();
+
+        editCount += 1;
+    }
+
+    /**
+     * @return true if conversion edits must be journaled
+     */
+    protected boolean isJournaling() {
+        return state != null;
+    }
+
+    /**
+     * Record the current state of a conversion, if this has not already
+     * been done since the last call to store().  Called by Conversion
+     * before each edit.
+     *
+     * @param conv conversion about to be edited
+     */
+    void journalConversion(Conversion conv) {
+        if (!isJournaling() || !journaledConvs.add(conv))
+            return;
+
+        Conversion convCopy = conv.getCopy();
+        convJournal.add(() -> conv.restoreFrom(convCopy));
+    }
+
+    /**
+     * Discard the conversion edit journal.
+     */
+    protected void clearConvJournal() {
+        convJournal.clear();
+        journaledConvs.clear();
+    }
+
+    /**
+     * Tree.restore() swaps the current and stored node arrays, so node
+     * references held by conversions may belong to either.  This maps
+     * such a reference onto the current node having the same number.
+     *
+     * @param node node belonging to current or stored node array
+     * @return current node with same number
+     */
+    public Node getCurrentNode(Node node) {
+        if (m_nodes == null || node.getNr() >= m_nodes.length)
+            return node;
+
+        return m_nodes[node.getNr()];
+    }
+
+    /**
+     * Mark the graph as being edited prior to the addition, removal or
+     * modification of a single conversion.  The clonal frame is unchanged,
+     * so only the region list of the conversion's locus is affected, and
+     * only in the vicinity of the conversion.
+     *
+     * @param conv conversion about to be edited
+     */
+    void startEditingConversion(Conversion conv) {
+        if (state != null)
+            super.startEditing(null);
+
+        editCount += 1;
+
+        if (regionLists != null && regionLists.containsKey(conv.getLocus()))
+            regionLists.get(conv.getLocus()).conversionEdited(conv);
+
+        if (affectedSiteList != null)
+            affectedSiteList.conversionEdited(conv);
     }
 
     @Override
@@ -1007,9 +1300,14 @@ public class ConversionGraph extends Tree {
         if (state != null)
             super.startEditing(operator);
 
+        editCount += 1;
+
         if (cfEventList != null)
             cfEventList.makeDirty();
 
+        if (affectedSiteList != null)
+            affectedSiteList.makeDirty();
+
         if (regionLists != null)
             for (RegionList regionList : regionLists.values())
                 regionList.makeDirty();
@@ -0,0 +1,294 @@
+/*
+ * Copyright (C) 2015 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bacter;
+
+import java.util.Arrays;
+
+/**
+ * Marginal tree stored as parallel arrays indexed by marginal node
+ * number.  Leaves share the numbers of the CF leaves they correspond to,
+ * while internal nodes take numbers between the leaf count and the CF
+ * node count in no particular order.  A missing parent or child is
+ * indicated by -1.
+ *
+ * The arrays are sized to the node count of the ACG and edited in place
+ * by MarginalTreeBuilder as it moves between regions.  Callers requiring BEAST
+ * Node objects may obtain a MarginalNode view of the tree, which is
+ * assembled on demand from a pool of nodes owned by the tree.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class FlatMarginalTree {
+
+    private final ConversionGraph acg;
+
+    public final int[] parent, left, right;
+    public final double[] height;
+
+    /**
+     * Number of CF node corresponding to each marginal node, or -1 if
+     * there is no such node.
+     */
+    public final int[] cfNodeNr;
+
+    /**
+     * Node numbers in order of increasing height, so that children
+     * precede their parents.
+     */
+    public final int[] postOrder;
+
+    private int nodeCount;
+    private int root = -1;
+
+    private final MarginalNode[] viewNodes;
+    private boolean viewValid;
+
+    /**
+     * Construct an empty tree with space for the marginal trees of the
+     * given ACG.
+     *
+     * @param acg conversion graph
+     */
+    public FlatMarginalTree(ConversionGraph acg) {
+        this.acg = acg;
+
+        int n = acg.getNodeCount();
+        parent = new int[n];
+        left = new int[n];
+        right = new int[n];
+        height = new double[n];
+        cfNodeNr = new int[n];
+        postOrder = new int[n];
+        viewNodes = new MarginalNode[n];
+    }
+
+    /**
+     * @return number of nodes in tree
+     */
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    /**
+     * @return number of root node
+     */
+    public int getRoot() {
+        return root;
+    }
+
+    /**
+     * @param nr node number
+     * @return true if node is a leaf
+     */
+    public boolean isLeaf(int nr) {
+        return left[nr] < 0;
+    }
+
+    /**
+     * @param nr node number
+     * @return true if node is the root
+     */
+    public boolean isRoot(int nr) {
+        return parent[nr] < 0;
+    }
+
+    /**
+     * @param nr number of non-root node
+     * @return length of edge above node
+     */
+    public double getLength(int nr) {
+        return height[parent[nr]] - height[nr];
+    }
+
+    /**
+     * Remove all nodes.
+     */
+    void clear() {
+        nodeCount = 0;
+        root = -1;
+        viewValid = false;
+    }
+
+    /**
+     * Add a leaf.
+     *
+     * @param nr node number (equal to that of CF leaf)
+     * @param leafHeight height of leaf
+     */
+    void addLeaf(int nr, double leafHeight) {
+        addNode(nr, -1, -1, nr, leafHeight);
+    }
+
+    /**
+     * Add an internal node above two existing nodes, which become its
+     * children.
+     *
+     * @param nr node number
+     * @param leftNr number of left child
+     * @param rightNr number of right child
+     * @param cfNr number of corresponding CF node, or -1
+     * @param nodeHeight height of node
+     */
+    void addInternalNode(int nr, int leftNr, int rightNr, int cfNr, double nodeHeight) {
+        addNode(nr, leftNr, rightNr, cfNr, nodeHeight);
+        parent[leftNr] = nr;
+        parent[rightNr] = nr;
+    }
+
+    private void addNode(int nr, int leftNr, int rightNr, int cfNr, double nodeHeight) {
+        parent[nr] = -1;
+        left[nr] = leftNr;
+        right[nr] = rightNr;
+        cfNodeNr[nr] = cfNr;
+        height[nr] = nodeHeight;
+
+        int idx = searchPostOrder(nodeHeight, false);
+        System.arraycopy(postOrder, idx, postOrder, idx+1, nodeCount-idx);
+        postOrder[idx] = nr;
+        nodeCount += 1;
+
+        viewValid = false;
+    }
+
+    /**
+     * Remove an internal node.  The links between the node and its
+     * parent and children are left for the caller to replace.
+     *
+     * @param nr node number
+     */
+    void removeInternalNode(int nr) {
+        int idx = searchPostOrder(height[nr], true);
+        while (postOrder[idx] != nr)
+            idx += 1;
+
+        System.arraycopy(postOrder, idx+1, postOrder, idx, nodeCount-idx-1);
+        nodeCount -= 1;
+
+        viewValid = false;
+    }
+
+    /**
+     * @param nodeHeight height to locate
+     * @param inclusive if true, include nodes of height nodeHeight
+     * @return index of first element of postOrder whose node height is
+     * greater than (or equal to, if inclusive) nodeHeight
+     */
+    private int searchPostOrder(double nodeHeight, boolean inclusive) {
+        int lo = 0, hi = nodeCount;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            double midHeight = height[postOrder[mid]];
+            if (midHeight < nodeHeight || (!inclusive && midHeight == nodeHeight))
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+
+        return lo;
+    }
+
+    /**
+     * Replace a child of an internal node.
+     *
+     * @param nr node number
+     * @param childNr number of current child
+     * @param newChildNr number of replacement child
+     */
+    void replaceChild(int nr, int childNr, int newChildNr) {
+        if (left[nr] == childNr)
+            left[nr] = newChildNr;
+        else
+            right[nr] = newChildNr;
+
+        parent[newChildNr] = nr;
+        viewValid = false;
+    }
+
+    /**
+     * Mark the given node as the root.
+     *
+     * @param nr node number
+     */
+    void setRoot(int nr) {
+        root = nr;
+        parent[nr] = -1;
+        viewValid = false;
+    }
+
+    /**
+     * Obtain a MarginalNode view of the tree.  The view is rebuilt when
+     * first requested following a change to the tree, reusing the same
+     * node objects, and must not be modified.
+     *
+     * @return root of view
+     */
+    public MarginalNode getRootNode() {
+        return getNode(root);
+    }
+
+    /**
+     * @param nr node number
+     * @return node of MarginalNode view of the tree
+     */
+    public synchronized MarginalNode getNode(int nr) {
+        if (!viewValid) {
+            buildView();
+            viewValid = true;
+        }
+
+        return viewNodes[nr];
+    }
+
+    private void buildView() {
+        for (int i=0; i<nodeCount; i++) {
+            int nr = postOrder[i];
+
+            if (viewNodes[nr] == null)
+                viewNodes[nr] = new MarginalNode();
+
+            MarginalNode node = viewNodes[nr];
+            node.removeAllChildren(false);
+            node.setParent(null);
+            node.setNr(nr);
+            node.setHeight(height[nr]);
+            node.cfNodeNr = cfNodeNr[nr];
+
+            if (isLeaf(nr)) {
+                node.setID(acg.getNode(nr).getID());
+            } else {
+                node.setID(null);
+                node.addChild(viewNodes[left[nr]]);
+                node.addChild(viewNodes[right[nr]]);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return nodeCount > 0 ? getRootNode().toString() : "";
+    }
+
+    /**
+     * @return string representation of node number arrays, for debugging
+     */
+    String toArrayString() {
+        return "parent=" + Arrays.toString(Arrays.copyOf(parent, nodeCount))
+                + " left=" + Arrays.toString(Arrays.copyOf(left, nodeCount))
+                + " right=" + Arrays.toString(Arrays.copyOf(right, nodeCount));
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2015 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bacter;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Pool of interned (hash-consed) descendant leaf sets.  The pool holds
+ * a single canonical instance of each distinct set, so that sets obtained
+ * from the same pool are equal exactly when they are the same object.
+ * Sets obtained from a pool must never be modified.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class LeafSetPool {
+
+    private final Map<BitSet, BitSet> pool = new HashMap<>();
+    private BitSet[] leaves = new BitSet[0];
+    private final BitSet scratch = new BitSet();
+
+    /**
+     * @param set leaf set
+     * @return canonical instance of an equal set
+     */
+    public BitSet intern(BitSet set) {
+        BitSet canonical = pool.get(set);
+        if (canonical == null) {
+            canonical = (BitSet)set.clone();
+            pool.put(canonical, canonical);
+        }
+
+        return canonical;
+    }
+
+    /**
+     * @param nodeNr number of leaf node
+     * @return canonical set containing only the given leaf
+     */
+    public BitSet getLeaf(int nodeNr) {
+        if (nodeNr >= leaves.length) {
+            BitSet[] newLeaves = new BitSet[nodeNr + 1];
+            System.arraycopy(leaves, 0, newLeaves, 0, leaves.length);
+            leaves = newLeaves;
+        }
+
+        if (leaves[nodeNr] == null) {
+            scratch.clear();
+            scratch.set(nodeNr);
+            leaves[nodeNr] = intern(scratch);
+        }
+
+        return leaves[nodeNr];
+    }
+
+    /**
+     * Obtain the union of two sets.  No allocation takes place unless
+     * the union has not been seen before.
+     *
+     * @param set1 first set
+     * @param set2 second set
+     * @return canonical instance of the union
+     */
+    public BitSet getUnion(BitSet set1, BitSet set2) {
+        scratch.clear();
+        scratch.or(set1);
+        scratch.or(set2);
+
+        return intern(scratch);
+    }
+
+    /**
+     * @return number of distinct sets in pool
+     */
+    public int size() {
+        return pool.size();
+    }
+
+    /**
+     * Empty the pool.  Sets obtained previously remain valid, but are no
+     * longer canonical.
+     */
+    public void clear() {
+        pool.clear();
+        Arrays.fill(leaves, null);
+    }
+}
@@ -0,0 +1,524 @@
+/*
+ * Copyright (C) 2015 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bacter;
+
+import beast.evolution.tree.Node;
+
+import java.util.*;
+
+/**
+ * Incremental builder for the marginal trees of a locus.  Rather than
+ * sweeping through the ACG once per region, the builder keeps the
+ * marginal tree of the most recently requested conversion set together
+ * with the path taken through the clonal frame by each of its lineages,
+ * and edits these to obtain the tree for the next region.  When regions
+ * are visited from left to right this amounts to a single insertion or
+ * removal of a conversion per region boundary.
+ *
+ * Inserting or removing a conversion only affects the lineage present at
+ * its departure point.  This lineage is pruned from the tree at that
+ * point and then followed forward (i.e. into the past) from the arrival
+ * point or the departure point respectively, until it meets another
+ * lineage of the tree.  Only the CF edges along this path are visited.
+ * The clonal frame tree, obtained when no conversions are active, is
+ * assembled afresh only when the ACG is edited.
+ *
+ * The tree is written into the arrays of a FlatMarginalTree, so a tree
+ * returned by the builder is only valid until the next call to
+ * getMarginalTree().  Use MarginalTree if a persistent tree is required.
+ *
+ * Builders are not thread-safe.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class MarginalTreeBuilder {
+
+    /**
+     * Interval (lo, hi] of a CF edge occupied by a marginal lineage.
+     */
+    private static class Piece {
+        final int edge;
+        double lo, hi;
+
+        /**
+         * Number of marginal node whose parent edge includes this piece.
+         */
+        int owner;
+
+        Piece(int edge, double lo, double hi, int owner) {
+            this.edge = edge;
+            this.lo = lo;
+            this.hi = hi;
+            this.owner = owner;
+        }
+    }
+
+    private final ConversionGraph acg;
+
+    /**
+     * Edit count of ACG when the clonal frame tree was last assembled.
+     */
+    private long acgEditCount = -1;
+
+    /**
+     * Conversions active in the current tree.
+     */
+    private final Set<Conversion> activeConvs = new HashSet<>();
+
+    private final List<Conversion> toRemove = new ArrayList<>();
+
+    /**
+     * Pieces lying on the edge above each CF node, indexed by CF node
+     * number and ordered by height.  Pieces on the same edge never
+     * overlap.
+     */
+    private final List<List<Piece>> edgePieces = new ArrayList<>();
+
+    /**
+     * Pieces making up the edge above each marginal node, indexed by
+     * marginal node number and ordered by height.  The edge above the
+     * root ends with a piece extending to infinity on the CF root edge.
+     */
+    private final List<List<Piece>> lineagePaths = new ArrayList<>();
+
+    /**
+     * Internal marginal node numbers not currently in use.
+     */
+    private final int[] freeNodeNrs;
+    private int freeNodeCount;
+
+    /**
+     * Numbers of CF nodes whose parent edges carry a marginal lineage
+     * in the current tree.
+     */
+    private final BitSet ancestralCFNodes;
+
+    private final FlatMarginalTree marginalTree;
+
+    /**
+     * Construct a new builder for the given ACG.
+     *
+     * @param acg conversion graph from which marginal trees are derived
+     */
+    public MarginalTreeBuilder(ConversionGraph acg) {
+        this.acg = acg;
+
+        for (int i=0; i<acg.getNodeCount(); i++) {
+            edgePieces.add(new ArrayList<>());
+            lineagePaths.add(new ArrayList<>());
+        }
+
+        freeNodeNrs = new int[acg.getNodeCount()];
+        ancestralCFNodes = new BitSet(acg.getNodeCount());
+        marginalTree = new FlatMarginalTree(acg);
+    }
+
+    /**
+     * Obtain the marginal tree for the given region.  The returned tree
+     * is overwritten by subsequent calls.
+     *
+     * @param region region whose marginal tree is required
+     * @return marginal tree
+     */
+    public FlatMarginalTree getMarginalTree(Region region) {
+        return getMarginalTree(region.activeConversions);
+    }
+
+    /**
+     * Obtain the marginal tree for the given conversion set.  The
+     * returned tree is overwritten by subsequent calls.
+     *
+     * @param convSet set of conversions active in marginal tree
+     * @return marginal tree
+     */
+    public FlatMarginalTree getMarginalTree(Set<Conversion> convSet) {
+        if (acg.getEditCount() != acgEditCount)
+            buildClonalFrameTree();
+
+        toRemove.clear();
+        for (Conversion conv : activeConvs)
+            if (!convSet.contains(conv))
+                toRemove.add(conv);
+
+        for (Conversion conv : toRemove)
+            removeConversion(conv);
+
+        if (activeConvs.size() < convSet.size()) {
+            for (Conversion conv : convSet)
+                if (!activeConvs.contains(conv))
+                    addConversion(conv);
+        }
+
+        return marginalTree;
+    }
+
+    /**
+     * Obtain the numbers of the CF nodes whose parent edges carried
+     * ancestral material in the most recently built marginal tree.  The
+     * marginal tree is unaffected by changes to CF nodes outside this
+     * set, provided their children are also outside it.  The returned
+     * set is overwritten by subsequent calls to getMarginalTree().
+     *
+     * @return set of CF node numbers
+     */
+    public BitSet getAncestralCFNodes() {
+        return ancestralCFNodes;
+    }
+
+    /**
+     * Discard the current tree and replace it with the clonal frame,
+     * in which each marginal node shares the number of its CF node.
+     */
+    private void buildClonalFrameTree() {
+        activeConvs.clear();
+        ancestralCFNodes.clear();
+        marginalTree.clear();
+        freeNodeCount = 0;
+
+        for (int i=0; i<acg.getNodeCount(); i++) {
+            edgePieces.get(i).clear();
+            lineagePaths.get(i).clear();
+        }
+
+        for (CFEventList.Event event : acg.getCFEvents()) {
+            Node cfNode = event.getNode();
+            int nr = cfNode.getNr();
+
+            if (cfNode.isLeaf())
+                marginalTree.addLeaf(nr, cfNode.getHeight());
+            else
+                marginalTree.addInternalNode(nr,
+                        cfNode.getLeft().getNr(), cfNode.getRight().getNr(),
+                        nr, cfNode.getHeight());
+
+            addPiece(nr, nr, cfNode.getHeight(), getEdgeTop(cfNode));
+        }
+
+        marginalTree.setRoot(acg.getRoot().getNr());
+        acgEditCount = acg.getEditCount();
+    }
+
+    /**
+     * Edit the tree to account for the addition of a conversion to the
+     * active set.
+     *
+     * @param conv conversion to add
+     */
+    private void addConversion(Conversion conv) {
+        int edgeNr = conv.getNode1().getNr();
+        Piece piece = getPiece(edgeNr, conv.getHeight1());
+
+        activeConvs.add(conv);
+
+        if (piece == null || piece.hi == conv.getHeight1())
+            return;
+
+        int lineage = piece.owner;
+        pruneLineage(lineage, conv.getHeight1());
+        extendLineage(lineage, conv.getNode2().getNr(), conv.getHeight2());
+    }
+
+    /**
+     * Edit the tree to account for the removal of a conversion from the
+     * active set.
+     *
+     * @param conv conversion to remove
+     */
+    private void removeConversion(Conversion conv) {
+        int edgeNr = conv.getNode1().getNr();
+        Piece piece = getPiece(edgeNr, conv.getHeight1());
+
+        activeConvs.remove(conv);
+
+        if (piece == null)
+            return;
+
+        int lineage = piece.owner;
+        pruneLineage(lineage, conv.getHeight1());
+        extendLineage(lineage, edgeNr, conv.getHeight1());
+    }
+
+    /**
+     * Detach a lineage from the tree by truncating its path at the given
+     * height.  Its parent is removed, with the sibling taking over the
+     * parent's path.
+     *
+     * @param lineage number of marginal node
+     * @param height height at which to truncate the path
+     */
+    private void pruneLineage(int lineage, double height) {
+        List<Piece> path = lineagePaths.get(lineage);
+        while (!path.isEmpty() && path.get(path.size()-1).lo >= height)
+            removePiece(path.remove(path.size()-1));
+
+        if (!path.isEmpty() && path.get(path.size()-1).hi > height)
+            path.get(path.size()-1).hi = height;
+
+        int parentNr = marginalTree.parent[lineage];
+        if (parentNr < 0)
+            return;
+
+        int siblingNr = marginalTree.left[parentNr] == lineage
+                ? marginalTree.right[parentNr]
+                : marginalTree.left[parentNr];
+
+        List<Piece> siblingPath = lineagePaths.get(siblingNr);
+        for (Piece piece : lineagePaths.get(parentNr)) {
+            Piece last = siblingPath.get(siblingPath.size()-1);
+            if (last.edge == piece.edge && last.hi == piece.lo) {
+                removePiece(piece);
+                last.hi = piece.hi;
+            } else {
+                piece.owner = siblingNr;
+                siblingPath.add(piece);
+            }
+        }
+        lineagePaths.get(parentNr).clear();
+
+        int grandparentNr = marginalTree.parent[parentNr];
+        if (grandparentNr >= 0)
+            marginalTree.replaceChild(grandparentNr, parentNr, siblingNr);
+        else
+            marginalTree.setRoot(siblingNr);
+
+        marginalTree.removeInternalNode(parentNr);
+        freeNodeNrs[freeNodeCount++] = parentNr;
+    }
+
+    /**
+     * Follow a detached lineage into the past from the given point on
+     * the clonal frame, recording its path, until it coalesces with
+     * another lineage of the tree or becomes the root.
+     *
+     * @param lineage number of marginal node
+     * @param edgeNr number of CF node below starting edge
+     * @param height starting height
+     */
+    private void extendLineage(int lineage, int edgeNr, double height) {
+        while (true) {
+            Node edgeNode = acg.getNode(edgeNr);
+            double edgeTop = getEdgeTop(edgeNode);
+
+            // Next active conversion departing from this edge
+            Conversion departure = null;
+            for (Conversion conv : acg.getDepartingConversions(edgeNode)) {
+                if (conv.getHeight1() > height && activeConvs.contains(conv)) {
+                    departure = conv;
+                    break;
+                }
+            }
+            double departureHeight = departure != null
+                    ? departure.getHeight1()
+                    : Double.POSITIVE_INFINITY;
+
+            // Next lineage present on this edge
+            List<Piece> pieces = edgePieces.get(edgeNr);
+            int idx = getFirstPieceIndex(pieces, height, false);
+            if (idx < pieces.size()) {
+                Piece other = pieces.get(idx);
+                double coalescenceHeight = Math.max(height, other.lo);
+
+                if (coalescenceHeight < departureHeight) {
+                    addPiece(lineage, edgeNr, height, coalescenceHeight);
+
+                    // Lineage present on the edge is listed first, as
+                    // in MarginalTree.
+                    if (other.lo < height)
+                        coalesce(other.owner, lineage, other.owner, coalescenceHeight, -1);
+                    else
+                        coalesce(lineage, other.owner, other.owner, coalescenceHeight, -1);
+                    return;
+                }
+            }
+
+            if (departure != null && departureHeight < edgeTop) {
+                addPiece(lineage, edgeNr, height, departureHeight);
+                edgeNr = departure.getNode2().getNr();
+                height = departure.getHeight2();
+                continue;
+            }
+
+            addPiece(lineage, edgeNr, height, edgeTop);
+
+            if (edgeNode.isRoot()) {
+                marginalTree.setRoot(lineage);
+                return;
+            }
+
+            // Coalesce at the CF node if its other child edge is occupied
+            Node parentNode = edgeNode.getParent();
+            boolean isLeft = parentNode.getLeft().getNr() == edgeNr;
+            int siblingEdgeNr = isLeft
+                    ? parentNode.getRight().getNr()
+                    : parentNode.getLeft().getNr();
+
+            List<Piece> siblingPieces = edgePieces.get(siblingEdgeNr);
+            if (!siblingPieces.isEmpty()
+                    && siblingPieces.get(siblingPieces.size()-1).hi >= edgeTop) {
+                int siblingLineage = siblingPieces.get(siblingPieces.size()-1).owner;
+                if (isLeft)
+                    coalesce(lineage, siblingLineage, siblingLineage, edgeTop, parentNode.getNr());
+                else
+                    coalesce(siblingLineage, lineage, siblingLineage, edgeTop, parentNode.getNr());
+                return;
+            }
+
+            edgeNr = parentNode.getNr();
+            height = edgeTop;
+        }
+    }
+
+    /**
+     * Add a node to the tree joining a detached lineage to a lineage of
+     * the tree.  The new node takes over the part of the latter's path
+     * lying above the coalescence.
+     *
+     * @param leftNr number of left child
+     * @param rightNr number of right child
+     * @param attachedNr number of child already attached to the tree
+     * @param height height of new node
+     * @param cfNr number of corresponding CF node, or -1
+     */
+    private void coalesce(int leftNr, int rightNr, int attachedNr,
+                          double height, int cfNr) {
+        if (freeNodeCount == 0)
+            throw new IllegalStateException("Programmer error: no free " +
+                    "node number available in marginal tree builder.");
+
+        int nr = freeNodeNrs[--freeNodeCount];
+
+        List<Piece> attachedPath = lineagePaths.get(attachedNr);
+        List<Piece> path = lineagePaths.get(nr);
+
+        int idx = attachedPath.size();
+        while (idx > 0 && attachedPath.get(idx-1).lo >= height)
+            idx -= 1;
+
+        if (idx > 0 && attachedPath.get(idx-1).hi > height) {
+            Piece straddling = attachedPath.get(idx-1);
+            Piece upper = new Piece(straddling.edge, height, straddling.hi, nr);
+            straddling.hi = height;
+
+            List<Piece> pieces = edgePieces.get(straddling.edge);
+            pieces.add(getFirstPieceIndex(pieces, height, true) + 1, upper);
+            path.add(upper);
+        }
+
+        for (Piece piece : attachedPath.subList(idx, attachedPath.size())) {
+            piece.owner = nr;
+            path.add(piece);
+        }
+        attachedPath.subList(idx, attachedPath.size()).clear();
+
+        int grandparentNr = marginalTree.parent[attachedNr];
+        marginalTree.addInternalNode(nr, leftNr, rightNr, cfNr, height);
+        if (grandparentNr >= 0)
+            marginalTree.replaceChild(grandparentNr, attachedNr, nr);
+        else
+            marginalTree.setRoot(nr);
+    }
+
+    /**
+     * Extend the path of a lineage, merging the new piece with the last
+     * one where the two are contiguous.
+     *
+     * @param lineage number of marginal node
+     * @param edgeNr number of CF node below edge
+     * @param lo bottom of new piece
+     * @param hi top of new piece
+     */
+    private void addPiece(int lineage, int edgeNr, double lo, double hi) {
+        if (hi <= lo)
+            return;
+
+        List<Piece> path = lineagePaths.get(lineage);
+        if (!path.isEmpty()) {
+            Piece last = path.get(path.size()-1);
+            if (last.edge == edgeNr && last.hi == lo) {
+                last.hi = hi;
+                return;
+            }
+        }
+
+        Piece piece = new Piece(edgeNr, lo, hi, lineage);
+        List<Piece> pieces = edgePieces.get(edgeNr);
+        pieces.add(getFirstPieceIndex(pieces, lo, false), piece);
+        path.add(piece);
+
+        ancestralCFNodes.set(edgeNr);
+    }
+
+    /**
+     * Remove a piece from the list belonging to its edge.
+     *
+     * @param piece piece to remove
+     */
+    private void removePiece(Piece piece) {
+        List<Piece> pieces = edgePieces.get(piece.edge);
+        pieces.remove(getFirstPieceIndex(pieces, piece.lo, false));
+
+        if (pieces.isEmpty())
+            ancestralCFNodes.clear(piece.edge);
+    }
+
+    /**
+     * @param edgeNr number of CF node below edge
+     * @param height height on edge
+     * @return piece on edge with lo &lt; height &lt;= hi, or null if the
+     * edge is unoccupied at that height
+     */
+    private Piece getPiece(int edgeNr, double height) {
+        List<Piece> pieces = edgePieces.get(edgeNr);
+        int idx = getFirstPieceIndex(pieces, height, true);
+        if (idx < pieces.size() && pieces.get(idx).lo < height)
+            return pieces.get(idx);
+
+        return null;
+    }
+
+    /**
+     * @param pieces height-ordered pieces on an edge
+     * @param height height to locate
+     * @param inclusive if true, include pieces ending at height
+     * @return index of first piece ending above (or at, if inclusive)
+     * the given height
+     */
+    private int getFirstPieceIndex(List<Piece> pieces, double height, boolean inclusive) {
+        int lo = 0, hi = pieces.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            double midHi = pieces.get(mid).hi;
+            if (midHi < height || (!inclusive && midHi == height))
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+
+        return lo;
+    }
+
+    /**
+     * @param node CF node
+     * @return height of top of edge above node
+     */
+    private double getEdgeTop(Node node) {
+        return node.isRoot()
+                ? Double.POSITIVE_INFINITY
+                : node.getParent().getHeight();
+    }
+}
@@ -22,7 +22,10 @@ import java.util.Set;
 
 /**
  * Represents a contiguous region in which a single set of conversions is
- * active.
+ * active.  Regions belonging to a RegionList carry an integer ID which
+ * is unique among the regions of that list's current and stored states,
+ * and which is retained for as long as an equal region remains in
+ * either.
  *
  * @author Tim Vaughan <tgvaughan@gmail.com>
  */
@@ -33,6 +36,11 @@ public class Region {
 
     final int hashCodeCached;
 
+    /**
+     * ID assigned by the owning RegionList, or -1 if unassigned.
+     */
+    int id = -1;
+
     public Region(int leftBoundary, int rightBoundary, Set<Conversion> activeConversions) {
         this.leftBoundary = leftBoundary;
         this.rightBoundary = rightBoundary;
@@ -45,6 +53,13 @@ public class Region {
         hashCodeCached = result;
     }
 
+    /**
+     * @return ID assigned by the owning RegionList, or -1 if unassigned
+     */
+    public int getID() {
+        return id;
+    }
+
     public int getRegionLength() {
         return rightBoundary - leftBoundary;
     }
@@ -31,9 +31,43 @@ import java.util.function.Consumer;
  */
 public class RegionList {
 
-    private final List<Region> regions;
+    private List<Region> regions, storedRegions;
     private Locus locus;
-    private boolean dirty;
+    private boolean dirty, storedDirty;
+
+    /**
+     * Conversions edited since the list was last updated, together with
+     * their site ranges at the time of their first edit.
+     */
+    private final List<Conversion> editedConvs = new ArrayList<>();
+    private final Set<Conversion> editedConvSet =
+            Collections.newSetFromMap(new IdentityHashMap<>());
+    private int[] editedSpans = new int[16];
+
+    /**
+     * Conversions affecting at least one site when the current and
+     * stored lists were built.
+     */
+    private Set<Conversion> usefulConvs = Collections.emptySet(),
+            storedUsefulConvs = Collections.emptySet();
+
+    /**
+     * Regions belonging to the current or stored region lists, keyed by
+     * themselves.  Used to hand out the existing Region object (and
+     * hence its ID) whenever an equal region is rebuilt.
+     */
+    private final Map<Region, Region> knownRegions = new HashMap<>();
+
+    /**
+     * IDs released by regions which have left both region lists.
+     */
+    private final Deque<Integer> freeIDs = new ArrayDeque<>();
+    private int nextID;
+
+    /**
+     * Current regions indexed by ID.
+     */
+    private Region[] regionsByID = new Region[0], storedRegionsByID = new Region[0];
 
     /**
      * Ancestral conversion graph this list belongs to.
@@ -52,7 +86,9 @@ public class RegionList {
         this.acg = acg;
         this.locus = locus;
         regions = new ArrayList<>();
+        storedRegions = regions;
         dirty = true;
+        storedDirty = true;
     }
 
     /**
@@ -78,23 +114,296 @@ public class RegionList {
     }
 
     /**
-     * Mark the region list as dirty.
+     * Determine whether the given region belongs to the current region
+     * list.  This involves neither hashing nor equality tests.
+     *
+     * @param region region
+     * @return true iff region is an element of the current list
+     */
+    public boolean contains(Region region) {
+        updateRegionList();
+
+        return region.id >= 0 && region.id < regionsByID.length
+                && regionsByID[region.id] == region;
+    }
+
+    /**
+     * Region IDs are non-negative and less than this bound, which is at
+     * most the number of regions in the current and stored lists.
+     *
+     * @return upper bound on region IDs
+     */
+    public int getIDBound() {
+        return nextID;
+    }
+
+    /**
+     * Mark the region list as dirty, requiring a complete rebuild.
      */
     public void makeDirty() {
         dirty = true;
     }
-   
+
+    /**
+     * Record that a conversion on this list's locus is about to be edited,
+     * added or removed.  Only regions overlapping the conversion's site
+     * range before or after the edit will be re-split.
+     *
+     * @param conv conversion
+     */
+    public void conversionEdited(Conversion conv) {
+        if (dirty || !editedConvSet.add(conv))
+            return;
+
+        int i = editedConvs.size();
+        if (2*i + 2 > editedSpans.length)
+            editedSpans = Arrays.copyOf(editedSpans, 4*i + 4);
+
+        editedSpans[2*i] = conv.getStartSite();
+        editedSpans[2*i + 1] = conv.getEndSite();
+        editedConvs.add(conv);
+    }
+
+    /**
+     * @return true if the region list must be updated before use
+     */
+    public boolean isDirty() {
+        return dirty || !editedConvs.isEmpty();
+    }
+
+    /**
+     * Record the current region list as the stored list.  Lists are
+     * never modified once built, so this is a constant-time operation.
+     */
+    public void store() {
+        storedRegions = regions;
+        storedRegionsByID = regionsByID;
+        storedUsefulConvs = usefulConvs;
+        storedDirty = isDirty();
+    }
+
+    /**
+     * Reinstate the stored region list, together with the Region objects
+     * and IDs it contained.  The ACG must itself have been restored.
+     */
+    public void restore() {
+        regions = storedRegions;
+        regionsByID = storedRegionsByID;
+        usefulConvs = storedUsefulConvs;
+        dirty = storedDirty;
+        clearEdits();
+    }
+
+    private void clearEdits() {
+        editedConvs.clear();
+        editedConvSet.clear();
+    }
+
+    /**
+     * Obtain the region covering the given span with the given active
+     * conversions, reusing the existing region object if an equal region
+     * belongs to the current or stored list.
+     *
+     * @param leftBoundary first site of region
+     * @param rightBoundary site following region
+     * @param activeConversions conversions active within region
+     * @return region
+     */
+    private Region getRegion(int leftBoundary, int rightBoundary,
+                             Set<Conversion> activeConversions) {
+        Region region = new Region(leftBoundary, rightBoundary, activeConversions);
+
+        Region existing = knownRegions.get(region);
+        if (existing != null)
+            return existing;
+
+        region.id = freeIDs.isEmpty() ? nextID++ : freeIDs.pop();
+        knownRegions.put(region, region);
+
+        return region;
+    }
+
+    /**
+     * Release the IDs of regions belonging to neither the current nor
+     * the stored list.
+     */
+    private void releaseRegions() {
+        BitSet liveIDs = new BitSet(nextID);
+        for (Region region : regions)
+            liveIDs.set(region.id);
+        if (!storedDirty)
+            for (Region region : storedRegions)
+                liveIDs.set(region.id);
+
+        Iterator<Region> it = knownRegions.values().iterator();
+        while (it.hasNext()) {
+            Region region = it.next();
+            if (!liveIDs.get(region.id)) {
+                freeIDs.push(region.id);
+                it.remove();
+            }
+        }
+
+        regionsByID = new Region[nextID];
+        for (Region region : regions)
+            regionsByID[region.id] = region;
+    }
+
     /**
      * Assemble list of regions of contiguous sites that possess a single
-     * marginal tree.
+     * marginal tree.  Following a clonal frame change the list is rebuilt
+     * from scratch.  Otherwise only the spans of the existing list
+     * affected by edited conversions, or by conversions which have gained
+     * or lost all affected sites, are re-split.
      */
     public void updateRegionList() {
-        if (!dirty)
+        if (!isDirty())
             return;
 
-        regions.clear();
+        AffectedSiteList affectedSiteList = acg.getAffectedSiteList();
+        Set<Conversion> newUsefulConvs = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Conversion conv : acg.getConversions(locus))
+            if (affectedSiteList.getAffectedSiteCount(conv) > 0)
+                newUsefulConvs.add(conv);
+
+        // The list is replaced rather than modified, as it may also be
+        // the stored list.
+        List<Region> newRegions = new ArrayList<>();
+
+        if (dirty) {
+            splitRange(0, locus.getSiteCount(), newUsefulConvs, newRegions);
+        } else {
+            List<int[]> windows = getEditWindows(newUsefulConvs);
+
+            int r = 0;
+            for (int[] window : windows) {
+                while (regions.get(r).rightBoundary <= window[0])
+                    newRegions.add(regions.get(r++));
+
+                splitRange(window[0], window[1], newUsefulConvs, newRegions);
+
+                while (r < regions.size() && regions.get(r).rightBoundary <= window[1])
+                    r += 1;
+            }
+
+            while (r < regions.size())
+                newRegions.add(regions.get(r++));
+        }
+
+        regions = newRegions;
+        usefulConvs = newUsefulConvs;
+        releaseRegions();
+
+        clearEdits();
+        dirty = false;
+    }
+
+    /**
+     * Assemble the disjoint site ranges of the current region list which
+     * must be re-split.  Each range covers the old and new site ranges of
+     * an edited conversion, or the site range of a conversion whose
+     * usefulness has changed, and is widened to the nearest region
+     * boundaries which cannot have been removed by the edits: those
+     * lying strictly outside the ranges of all such conversions.
+     *
+     * @param newUsefulConvs conversions now affecting at least one site
+     * @return sorted list of disjoint [start, end) ranges
+     */
+    private List<int[]> getEditWindows(Set<Conversion> newUsefulConvs) {
+        List<int[]> windows = new ArrayList<>();
+
+        for (int i=0; i<editedConvs.size(); i++) {
+            windows.add(getWindow(editedSpans[2*i], editedSpans[2*i + 1]));
+
+            Conversion conv = editedConvs.get(i);
+            windows.add(getWindow(conv.getStartSite(), conv.getEndSite()));
+        }
+
+        for (Conversion conv : newUsefulConvs)
+            if (!usefulConvs.contains(conv))
+                windows.add(getWindow(conv.getStartSite(), conv.getEndSite()));
+
+        for (Conversion conv : usefulConvs)
+            if (!newUsefulConvs.contains(conv))
+                windows.add(getWindow(conv.getStartSite(), conv.getEndSite()));
 
-        AffectedSiteList affectedSiteList = new AffectedSiteList(acg);
+        windows.sort(Comparator.comparingInt((int[] w) -> w[0]));
+
+        // Merge windows whose interiors overlap
+        List<int[]> merged = new ArrayList<>();
+        for (int[] window : windows) {
+            int[] last = merged.isEmpty() ? null : merged.get(merged.size()-1);
+            if (last != null && window[0] < last[1])
+                last[1] = Math.max(last[1], window[1]);
+            else
+                merged.add(window);
+        }
+
+        return merged;
+    }
+
+    /**
+     * Find the range between the greatest region boundary below the
+     * given site range and the least boundary above the site following
+     * it.  The boundaries at either end of the site range itself are
+     * therefore contained in its interior.
+     *
+     * @param startSite first site of conversion
+     * @param endSite last site of conversion
+     * @return window as [start, end)
+     */
+    private int[] getWindow(int startSite, int endSite) {
+        int siteCount = locus.getSiteCount();
+        startSite = Math.max(0, Math.min(startSite, siteCount - 1));
+        endSite = Math.max(startSite, Math.min(endSite, siteCount - 1));
+
+        int[] window = new int[2];
+
+        Region region = regions.get(findRegion(startSite));
+        if (region.leftBoundary < startSite)
+            window[0] = region.leftBoundary;
+        else if (region.leftBoundary > 0)
+            window[0] = regions.get(findRegion(region.leftBoundary - 1)).leftBoundary;
+        else
+            window[0] = 0;
+
+        if (endSite + 1 < siteCount)
+            window[1] = regions.get(findRegion(endSite + 1)).rightBoundary;
+        else
+            window[1] = siteCount;
+
+        return window;
+    }
+
+    /**
+     * @param site site
+     * @return index of region in current list containing site
+     */
+    private int findRegion(int site) {
+        int lo = 0, hi = regions.size() - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (regions.get(mid).leftBoundary <= site)
+                lo = mid;
+            else
+                hi = mid - 1;
+        }
+
+        return lo;
+    }
+
+    /**
+     * Split a range of sites into regions at the boundaries of the useful
+     * conversions overlapping it.  The range must begin and end at
+     * boundaries of the resulting region list.
+     *
+     * @param start first site of range
+     * @param end site following range
+     * @param newUsefulConvs conversions affecting at least one site
+     * @param newRegions list to which regions are appended
+     */
+    private void splitRange(int start, int end, Set<Conversion> newUsefulConvs,
+                            List<Region> newRegions) {
 
         /* Assemble lists of conversions ordered by start and end sites.
         Note that these are COPIES of the conversion objects attached
@@ -103,56 +412,52 @@ public class RegionList {
         objects in the likelihood code.
         */
         List<Conversion> convOrderedByStart = new ArrayList<>();
-        acg.getConversions(locus).forEach(conversion -> {
-            if (affectedSiteList.affectedSiteCount.get(conversion)>0)
-                convOrderedByStart.add(conversion.getCopy());
-        });
+        for (Conversion conv : acg.getConversions(locus)) {
+            if (newUsefulConvs.contains(conv)
+                    && conv.getStartSite() < end && conv.getEndSite() >= start)
+                convOrderedByStart.add(conv.getCopy());
+        }
         convOrderedByStart.sort(Comparator.comparingInt((Conversion o) -> o.startSite));
 
-        List<Conversion> convOrderedByEnd = new ArrayList<>();
-        convOrderedByEnd.addAll(convOrderedByStart);
+        List<Conversion> convOrderedByEnd = new ArrayList<>(convOrderedByStart);
         convOrderedByEnd.sort(Comparator.comparingInt((Conversion o) -> o.endSite));
 
         Set<Conversion> activeConversions = Sets.newHashSet();
 
-        int lastBoundary = 0;
+        int lastBoundary = start;
+        int nStarts = 0, nEnds = 0;
 
-        while (!convOrderedByStart.isEmpty() || !convOrderedByEnd.isEmpty()) {
+        while (nStarts < convOrderedByStart.size() || nEnds < convOrderedByEnd.size()) {
 
             int nextStart;
-            if (!convOrderedByStart.isEmpty())
-                nextStart = convOrderedByStart.get(0).getStartSite();
+            if (nStarts < convOrderedByStart.size())
+                nextStart = Math.max(start, convOrderedByStart.get(nStarts).getStartSite());
             else
                 nextStart = Integer.MAX_VALUE;
 
             int nextEnd;
-            if (!convOrderedByEnd.isEmpty())
-                nextEnd = convOrderedByEnd.get(0).getEndSite() + 1;
+            if (nEnds < convOrderedByEnd.size())
+                nextEnd = Math.min(end, convOrderedByEnd.get(nEnds).getEndSite() + 1);
             else
                 nextEnd = Integer.MAX_VALUE;
 
             int nextBoundary = Math.min(nextStart, nextEnd);
             if (nextBoundary > lastBoundary) {
-                Region region = new Region(lastBoundary, nextBoundary, activeConversions);
-                regions.add(region);
+                newRegions.add(getRegion(lastBoundary, nextBoundary, activeConversions));
             }
 
             if (nextStart < nextEnd) {
-                activeConversions.add(convOrderedByStart.get(0));
-                convOrderedByStart.remove(0);
+                activeConversions.add(convOrderedByStart.get(nStarts++));
                 lastBoundary = nextStart;
             } else {
-                activeConversions.remove(convOrderedByEnd.get(0));
-                convOrderedByEnd.remove(0);
+                activeConversions.remove(convOrderedByEnd.get(nEnds++));
                 lastBoundary = nextEnd;
             }
         }
 
-        if (lastBoundary < locus.getSiteCount()) {
-            Region region = new Region(lastBoundary, locus.getSiteCount(), new HashSet<>());
-            regions.add(region);
+        if (lastBoundary < end) {
+            newRegions.add(getRegion(lastBoundary, end,
+                    Collections.emptySet()));
         }
-
-        dirty = false;
     }
 }
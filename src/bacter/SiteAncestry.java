@@ -1,41 +1,41 @@
 package bacter;
 
+import bacter.util.IntRangeSet;
 import beast.evolution.tree.Node;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.BitSet;
-import java.util.List;
 
 /**
  * Class of objects representing the site ancestry of a given lineage.
  *
+ * Descendant leaf sets are compared by reference, so sets belonging to
+ * ancestries which are merged or extended must be obtained from a common
+ * LeafSetPool.  Ancestries are cleared and refilled by merge() and
+ * split(), allowing them to be reused as scratch buffers.
+ *
  * @author Tim Vaughan <tgvaughan@gmail.com>
  */
 public class SiteAncestry {
 
-    public List<Integer> siteRanges;
-    public List<BitSet> descendantLeaves;
+    public IntRangeSet siteRanges;
+    private BitSet[] descendantLeaves;
 
     public SiteAncestry() {
-        siteRanges = new ArrayList<>();
-        descendantLeaves = new ArrayList<>();
+        siteRanges = new IntRangeSet();
+        descendantLeaves = new BitSet[2];
     }
 
     public SiteAncestry(Node node, Locus locus) {
-        siteRanges = new ArrayList<>();
-        siteRanges.add(0);
-        siteRanges.add(locus.getSiteCount());
+        this();
 
-        descendantLeaves = new ArrayList<>();
         BitSet bitSet = new BitSet();
         bitSet.set(node.getNr());
-        descendantLeaves.add(bitSet);
+        addInterval(0, locus.getSiteCount(), bitSet);
     }
 
     public SiteAncestry(String string) {
-
-        siteRanges = new ArrayList<>();
-        descendantLeaves = new ArrayList<>();
+        this();
 
         string = string.replaceAll("\\s+","");
 
@@ -49,32 +49,89 @@ public class SiteAncestry {
             String[] split2 = aSplit1.split("]\\{");
             String[] rangeStr = split2[0].split(",");
 
-            siteRanges.add(Integer.parseInt(rangeStr[0]));
-            siteRanges.add(Integer.parseInt(rangeStr[1]));
-
             String[] bitStr = split2[1].split(",");
             BitSet theseDecendents = new BitSet();
             for (String aBitStr : bitStr) {
                 theseDecendents.set(Integer.parseInt(aBitStr));
             }
-            descendantLeaves.add(theseDecendents);
+
+            append(Integer.parseInt(rangeStr[0]),
+                    Integer.parseInt(rangeStr[1]),
+                    theseDecendents);
         }
     }
 
     public int getIntervalCount() {
-        return descendantLeaves.size();
+        return siteRanges.getRangeCount();
+    }
+
+    /**
+     * @param i interval index
+     * @return set of leaves descended from the sites of interval i
+     */
+    public BitSet getDescendantLeaves(int i) {
+        return descendantLeaves[i];
+    }
+
+    /**
+     * Remove all intervals.
+     */
+    public void clear() {
+        Arrays.fill(descendantLeaves, 0, getIntervalCount(), null);
+        siteRanges.clear();
     }
 
+    /**
+     * Add an interval, extending the final interval instead if it ends
+     * at x and has the same (identical) descendant leaf set.
+     *
+     * @param x left-hand boundary of interval
+     * @param y right-hand boundary of interval
+     * @param dl descendant leaf set
+     */
     public void addInterval(int x, int y, BitSet dl) {
-        if (getIntervalCount()>0
-                && siteRanges.get(siteRanges.size()-1)==x
-                && descendantLeaves.get(descendantLeaves.size()-1).equals(dl))
-            siteRanges.set(siteRanges.size()-1, y);
-        else {
-            siteRanges.add(x);
-            siteRanges.add(y);
-            descendantLeaves.add(dl);
-        }
+        int n = getIntervalCount();
+        if (n>0
+                && siteRanges.getLastEnd()==x
+                && descendantLeaves[n-1] == dl)
+            siteRanges.setLastEnd(y);
+        else
+            append(x, y, dl);
+    }
+
+    private void append(int x, int y, BitSet dl) {
+        int n = getIntervalCount();
+        if (n == descendantLeaves.length)
+            descendantLeaves = Arrays.copyOf(descendantLeaves, 2*n);
+
+        siteRanges.add(x, y);
+        descendantLeaves[n] = dl;
+    }
+
+    /**
+     * @param pool pool in which to intern leaf sets
+     * @return copy of this ancestry whose leaf sets are interned in pool
+     */
+    private SiteAncestry intern(LeafSetPool pool) {
+        SiteAncestry res = new SiteAncestry();
+        for (int i=0; i<getIntervalCount(); i++)
+            res.addInterval(siteRanges.getStart(i), siteRanges.getEnd(i),
+                    pool.intern(descendantLeaves[i]));
+
+        return res;
+    }
+
+    /**
+     * Computes the union between this ancestry and another, as described
+     * below.  Leaf sets of the two ancestries need not be interned.
+     *
+     * @param other SA with which to merge
+     * @param coalescence object in which to record coalescences
+     * @param union SA object in which to record union
+     */
+    public void merge(SiteAncestry other, Coalescence coalescence, SiteAncestry union) {
+        LeafSetPool pool = new LeafSetPool();
+        intern(pool).merge(other.intern(pool), coalescence, union, pool);
     }
 
     /**
@@ -88,11 +145,18 @@ public class SiteAncestry {
      * as this implies that sites [5,10] of sample 0 coexist in two
      * contemporaneoous lineages.
      *
+     * Any existing contents of coalescence and union are discarded.
+     *
      * @param other SA with which to merge
-     * @param coalescence empty SA object in which to record coalescences
-     * @param union empty SA object in which to record union
+     * @param coalescence object in which to record coalescences
+     * @param union SA object in which to record union
+     * @param pool pool in which leaf sets of both SAs are interned
      */
-    public void merge(SiteAncestry other, Coalescence coalescence, SiteAncestry union) {
+    public void merge(SiteAncestry other, Coalescence coalescence,
+                      SiteAncestry union, LeafSetPool pool) {
+
+        coalescence.clear();
+        union.clear();
 
         int i = 0, j = 0;
 
@@ -100,21 +164,21 @@ public class SiteAncestry {
 
         while (i<getIntervalCount()) {
 
-            int x = siteRanges.get(2*i);
-            int y = siteRanges.get(2*i + 1);
-            BitSet dl = descendantLeaves.get(i);
+            int x = siteRanges.getStart(i);
+            int y = siteRanges.getEnd(i);
+            BitSet dl = descendantLeaves[i];
 
             while (j<other.getIntervalCount()
-                    && other.siteRanges.get(2*j) < x) {
+                    && other.siteRanges.getStart(j) < x) {
 
-                int xp = other.siteRanges.get(2*j);
-                int yp = other.siteRanges.get(2*j + 1);
+                int xp = other.siteRanges.getStart(j);
+                int yp = other.siteRanges.getEnd(j);
                 xp = xp < last ? last : xp;
                 yp = yp > x ? x : yp;
 
-                union.addInterval(xp, yp, other.descendantLeaves.get(j));
+                union.addInterval(xp, yp, other.descendantLeaves[j]);
 
-                if (other.siteRanges.get(2*j+1) <= x)
+                if (other.siteRanges.getEnd(j) <= x)
                     j += 1;
                 else
                     break;
@@ -123,10 +187,10 @@ public class SiteAncestry {
             last = x;
 
             while (j<other.getIntervalCount()
-                    && other.siteRanges.get(2*j) < y) {
+                    && other.siteRanges.getStart(j) < y) {
 
-                int xp = other.siteRanges.get(2*j);
-                int yp = other.siteRanges.get(2*j + 1);
+                int xp = other.siteRanges.getStart(j);
+                int yp = other.siteRanges.getEnd(j);
                 xp = xp < x ? x : xp;
                 yp = yp > y ? y : yp;
 
@@ -135,13 +199,11 @@ public class SiteAncestry {
 
                 last = yp;
 
-                BitSet mergedDescendants = (BitSet)dl.clone();
-                mergedDescendants.or(other.descendantLeaves.get(j));
-                union.addInterval(xp, yp, mergedDescendants);
+                union.addInterval(xp, yp, pool.getUnion(dl, other.descendantLeaves[j]));
 
-                coalescence.addInterval(xp, yp, dl, other.descendantLeaves.get(j));
+                coalescence.addInterval(xp, yp, dl, other.descendantLeaves[j]);
 
-                if (other.siteRanges.get(2*j+1) <= y)
+                if (other.siteRanges.getEnd(j) <= y)
                     j += 1;
                 else
                     break;
@@ -157,12 +219,12 @@ public class SiteAncestry {
 
         while (j < other.getIntervalCount()) {
 
-            int xp = other.siteRanges.get(2*j);
-            if (!siteRanges.isEmpty() && xp < siteRanges.get(siteRanges.size()-1))
-                xp = siteRanges.get(siteRanges.size()-1);
-            int yp = other.siteRanges.get(2*j + 1);
+            int xp = other.siteRanges.getStart(j);
+            if (!siteRanges.isEmpty() && xp < siteRanges.getLastEnd())
+                xp = siteRanges.getLastEnd();
+            int yp = other.siteRanges.getEnd(j);
 
-            union.addInterval(xp, yp, other.descendantLeaves.get(j));
+            union.addInterval(xp, yp, other.descendantLeaves[j]);
 
             j += 1;
         }
@@ -170,9 +232,9 @@ public class SiteAncestry {
     }
 
     /**
-     * Constructs two new SiteAncestry objects describing the ancestry of
-     * sites which fall respectively inside of and outside of the interval
-     * [x,y].
+     * Computes the ancestry of sites which fall respectively inside of
+     * and outside of the interval [x,y].  Any existing contents of inside
+     * and outside are discarded.
      *
      * @param x left-hand boundary of interval
      * @param y right-hand boundary of interval
@@ -181,47 +243,44 @@ public class SiteAncestry {
      */
     public void split(int x, int y, SiteAncestry inside, SiteAncestry outside) {
 
+        inside.clear();
+        outside.clear();
+
         int i=0;
 
-        while (i<getIntervalCount() && siteRanges.get(2*i)<x) {
-            int xp = siteRanges.get(2*i);
-            int yp = siteRanges.get(2*i+1);
+        while (i<getIntervalCount() && siteRanges.getStart(i)<x) {
+            int xp = siteRanges.getStart(i);
+            int yp = siteRanges.getEnd(i);
             yp = yp > x ? x : yp;
 
-            outside.siteRanges.add(xp);
-            outside.siteRanges.add(yp);
-            outside.descendantLeaves.add(descendantLeaves.get(i));
+            outside.append(xp, yp, descendantLeaves[i]);
 
-            if (siteRanges.get(2*i+1) <= x)
+            if (siteRanges.getEnd(i) <= x)
                 i += 1;
             else
                 break;
         }
 
-        while (i<getIntervalCount() && siteRanges.get(2*i)<y) {
-            int xp = siteRanges.get(2*i);
-            int yp = siteRanges.get(2*i+1);
+        while (i<getIntervalCount() && siteRanges.getStart(i)<y) {
+            int xp = siteRanges.getStart(i);
+            int yp = siteRanges.getEnd(i);
             xp = xp < x ? x : xp;
             yp = yp > y ? y : yp;
 
-            inside.siteRanges.add(xp);
-            inside.siteRanges.add(yp);
-            inside.descendantLeaves.add(descendantLeaves.get(i));
+            inside.append(xp, yp, descendantLeaves[i]);
 
-            if (siteRanges.get(2*i+1) <=y)
+            if (siteRanges.getEnd(i) <=y)
                 i += 1;
             else
                 break;
         }
 
         while (i<getIntervalCount()) {
-            int xp = siteRanges.get(2*i);
-            int yp = siteRanges.get(2*i+1);
+            int xp = siteRanges.getStart(i);
+            int yp = siteRanges.getEnd(i);
             xp = xp < y ? y : xp;
 
-            outside.siteRanges.add(xp);
-            outside.siteRanges.add(yp);
-            outside.descendantLeaves.add(descendantLeaves.get(i));
+            outside.append(xp, yp, descendantLeaves[i]);
 
             i += 1;
         }
@@ -234,14 +293,23 @@ public class SiteAncestry {
 
         SiteAncestry that = (SiteAncestry) o;
 
-        return siteRanges.equals(that.siteRanges)
-                && descendantLeaves.equals(that.descendantLeaves);
+        if (!siteRanges.equals(that.siteRanges))
+            return false;
+
+        for (int i=0; i<getIntervalCount(); i++) {
+            if (!descendantLeaves[i].equals(that.descendantLeaves[i]))
+                return false;
+        }
+
+        return true;
     }
 
     @Override
     public int hashCode() {
         int result = siteRanges.hashCode();
-        result = 31 * result + descendantLeaves.hashCode();
+        for (int i=0; i<getIntervalCount(); i++)
+            result = 31 * result + descendantLeaves[i].hashCode();
+
         return result;
     }
 
@@ -253,8 +321,8 @@ public class SiteAncestry {
             if (i>0)
                 res += " ";
 
-            res += "[" + siteRanges.get(2*i) + "," + siteRanges.get(2*i+1) + "]"
-                    + descendantLeaves.get(i).toString().replaceAll("\\s","");
+            res += "[" + siteRanges.getStart(i) + "," + siteRanges.getEnd(i) + "]"
+                    + descendantLeaves[i].toString().replaceAll("\\s","");
         }
 
         return res;
@@ -116,7 +116,8 @@ public class ACGAnnotator {
         // Remove conversions
 
         for (Locus locus : acgBest.getConvertibleLoci())
-                acgBest.getConversions(locus).clear();
+            for (Conversion conv : new ArrayList<>(acgBest.getConversions(locus)))
+                acgBest.deleteConversion(conv);
 
         // Collect CF node heights
 
@@ -339,16 +340,10 @@ public class ACGAnnotator {
 
                         double posteriorSupport = conversionSummary.nIncludedACGs /(double)nACGs;
 
-                        double[] height1s = new double[conversionSummary.summarizedConvCount()];
-                        double[] height2s = new double[conversionSummary.summarizedConvCount()];
-                        double[] startSites = new double[conversionSummary.summarizedConvCount()];
-                        double[] endSites = new double[conversionSummary.summarizedConvCount()];
-                        for (int i=0; i<conversionSummary.summarizedConvCount(); i++) {
-                            height1s[i] = conversionSummary.height1s.get(i);
-                            height2s[i] = conversionSummary.height2s.get(i);
-                            startSites[i] = conversionSummary.startSites.get(i);
-                            endSites[i] = conversionSummary.ends.get(i);
-                        }
+                        double[] height1s = conversionSummary.getHeight1s();
+                        double[] height2s = conversionSummary.getHeight2s();
+                        double[] startSites = conversionSummary.getStartSites();
+                        double[] endSites = conversionSummary.getEndSites();
 
                         if (summaryStrategy == SummaryStrategy.MEAN) {
                             conv.setHeight1(DiscreteStatistics.mean(height1s));
@@ -339,10 +339,11 @@ public class ACGCladeSystem extends CladeSystem {
      */
     public class ConversionSummary {
 
-        List<Double> height1s = new ArrayList<>();
-        List<Double> height2s = new ArrayList<>();
-        List<Integer> startSites = new ArrayList<>();
-        List<Integer> ends = new ArrayList<>();
+        private double[] height1s = new double[4];
+        private double[] height2s = new double[4];
+        private int[] startSites = new int[4];
+        private int[] ends = new int[4];
+        private int convCount = 0;
 
         public int nIncludedACGs = 0;
 
@@ -352,10 +353,18 @@ public class ACGCladeSystem extends CladeSystem {
          * @param conv conversion
          */
         public void addConv(Conversion conv) {
-            height1s.add(conv.getHeight1());
-            height2s.add(conv.getHeight2());
-            startSites.add(conv.getStartSite());
-            ends.add(conv.getEndSite());
+            if (convCount == height1s.length) {
+                height1s = Arrays.copyOf(height1s, 2*convCount);
+                height2s = Arrays.copyOf(height2s, 2*convCount);
+                startSites = Arrays.copyOf(startSites, 2*convCount);
+                ends = Arrays.copyOf(ends, 2*convCount);
+            }
+
+            height1s[convCount] = conv.getHeight1();
+            height2s[convCount] = conv.getHeight2();
+            startSites[convCount] = conv.getStartSite();
+            ends[convCount] = conv.getEndSite();
+            convCount += 1;
         }
 
         /**
@@ -373,7 +382,45 @@ public class ACGCladeSystem extends CladeSystem {
          * @return number of conversions included in summary.
          */
         public int summarizedConvCount() {
-            return height1s.size();
+            return convCount;
+        }
+
+        /**
+         * @return new array containing height1 of each summarized conversion
+         */
+        public double[] getHeight1s() {
+            return Arrays.copyOf(height1s, convCount);
+        }
+
+        /**
+         * @return new array containing height2 of each summarized conversion
+         */
+        public double[] getHeight2s() {
+            return Arrays.copyOf(height2s, convCount);
+        }
+
+        /**
+         * @return new array containing start site of each summarized
+         * conversion
+         */
+        public double[] getStartSites() {
+            double[] res = new double[convCount];
+            for (int i=0; i<convCount; i++)
+                res[i] = startSites[i];
+
+            return res;
+        }
+
+        /**
+         * @return new array containing end site of each summarized
+         * conversion
+         */
+        public double[] getEndSites() {
+            double[] res = new double[convCount];
+            for (int i=0; i<convCount; i++)
+                res[i] = ends[i];
+
+            return res;
         }
     }
 }
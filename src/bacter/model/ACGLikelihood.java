@@ -17,24 +17,23 @@
 package bacter.model;
 
 import bacter.*;
+import bacter.util.JournaledArrayMap;
 import beast.core.Description;
 import beast.core.Input;
 import beast.core.State;
-import beast.core.util.Log;
 import beast.evolution.alignment.Alignment;
 import beast.evolution.branchratemodel.BranchRateModel;
 import beast.evolution.branchratemodel.StrictClockModel;
-import beast.evolution.likelihood.BeerLikelihoodCore;
-import beast.evolution.likelihood.BeerLikelihoodCore4;
 import beast.evolution.likelihood.GenericTreeLikelihood;
 import beast.evolution.likelihood.LikelihoodCore;
 import beast.evolution.sitemodel.SiteModel;
 import beast.evolution.substitutionmodel.SubstitutionModel;
 import beast.evolution.tree.Node;
-import com.google.common.collect.LinkedHashMultiset;
-import com.google.common.collect.Multiset;
+import beast.evolution.tree.Tree;
 
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 /**
  * @author Tim Vaughan <tgvaughan@gmail.com>
@@ -52,6 +51,34 @@ public class ACGLikelihood extends GenericTreeLikelihood {
             "Whether sites containing ambiguous states should be handled " +
                     "instead of ignored (the default)", false);
 
+    public Input<Integer> threadCountInput = new Input<>(
+            "threads",
+            "Number of threads to use when evaluating the likelihoods of " +
+                    "regions whose marginal trees have changed. (Default 1.)",
+            1);
+
+    public Input<ClonalFrameCache> clonalFrameCacheInput = new Input<>(
+            "clonalFrameCache",
+            "Clonal frame marginal tree and transition probabilities, " +
+                    "which may be shared with the likelihoods of other " +
+                    "loci.  A private cache is used if none is provided.");
+
+    public Input<LikelihoodCorePool.CoreType> partialsStorageInput = new Input<>(
+            "partialsStorage",
+            "Storage used for partials: DOUBLE (default), FLOAT or " +
+                    "FLOAT_OFF_HEAP.  Single-precision storage halves the " +
+                    "memory used by partials and rescales them adaptively.",
+            LikelihoodCorePool.CoreType.DOUBLE,
+            LikelihoodCorePool.CoreType.values());
+
+    public Input<Long> cacheBudgetInput = new Input<>(
+            "cacheBudget",
+            "Approximate number of bytes available to cached subtree " +
+                    "partials.  Once exceeded, caches of site ranges absent " +
+                    "from the current state are evicted, least recently used " +
+                    "first, and recomputed on demand. (Default 0: unlimited.)",
+            0L);
+
     protected ConversionGraph acg;
 
     protected SiteModel.Base siteModel;
@@ -61,23 +88,108 @@ public class ACGLikelihood extends GenericTreeLikelihood {
     protected Locus locus;
     protected int nStates;
 
-    protected Map<Region, Multiset<int[]>> patterns;
-    protected Map<Region, Multiset<int[]>> storedPatterns;
-    protected Map<Region, double[]> patternLogLikelihoods;
-    protected Map<Region, double[]> storedPatternLogLikelihoods;
-    protected Map<Region, double[]> rootPartials;
-    protected Map<Region, double[]> storedRootPartials;
-    protected Map<Region, List<Integer>> constantPatterns;
-    protected Map<Region, List<Integer>> storedConstantPatterns;
-    protected Map<Region, LikelihoodCore> likelihoodCores;
-    protected Map<Region, LikelihoodCore> storedLikelihoodCores;
-    protected Map<Region, Double> regionLogLikelihoods;
-    protected Map<Region, Double> storedRegionLogLikelihoods;
+    protected PatternDictionary patternDictionary;
+
+    /**
+     * Clonal frame tree and transition probabilities, together with
+     * whether this likelihood is responsible for keeping them up to date.
+     */
+    protected ClonalFrameCache cfCache;
+    protected boolean ownsCFCache;
+
+    /**
+     * Pooled IDs of the patterns of this locus, indexed by dictionary
+     * pattern ID.  Only non-null when clonal frame regions are evaluated
+     * through the pattern pool of a shared clonal frame cache.
+     */
+    protected int[] pooledPatternIDs;
+
+    /**
+     * Per-region data, indexed by region ID.  These maps journal their
+     * modifications so that store() and restore() only cost time
+     * proportional to the number of regions changed during an MCMC step.
+     */
+    protected JournaledArrayMap<Region, PatternDictionary.RegionPatterns> patterns;
+    protected JournaledArrayMap<Region, double[]> patternLogLikelihoods;
+    protected JournaledArrayMap<Region, double[]> rootPartials;
+    protected JournaledArrayMap<Region, List<Integer>> constantPatterns;
+    protected JournaledArrayMap<Region, Double> regionLogLikelihoods;
+
+    /**
+     * CF nodes whose parent edges carry ancestral material for each
+     * region with a known log likelihood.  Clonal frame changes only
+     * invalidate regions whose set includes a dirty CF node.
+     */
+    protected JournaledArrayMap<Region, BitSet> regionCFNodes;
+
+    /**
+     * Subtree partials caches, keyed by site range.  Regions covering the
+     * same sites share a cache, as do the current and stored states.
+     */
+    protected Map<Long, SubtreePartialsCache> partialsCaches;
+
+    /**
+     * Number of partials slots available to internal subtrees in each
+     * cache, as a multiple of the number of internal marginal tree nodes.
+     */
+    protected static final int SUBTREE_CACHE_FACTOR = 2;
+
+    /**
+     * Whether cached partials were discarded since the last call to store().
+     */
+    protected boolean partialsCachesFlushed = false;
+
+    /**
+     * Memory used by, and recency of, the partials cache of a site range.
+     * Recency is measured in likelihood evaluations.
+     */
+    protected static class CacheUsage {
+        final long bytes;
+        long lastUsed, lastAccepted = Long.MIN_VALUE/2;
+
+        CacheUsage(long bytes) {
+            this.bytes = bytes;
+        }
+
+        /**
+         * @return recency used to order evictions, which favours caches
+         * belonging to recently-accepted states
+         */
+        long getPriority() {
+            return Math.max(lastUsed, lastAccepted + ACCEPTANCE_RECENCY_BONUS);
+        }
+    }
+
+    /**
+     * Number of evaluations by which the acceptance of a state extends the
+     * apparent recency of its partials caches.  Acceptance rates are low,
+     * so the stored state is usually the one returned to.
+     */
+    protected static final long ACCEPTANCE_RECENCY_BONUS = 1000;
+
+    protected Map<Long, CacheUsage> partialsCacheUsage;
+    protected long partialsCacheBytes, evaluationCount;
+    protected long partialsCacheHits, partialsCacheMisses, partialsCacheEvictions;
+    protected long retiredRegionReuses;
 
     /**
-     * Memory for transition probabilities.
+     * Pool from which the likelihood cores of partials caches are drawn.
+     * Cores evaluate LikelihoodCorePool.getPatternCapacity() patterns,
+     * and per-region pattern arrays are sized accordingly.
      */
-    protected double [] probabilities;
+    protected LikelihoodCorePool corePool;
+
+    /**
+     * Scratch memory used by serial marginal tree traversals.
+     */
+    protected TraversalWorkspace workspace;
+
+    /**
+     * Pool and per-thread scratch memory used for threaded region evaluation.
+     * The pool is null when only a single thread is requested.
+     */
+    protected ForkJoinPool regionPool;
+    protected ThreadLocal<TraversalWorkspace> threadWorkspace;
 
     public ACGLikelihood() {
         // We allow alignments to be specified using Locus objects.
@@ -119,94 +231,422 @@ public class ACGLikelihood extends GenericTreeLikelihood {
         } else
             branchRateModel = new StrictClockModel();
 
-        patterns = new HashMap<>();
-        storedPatterns = new HashMap<>();
-        patternLogLikelihoods = new HashMap<>();
-        storedPatternLogLikelihoods = new HashMap<>();
-        rootPartials = new HashMap<>();
-        storedRootPartials = new HashMap<>();
-        constantPatterns = new HashMap<>();
-        storedConstantPatterns = new HashMap<>();
-        likelihoodCores = new HashMap<>();
-        storedLikelihoodCores = new HashMap<>();
-        regionLogLikelihoods = new HashMap<>();
-        storedRegionLogLikelihoods = new HashMap<>();
+        patternDictionary = new PatternDictionary(acg, alignment,
+                useAmbiguitiesInput.get());
 
-        // Allocate transition probability memory:
-        // (Only the first nStates*nStates elements are usually used.)
-        probabilities = new double[(nStates+1)*(nStates+1)];
+        if (clonalFrameCacheInput.get() != null) {
+            cfCache = clonalFrameCacheInput.get();
+            ownsCFCache = false;
+
+            if (cfCache.getSiteModel() != siteModel
+                    || cfCache.getBranchRateModelInput() != branchRateModelInput.get())
+                throw new IllegalArgumentException("Clonal frame cache provided " +
+                        "to ACGLikelihood must use the same site and branch " +
+                        "rate models.");
+        } else {
+            cfCache = new ClonalFrameCache();
+            if (branchRateModelInput.get() != null)
+                cfCache.initByName(
+                        "acg", acg,
+                        "siteModel", siteModel,
+                        "branchRateModel", branchRateModelInput.get());
+            else
+                cfCache.initByName(
+                        "acg", acg,
+                        "siteModel", siteModel);
+            ownsCFCache = true;
+        }
+
+        // Pooling clonal frame patterns only pays off when the cache is
+        // shared, and the pool only handles leaf states.
+        if (!ownsCFCache && !useAmbiguitiesInput.get()
+                && cfCache.getPatternPool().getStateCount() == nStates)
+            pooledPatternIDs = cfCache.getPatternPool().register(patternDictionary);
+
+        patterns = new JournaledArrayMap<>(Region::getID);
+        patternLogLikelihoods = new JournaledArrayMap<>(Region::getID);
+        rootPartials = new JournaledArrayMap<>(Region::getID);
+        constantPatterns = new JournaledArrayMap<>(Region::getID);
+        regionLogLikelihoods = new JournaledArrayMap<>(Region::getID);
+        regionCFNodes = new JournaledArrayMap<>(Region::getID);
+        partialsCaches = new HashMap<>();
+        partialsCacheUsage = new HashMap<>();
+
+        if (cacheBudgetInput.get() < 0)
+            throw new IllegalArgumentException("ACGLikelihood cache budget " +
+                    "must be non-negative.");
+
+        int leafCount = acg.getLeafNodeCount();
+        corePool = new LikelihoodCorePool(nStates, leafCount,
+                leafCount + SUBTREE_CACHE_FACTOR*(leafCount-1),
+                useAmbiguitiesInput.get(), partialsStorageInput.get());
+
+        workspace = new TraversalWorkspace(acg, nStates);
+
+        if (threadCountInput.get() < 1)
+            throw new IllegalArgumentException("ACGLikelihood requires at " +
+                    "least one thread.");
+
+        if (threadCountInput.get() > 1) {
+            regionPool = getRegionPool(threadCountInput.get());
+            threadWorkspace = ThreadLocal.withInitial(
+                    () -> new TraversalWorkspace(acg, nStates));
+        }
     }
 
-    protected double scaleFactor = 1.0;
-    protected double scaleFactorMultiplier = 1.01;
-    protected double maxScaleFactor = 100.0;
+    /**
+     * Pools shared by all ACGLikelihood instances requesting the same number
+     * of threads, so that multi-locus analyses don't spawn a separate set of
+     * threads per locus.
+     */
+    private static final Map<Integer, ForkJoinPool> regionPools = new HashMap<>();
 
+    /**
+     * @param threadCount desired parallelism
+     * @return work-stealing pool with the given parallelism
+     */
+    protected static synchronized ForkJoinPool getRegionPool(int threadCount) {
+        return regionPools.computeIfAbsent(threadCount, ForkJoinPool::new);
+    }
+
+    /**
+     * Likelihood cores rescale partials of individual patterns whenever
+     * they approach underflow, so a single pass always suffices.
+     */
     @Override
     public double calculateLogP() {
+        doLogPCalculation();
+
+        return logP;
+    }
+
+    protected void doLogPCalculation() {
+        RegionList regions = acg.getRegionList(locus);
+        List<Region> regionList = regions.getRegions();
+        List<RetiredRegion> retiredRegions = getRetiredRegions(regions);
 
-        while (true) {
-            doLogPCalculation();
+        updatePatterns(regionList);
+        updateCores(regionList);
 
-            if (logP>Double.NEGATIVE_INFINITY || scaleFactor>=maxScaleFactor)
-                return logP;
+        cfCache.update();
 
-            scaleFactor *= scaleFactorMultiplier;
-            Log.warning.println("Turning on scaling to prevent numeric instability. Scale factor: " + scaleFactor);
+        logP = 0.0;
+
+        regionLogLikelihoods.retainAll(regionList);
+        regionCFNodes.retainAll(regionList);
+
+        List<Region> dirtyRegions = new ArrayList<>();
+        List<Region> pooledRegions = new ArrayList<>();
+        for (Region region : regionList) {
+            if (regionLogLikelihoods.containsKey(region))
+                continue;
+
+            // Fresh arrays ensure that pattern log likelihoods belonging
+            // to the stored state are never overwritten.
+            patternLogLikelihoods.put(region, new double[
+                    LikelihoodCorePool.getPatternCapacity(
+                            patterns.get(region).getPatternCount())]);
 
-            for (LikelihoodCore core : likelihoodCores.values())
-                core.setUseScaling(scaleFactor);
+            if (!retiredRegions.isEmpty()
+                    && computeFromRetiredRegion(region, retiredRegions))
+                continue;
 
-            requiresRecalculation();
+            if (pooledPatternIDs != null && region.isClonalFrame())
+                pooledRegions.add(region);
+            else
+                dirtyRegions.add(region);
         }
+
+        if (!pooledRegions.isEmpty())
+            computePooledRegionLogLikelihoods(pooledRegions);
+
+        if (regionPool != null && dirtyRegions.size() > 1) {
+            computeRegionLogLikelihoodsThreaded(dirtyRegions);
+        } else {
+            for (Region region : dirtyRegions) {
+                regionLogLikelihoods.put(region,
+                        computeRegionLogLikelihood(region, workspace));
+                regionCFNodes.put(region, getAncestralCFNodes(region, workspace));
+            }
+        }
+
+        // Sum in region order so that the result does not depend on
+        // the order in which regions were evaluated.
+        for (Region region : regionList)
+            logP += regionLogLikelihoods.get(region);
     }
 
+    /**
+     * Compute log likelihood of the alignment sites belonging to a single
+     * region.  Only reads shared state, so may be called concurrently for
+     * distinct regions provided each thread supplies its own workspace.
+     *
+     * @param region region to evaluate
+     * @param ws scratch memory for the marginal tree traversal
+     * @return log likelihood of region
+     */
+    protected double computeRegionLogLikelihood(Region region, TraversalWorkspace ws) {
+        traverseNoRecurse(getMarginalTree(region, ws), region, ws);
 
+        double[] logLs = patternLogLikelihoods.get(region);
+        int[] weights = patterns.get(region).weights;
 
-    protected void doLogPCalculation() {
-        updatePatterns();
-        updateCores();
+        double regionLogP = 0.0;
+        for (int i=0; i<weights.length; i++)
+            regionLogP += logLs[i] * weights[i];
 
-        preComputeCFTransitionProbs();
+        return regionLogP;
+    }
 
-        logP = 0.0;
+    /**
+     * Pattern log likelihoods of a region that was present at the previous
+     * evaluation but is absent from the current region list.
+     */
+    protected static class RetiredRegion {
+        final Region region;
+        final PatternDictionary.RegionPatterns patterns;
+        final double[] patternLogLikelihoods;
+        final BitSet cfNodes;
+
+        RetiredRegion(Region region, PatternDictionary.RegionPatterns patterns,
+                      double[] patternLogLikelihoods, BitSet cfNodes) {
+            this.region = region;
+            this.patterns = patterns;
+            this.patternLogLikelihoods = patternLogLikelihoods;
+            this.cfNodes = cfNodes;
+        }
+    }
 
-        regionLogLikelihoods.keySet().retainAll(acg.getRegions(locus));
+    /**
+     * Collect regions whose likelihoods are known but which no longer
+     * appear in the region list.  Must be called before the pattern
+     * maps are updated.
+     *
+     * @param regions current region list
+     * @return list of retired regions
+     */
+    private List<RetiredRegion> getRetiredRegions(RegionList regions) {
+        List<RetiredRegion> retiredRegions = new ArrayList<>();
 
-        for (Region region : acg.getRegions(locus)) {
+        if (regionLogLikelihoods.isEmpty())
+            return retiredRegions;
+
+        for (Region region : regionLogLikelihoods.keyList()) {
+            if (regions.contains(region))
+                continue;
 
-            if (!regionLogLikelihoods.containsKey(region)) {
-                traverseNoRecurse(new MarginalTree(acg, region.activeConversions).getRoot(), region);
+            retiredRegions.add(new RetiredRegion(region,
+                    patterns.get(region), patternLogLikelihoods.get(region),
+                    regionCFNodes.get(region)));
+        }
 
+        return retiredRegions;
+    }
 
-                double regionLogP = 0.0;
-                int i = 0;
-                for (int[] pattern : patterns.get(region).elementSet()) {
-                    regionLogP += patternLogLikelihoods.get(region)[i]
-                            * patterns.get(region).count(pattern);
-                    i += 1;
+    /**
+     * Marginal trees are determined by the clonal frame and the attachment
+     * points of the active conversions, so regions whose conversions
+     * differ only in their site ranges (as happens when a conversion
+     * boundary is moved) share the same marginal tree.
+     *
+     * @param regionA first region
+     * @param regionB second region
+     * @return true if regions have the same marginal tree under the
+     * current clonal frame
+     */
+    protected static boolean haveSameMarginalTree(Region regionA, Region regionB) {
+        if (regionA.activeConversions.size() != regionB.activeConversions.size())
+            return false;
+
+        // Active conversion sets are small, so a quadratic search suffices.
+        for (Conversion convA : regionA.activeConversions) {
+            boolean found = false;
+            for (Conversion convB : regionB.activeConversions) {
+                if (convA.getNode1() == convB.getNode1()
+                        && convA.getNode2() == convB.getNode2()
+                        && convA.getHeight1() == convB.getHeight1()
+                        && convA.getHeight2() == convB.getHeight2()) {
+                    found = true;
+                    break;
                 }
-                regionLogLikelihoods.put(region, regionLogP);
+            }
+
+            if (!found)
+                return false;
+        }
 
-                logP += regionLogP;
-            } else {
-                logP += regionLogLikelihoods.get(region);
+        return true;
+    }
+
+    /**
+     * Attempt to compute the log likelihood of a region from the pattern
+     * log likelihoods of a retired region having the same marginal tree.
+     * Only the patterns of the sites shifted into the region that are
+     * missing from the retired region are evaluated, using a temporary
+     * likelihood core.
+     *
+     * @param region region to evaluate
+     * @param retiredRegions retired regions
+     * @return true if a suitable retired region was found and the
+     * region log likelihood has been stored
+     */
+    private boolean computeFromRetiredRegion(Region region,
+                                             List<RetiredRegion> retiredRegions) {
+
+        RetiredRegion retired = null;
+        for (RetiredRegion candidate : retiredRegions) {
+            if (haveSameMarginalTree(region, candidate.region)) {
+                retired = candidate;
+                break;
             }
         }
 
-//        System.out.println("Cache hit rate: " + cacheHits/(double)(cacheMisses + cacheHits));
+        if (retired == null)
+            return false;
+
+        int[] patternIDs = patterns.get(region).patternIDs;
+        int[] retiredIDs = retired.patterns.patternIDs;
+        double[] logLs = patternLogLikelihoods.get(region);
+
+        // Merge the sorted pattern ID lists, collecting missing patterns.
+        int[] missingIdx = new int[patternIDs.length];
+        int nMissing = 0;
+        int j = 0;
+        for (int i=0; i<patternIDs.length; i++) {
+            while (j < retiredIDs.length && retiredIDs[j] < patternIDs[i])
+                j += 1;
+
+            if (j < retiredIDs.length && retiredIDs[j] == patternIDs[i])
+                logLs[i] = retired.patternLogLikelihoods[j];
+            else
+                missingIdx[nMissing++] = i;
+        }
+
+        if (nMissing == patternIDs.length)
+            return false;
+
+        if (nMissing > 0) {
+            int[] missingIDs = new int[nMissing];
+            for (int k=0; k<nMissing; k++)
+                missingIDs[k] = patternIDs[missingIdx[k]];
+
+            PatternDictionary.RegionPatterns missingPatterns =
+                    new PatternDictionary.RegionPatterns(missingIDs, new int[nMissing]);
+
+            SubtreePartialsCache cache = createPartialsCache(missingPatterns);
+
+            int capacity = LikelihoodCorePool.getPatternCapacity(nMissing);
+            double[] missingLogLs = new double[capacity];
+            traverseNoRecurse(getMarginalTree(region, workspace),
+                    cache, new double[capacity*nStates],
+                    patternDictionary.getConstantPatternList(missingIDs),
+                    missingLogLs, workspace);
+
+            for (int k=0; k<nMissing; k++)
+                logLs[missingIdx[k]] = missingLogLs[k];
+
+            corePool.release(cache.getCore());
+        }
+
+        int[] weights = patterns.get(region).weights;
+        double regionLogP = 0.0;
+        for (int i=0; i<weights.length; i++)
+            regionLogP += logLs[i] * weights[i];
+
+        regionLogLikelihoods.put(region, regionLogP);
+        regionCFNodes.put(region, retired.cfNodes);
+        retiredRegionReuses += 1;
+
+        return true;
+    }
+
+    /**
+     * Compute log likelihoods of clonal frame regions using the pattern
+     * pool of the shared clonal frame cache.  The patterns of all regions
+     * are requested together so that the pool sees a single declaration
+     * for this locus.
+     *
+     * @param cfRegions clonal frame regions to compute log likelihoods of
+     */
+    protected void computePooledRegionLogLikelihoods(List<Region> cfRegions) {
+        BitSet idSet = new BitSet();
+        for (Region region : cfRegions)
+            for (int p : patterns.get(region).patternIDs)
+                idSet.set(pooledPatternIDs[p]);
+
+        int[] ids = idSet.stream().toArray();
+        double[] logLs = new double[ids.length];
+        cfCache.getPatternPool().getPatternLogLikelihoods(this, ids, logLs);
+
+        for (Region region : cfRegions) {
+            PatternDictionary.RegionPatterns regionPatterns = patterns.get(region);
+            double[] regionLogLs = patternLogLikelihoods.get(region);
+
+            double regionLogP = 0.0;
+            for (int i=0; i<regionPatterns.getPatternCount(); i++) {
+                int idx = Arrays.binarySearch(ids,
+                        pooledPatternIDs[regionPatterns.patternIDs[i]]);
+                regionLogLs[i] = logLs[idx];
+                regionLogP += regionLogLs[i] * regionPatterns.weights[i];
+            }
+
+            regionLogLikelihoods.put(region, regionLogP);
+            regionCFNodes.put(region, (BitSet)cfCache.getClonalFrameNodes().clone());
+        }
+    }
+
+    /**
+     * Evaluate the given regions on the work-stealing pool.  Regions are
+     * submitted in order of decreasing unique pattern count, which
+     * approximates their cost since all marginal trees have the same number
+     * of nodes, so that a few large regions can't stall the pool by being
+     * picked up last.
+     *
+     * @param dirtyRegions regions whose log likelihoods must be computed
+     */
+    protected void computeRegionLogLikelihoodsThreaded(List<Region> dirtyRegions) {
+
+        dirtyRegions.sort(Comparator.comparingInt(
+                (Region region) -> -patterns.get(region).getPatternCount()));
+
+        // Bring lazily-updated ACG state up to date before sharing it
+        // between threads.
+        acg.getCFEvents();
+
+        double[] regionLogPs = new double[dirtyRegions.size()];
+        BitSet[] cfNodeSets = new BitSet[dirtyRegions.size()];
+        List<ForkJoinTask<?>> tasks = new ArrayList<>();
+        for (int r=0; r<dirtyRegions.size(); r++) {
+            final int idx = r;
+            tasks.add(regionPool.submit(() -> {
+                TraversalWorkspace ws = threadWorkspace.get();
+                Region region = dirtyRegions.get(idx);
+                regionLogPs[idx] = computeRegionLogLikelihood(region, ws);
+                cfNodeSets[idx] = getAncestralCFNodes(region, ws);
+            }));
+        }
+
+        for (ForkJoinTask<?> task : tasks)
+            task.join();
+
+        for (int r=0; r<dirtyRegions.size(); r++) {
+            regionLogLikelihoods.put(dirtyRegions.get(r), regionLogPs[r]);
+            regionCFNodes.put(dirtyRegions.get(r), cfNodeSets[r]);
+        }
     }
 
     /**
      * Ensure pattern counts are up to date.
+     *
+     * @param regionList current region list
      */
-    private void updatePatterns() {
-        List<Region> regionList = acg.getRegions(locus);
+    private void updatePatterns(List<Region> regionList) {
 
         // Remove stale pattern sets
-        patterns.keySet().retainAll(regionList);
-        patternLogLikelihoods.keySet().retainAll(regionList);
-        rootPartials.keySet().retainAll(regionList);
-        constantPatterns.keySet().retainAll(regionList);
+        patterns.retainAll(regionList);
+        patternLogLikelihoods.retainAll(regionList);
+        rootPartials.retainAll(regionList);
+        constantPatterns.retainAll(regionList);
 
         for (Region region : regionList) {
 
@@ -214,113 +654,200 @@ public class ACGLikelihood extends GenericTreeLikelihood {
                 continue;
 
             // Add new pattern set
-            Multiset<int[]> patSet = LinkedHashMultiset.create();
-            for (int j=region.leftBoundary; j<region.rightBoundary; j++) {
-                int [] pat = alignment.getPattern(alignment.getPatternIndex(j));
-                patSet.add(pat);
-            }
-            patterns.put(region, patSet);
+            PatternDictionary.RegionPatterns regionPatterns =
+                    patternDictionary.getRegionPatterns(
+                            region.leftBoundary, region.rightBoundary);
+            patterns.put(region, regionPatterns);
 
-            // Allocate memory for corresponding log likelihoods and root partials
-            patternLogLikelihoods.put(region, new double[patSet.elementSet().size()]);
-            rootPartials.put(region, new double[patSet.elementSet().size()*nStates]);
+            // Allocate memory for corresponding root partials
+            rootPartials.put(region, new double[
+                    LikelihoodCorePool.getPatternCapacity(
+                            regionPatterns.getPatternCount())*nStates]);
 
             // Compute corresponding constant pattern list
-            List<Integer> constantPatternList = new ArrayList<>();
-
-            int patternIdx = 0;
-            for (int[] pattern : patSet.elementSet()) {
-                boolean isConstant = true;
-                for (int i=1; i<pattern.length; i++)
-                    if (pattern[i] != pattern[0]) {
-                        isConstant = false;
-                        break;
-                    }
-
-                if (isConstant) {
-                    if (alignment.getDataType().isAmbiguousCode(pattern[0])) {
-                        if (useAmbiguitiesInput.get()) {
-                            for (int state : alignment.getDataType().getStatesForCode(pattern[0]))
-                                constantPatternList.add(patternIdx * nStates + state);
-                        }
-                    } else {
-                        constantPatternList.add(patternIdx * nStates + pattern[0]);
-                    }
-                }
-
-                patternIdx += 1;
-            }
-
-            constantPatterns.put(region, constantPatternList);
+            constantPatterns.put(region,
+                    patternDictionary.getConstantPatternList(regionPatterns.patternIDs));
         }
     }
     
     
     /**
-     * Initialize likelihood cores.
+     * Initialize likelihood cores and their subtree partials caches.
+     *
+     * @param regionList current region list
      */
-    private void updateCores() {
+    private void updateCores(List<Region> regionList) {
+
+        // Discard caches for site ranges belonging to neither the current
+        // nor the stored region lists.  This requires a pass over all
+        // regions, so is only done once stale caches could plausibly
+        // account for half of the total.
+        if (partialsCaches.size() > 2*regionList.size() + 16) {
+            Set<Long> rangeKeys = new HashSet<>();
+            for (Region region : regionList)
+                rangeKeys.add(getRangeKey(region));
+            for (Region region : patterns.getStoredKeyList())
+                rangeKeys.add(getRangeKey(region));
+
+            Iterator<Map.Entry<Long, SubtreePartialsCache>> it =
+                    partialsCaches.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Long, SubtreePartialsCache> entry = it.next();
+                if (!rangeKeys.contains(entry.getKey())) {
+                    partialsCacheBytes -= partialsCacheUsage.remove(entry.getKey()).bytes;
+                    corePool.release(entry.getValue().getCore());
+                    it.remove();
+                }
+            }
+        }
 
-        List<Region> regionList = acg.getRegions(locus);
-        likelihoodCores.keySet().retainAll(regionList);
+        evaluationCount += 1;
 
         for (Region region : regionList) {
 
-            if (likelihoodCores.containsKey(region))
+            long rangeKey = getRangeKey(region);
+            CacheUsage usage = partialsCacheUsage.get(rangeKey);
+            if (usage != null) {
+                if (usage.lastUsed != evaluationCount) {
+                    usage.lastUsed = evaluationCount;
+                    partialsCacheHits += 1;
+                }
                 continue;
+            }
 
-            LikelihoodCore likelihoodCore;
-            if (nStates==4)
-                likelihoodCore = new BeerLikelihoodCore4();
-            else
-                likelihoodCore = new BeerLikelihoodCore(nStates);
-
-            likelihoodCores.put(region, likelihoodCore);
+            SubtreePartialsCache cache = createPartialsCache(patterns.get(region));
+            partialsCaches.put(rangeKey, cache);
 
-            likelihoodCore.initialize(acg.getNodeCount(),
-                    patterns.get(region).elementSet().size(),
-                    siteModel.getCategoryCount(),
-                    true, useAmbiguitiesInput.get());
+            usage = new CacheUsage(corePool.getCoreBytes(cache.getCore()));
+            usage.lastUsed = evaluationCount;
+            partialsCacheUsage.put(rangeKey, usage);
+            partialsCacheBytes += usage.bytes;
+            partialsCacheMisses += 1;
+        }
 
-            if (scaleFactor>1.0)
-                likelihoodCore.setUseScaling(scaleFactor);
+        if (cacheBudgetInput.get() > 0 && partialsCacheBytes > cacheBudgetInput.get())
+            evictPartialsCaches();
+    }
 
-            if (useAmbiguitiesInput.get())
-                setPartials(likelihoodCore, patterns.get(region));
-            else
-                setStates(likelihoodCore, patterns.get(region));
-            
-            int intNodeCount = acg.getNodeCount()/2;
-            for (int i=0; i<intNodeCount; i++)
-                likelihoodCore.createNodePartials(intNodeCount+1+i);
+    /**
+     * Evict partials caches not used by the current state, in order of
+     * increasing priority, until the cache budget is met or no further
+     * caches can be evicted.  The cores of evicted caches are discarded
+     * so that their memory can be reclaimed.
+     */
+    private void evictPartialsCaches() {
+        List<Long> candidates = new ArrayList<>();
+        for (Map.Entry<Long, CacheUsage> entry : partialsCacheUsage.entrySet())
+            if (entry.getValue().lastUsed != evaluationCount)
+                candidates.add(entry.getKey());
+
+        candidates.sort(Comparator.comparingLong(
+                (Long rangeKey) -> partialsCacheUsage.get(rangeKey).getPriority()));
+
+        for (long rangeKey : candidates) {
+            if (partialsCacheBytes <= cacheBudgetInput.get())
+                break;
+
+            partialsCacheBytes -= partialsCacheUsage.remove(rangeKey).bytes;
+            corePool.discard(partialsCaches.remove(rangeKey).getCore());
+            partialsCacheEvictions += 1;
         }
     }
+
+    /**
+     * @return number of evaluations in which the partials cache of a
+     * current site range already existed
+     */
+    public long getPartialsCacheHitCount() {
+        return partialsCacheHits;
+    }
+
+    /**
+     * @return number of partials caches created
+     */
+    public long getPartialsCacheMissCount() {
+        return partialsCacheMisses;
+    }
+
+    /**
+     * @return number of partials caches evicted to meet the cache budget
+     */
+    public long getPartialsCacheEvictionCount() {
+        return partialsCacheEvictions;
+    }
+
+    /**
+     * @return approximate number of bytes held by partials caches
+     */
+    public long getPartialsCacheBytes() {
+        return partialsCacheBytes;
+    }
+
+    /**
+     * @return number of regions whose log likelihoods were computed from
+     * the pattern log likelihoods of a retired region
+     */
+    public long getRetiredRegionReuseCount() {
+        return retiredRegionReuses;
+    }
+
+    /**
+     * Create an empty partials cache for the given patterns, using a core
+     * drawn from the pool.  Patterns beyond the region's own pattern count
+     * are padded with missing data.
+     *
+     * @param regionPatterns patterns to evaluate
+     * @return new partials cache
+     */
+    private SubtreePartialsCache createPartialsCache(PatternDictionary.RegionPatterns regionPatterns) {
+        LikelihoodCore likelihoodCore = corePool.acquire(
+                regionPatterns.getPatternCount(),
+                siteModel.getCategoryCount());
+
+        if (useAmbiguitiesInput.get())
+            setPartials(likelihoodCore, regionPatterns);
+        else
+            setStates(likelihoodCore, regionPatterns);
+
+        int leafCount = acg.getLeafNodeCount();
+        return new SubtreePartialsCache(likelihoodCore, leafCount,
+                leafCount + SUBTREE_CACHE_FACTOR*(leafCount-1));
+    }
+
+    /**
+     * Regions with equal boundaries have identical pattern sets (including
+     * the order of the unique patterns) and can therefore share partials.
+     *
+     * @param region region
+     * @return key identifying the site range covered by region
+     */
+    protected static long getRangeKey(Region region) {
+        return ((long)region.leftBoundary << 32) | region.rightBoundary;
+    }
+
+    /**
+     * Discard all cached subtree partials.  Required whenever parameters
+     * affecting transition probabilities change.
+     */
+    protected void flushPartialsCaches() {
+        for (SubtreePartialsCache cache : partialsCaches.values())
+            cache.clear();
+
+        partialsCachesFlushed = true;
+    }
     
     
     /**
      * Set leaf states in a likelihood core.
      * 
      * @param lhc       likelihood core object
-     * @param patterns  leaf state patterns
-     */
-    void setStates(LikelihoodCore lhc, Multiset<int[]> patterns) {
-        
-        for (Node node : acg.getExternalNodes()) {
-            int[] states = new int[patterns.elementSet().size()];
-            int taxon = alignment.getTaxonIndex(node.getID());
-            int i=0;
-            for (int [] pattern : patterns.elementSet()) {
-                int code = pattern[taxon];
-                int[] statesForCode = alignment.getDataType().getStatesForCode(code);
-                if (statesForCode.length==1)
-                    states[i] = statesForCode[0];
-                else
-                    states[i] = code; // Causes ambiguous states to be ignored.
-                
-                i += 1;
-            }
-            lhc.setNodeStates(node.getNr(), states);
-        }
+     * @param patterns  patterns present in region
+     */
+    void setStates(LikelihoodCore lhc, PatternDictionary.RegionPatterns patterns) {
+        int capacity = LikelihoodCorePool.getPatternCapacity(patterns.getPatternCount());
+        for (Node node : acg.getExternalNodes())
+            lhc.setNodeStates(node.getNr(), patternDictionary.getLeafStates(
+                    node.getNr(), patterns.patternIDs, capacity));
     }
 
 
@@ -328,82 +855,82 @@ public class ACGLikelihood extends GenericTreeLikelihood {
      * Set leaf partials in likelihood core.
      *
      * @param lhc likelihood core object
-     * @param patterns leaf state patterns
-     */
-    protected void setPartials(LikelihoodCore lhc, Multiset<int[]> patterns) {
-        for (Node node : acg.getExternalNodes()) {
-            int nStates = alignment.getDataType().getStateCount();
-            double[] partials = new double[patterns.elementSet().size() * nStates];
-            int k = 0;
-            int iTaxon = alignment.getTaxonIndex(node.getID());
-            for (int[] pattern : patterns.elementSet()) {
-                int code = pattern[iTaxon];
-                boolean[] stateSet = alignment.getDataType().getStateSet(code);
-                for (int iState = 0; iState < nStates; iState++) {
-                    partials[k++] = (stateSet[iState] ? 1.0 : 0.0);
-                }
-            }
-            lhc.setNodePartials(node.getNr(), partials);
-        }
+     * @param patterns patterns present in region
+     */
+    protected void setPartials(LikelihoodCore lhc, PatternDictionary.RegionPatterns patterns) {
+        int capacity = LikelihoodCorePool.getPatternCapacity(patterns.getPatternCount());
+        for (Node node : acg.getExternalNodes())
+            lhc.setNodePartials(node.getNr(), patternDictionary.getLeafPartials(
+                    node.getNr(), patterns.patternIDs, capacity));
     }
 
     /**
-     * Cached transition probabilities for CF edges.
+     * @return pool supplying likelihood cores, for inspecting its
+     * allocation counters
      */
-    double [][][] cfTransitionProbs;
-    int cacheHits = 0;
-    int cacheMisses = 0;
+    public LikelihoodCorePool getCorePool() {
+        return corePool;
+    }
 
     /**
-     * Pre-compute transition probabilities for CF edges.
+     * Obtain the marginal tree of a region.  Clonal frame regions share
+     * the tree held by the clonal frame cache.
+     *
+     * @param region region
+     * @param ws workspace whose tree builder is used for other regions
+     * @return marginal tree
      */
-    void preComputeCFTransitionProbs() {
-        if (cfTransitionProbs == null)
-            cfTransitionProbs = new double[acg.getNodeCount()-1][siteModel.getCategoryCount()][(nStates+1)*(nStates+1)];
+    protected FlatMarginalTree getMarginalTree(Region region, TraversalWorkspace ws) {
+        if (region.isClonalFrame())
+            return cfCache.getClonalFrameTree();
 
-        for (int ni=0; ni<acg.getNodeCount()-1; ni++) {
-            Node node = acg.getNode(ni);
-            for (int ci=0; ci<siteModel.getCategoryCount(); ci++) {
-                double jointBranchRate = siteModel.getRateForCategory(ci, node)
-                        * branchRateModel.getRateForBranch(node);
-                double parentHeight = node.getParent().getHeight();
-                double nodeHeight = node.getHeight();
-
-                substitutionModel.getTransitionProbabilities(
-                        node,
-                        parentHeight,
-                        nodeHeight,
-                        jointBranchRate,
-                        cfTransitionProbs[ni][ci]);
-            }
-        }
+        return ws.treeBuilder.getMarginalTree(region);
     }
 
-    Deque<MarginalNode> stack = new ArrayDeque<>();
-    MarginalNode[] postOrderNodes;
-
     /**
-     * Assemble list of marginal tree nodes for post-order traversal.
+     * Obtain the CF nodes whose edges carry ancestral material for the
+     * region whose marginal tree was most recently obtained using
+     * getMarginalTree().
      *
-     * @param root root of marginal tree
+     * @param region region
+     * @param ws workspace used to obtain the marginal tree
+     * @return new set of CF node numbers
      */
-    @SuppressWarnings("deprecation")
-    void computePostOrder(MarginalNode root) {
-
-        if (postOrderNodes == null)
-            postOrderNodes = new MarginalNode[acg.getNodeCount()];
+    protected BitSet getAncestralCFNodes(Region region, TraversalWorkspace ws) {
+        if (region.isClonalFrame())
+            return (BitSet)cfCache.getClonalFrameNodes().clone();
 
-        stack.clear();
-        int i = 0;
+        return (BitSet)ws.treeBuilder.getAncestralCFNodes().clone();
+    }
 
-        stack.push(root);
-        while (!stack.isEmpty()) {
-            MarginalNode n = stack.pop();
-            if (!n.isLeaf()) {
-                stack.push((MarginalNode)n.getLeft());
-                stack.push((MarginalNode)n.getRight());
-            }
-            postOrderNodes[postOrderNodes.length-1-(i++)] = n;
+    /**
+     * Scratch memory used while traversing a single marginal tree.  Each
+     * thread evaluating regions requires its own instance.
+     */
+    protected static class TraversalWorkspace {
+        final MarginalTreeBuilder treeBuilder;
+
+        /**
+         * Partials cache slots assigned to marginal nodes, indexed by
+         * marginal node number.
+         */
+        final int[] slots;
+
+        /**
+         * Marginal nodes above which non-CF edges lie together with the
+         * lengths of those edges, and the transition matrices of the
+         * edges indexed by marginal node number.
+         */
+        final int[] edgeNodeNrs;
+        final double[] edgeLengths;
+        final double[][][] edgeMatrices;
+
+        TraversalWorkspace(ConversionGraph acg, int nStates) {
+            treeBuilder = new MarginalTreeBuilder(acg);
+            slots = new int[acg.getNodeCount()];
+            edgeNodeNrs = new int[acg.getNodeCount()];
+            edgeLengths = new double[acg.getNodeCount()];
+            edgeMatrices = new double[acg.getNodeCount()][][];
         }
     }
 
@@ -411,74 +938,154 @@ public class ACGLikelihood extends GenericTreeLikelihood {
      * Traverse a marginal tree, computing partial likelihoods on the way.
      * This version avoids potentially-expensive recursive function calls.
      *
-     * @param root Tree node
+     * Partials are only computed for subtrees not already present in the
+     * subtree partials cache for the region's site range.
+     *
+     * @param tree marginal tree
      * @param region region
+     * @param ws scratch memory for traversal
      */
-    void traverseNoRecurse(MarginalNode root, Region region) {
+    void traverseNoRecurse(FlatMarginalTree tree, Region region, TraversalWorkspace ws) {
+        traverseNoRecurse(tree, partialsCaches.get(getRangeKey(region)),
+                rootPartials.get(region), constantPatterns.get(region),
+                patternLogLikelihoods.get(region), ws);
+    }
 
-        computePostOrder(root);
+    /**
+     * Traverse a marginal tree, computing pattern log likelihoods using
+     * the given partials cache.
+     *
+     * @param tree marginal tree
+     * @param cache subtree partials cache holding leaf data for patterns
+     * @param rootPartials memory for root partials
+     * @param constantPatterns root partials indices of invariant sites
+     * @param patternLogLikelihoods memory for pattern log likelihoods
+     * @param ws scratch memory for traversal
+     */
+    void traverseNoRecurse(FlatMarginalTree tree, SubtreePartialsCache cache,
+                           double[] rootPartials, List<Integer> constantPatterns,
+                           double[] patternLogLikelihoods, TraversalWorkspace ws) {
+
+        LikelihoodCore lhc = cache.getCore();
+        int[] slots = ws.slots;
+        int[] postOrder = tree.postOrder;
+        int nodeCount = tree.getNodeCount();
+
+        cache.beginTraversal();
+
+        // Obtain matrices for all non-CF edges in a single batch.
+        int nEdges = 0;
+        for (int i=0; i<nodeCount; i++) {
+            int nr = postOrder[i];
+            if (tree.isRoot(nr) || isCFEdge(tree, nr))
+                continue;
 
-        LikelihoodCore lhc = likelihoodCores.get(region);
+            ws.edgeNodeNrs[nEdges] = nr;
+            ws.edgeLengths[nEdges] = tree.getLength(nr);
+            nEdges += 1;
+        }
+        if (nEdges > 0)
+            cfCache.getMatrixCache().getMatrices(ws.edgeLengths, ws.edgeNodeNrs,
+                    nEdges, ws.edgeMatrices);
 
-        for (MarginalNode node : postOrderNodes) {
+        for (int i=0; i<nodeCount; i++) {
+            int nr = postOrder[i];
 
-            if (!node.isRoot()) {
-                lhc.setNodeMatrixForUpdate(node.getNr());
+            if (tree.isLeaf(nr)) {
+                slots[nr] = nr;
+                continue;
+            }
 
-                boolean cfEdge = node.cfNodeNr>=0
-                        && !acg.getNode(node.cfNodeNr).isRoot()
-                        && acg.getNode(node.cfNodeNr).getParent().getNr()
-                           == ((MarginalNode)node.getParent()).cfNodeNr;
+            // LikelihoodCore only supports binary trees.
+            int leftNr = tree.left[nr];
+            int rightNr = tree.right[nr];
+            int leftSlot = slots[leftNr];
+            int rightSlot = slots[rightNr];
 
-                if (!cfEdge) {
-                    cacheMisses += 1;
+            int slot = cache.getSlot(leftSlot, rightSlot, tree.height[nr]);
+            if (slot >= 0) {
+                slots[nr] = slot;
+                continue;
+            }
 
-                    for (int i = 0; i < siteModel.getCategoryCount(); i++) {
-                        double jointBranchRate = siteModel.getRateForCategory(i, node)
-                                * branchRateModel.getRateForBranch(node);
-                        double parentHeight = node.getParent().getHeight();
-                        double nodeHeight = node.getHeight();
+            slot = cache.newSlot(leftSlot, rightSlot, tree.height[nr]);
 
-                        substitutionModel.getTransitionProbabilities(
-                                node,
-                                parentHeight,
-                                nodeHeight,
-                                jointBranchRate,
-                                probabilities);
-                        lhc.setNodeMatrix(node.getNr(), i, probabilities);
-                    }
-                } else {
-                    cacheHits += 1;
+            // Child slots may be shared with subtrees hanging from other
+            // parents, so edge matrices are set immediately before use.
+            setEdgeMatrices(lhc, tree, leftNr, leftSlot, ws);
+            setEdgeMatrices(lhc, tree, rightNr, rightSlot, ws);
 
-                    for (int i=0; i<siteModel.getCategoryCount(); i++) {
-                        lhc.setNodeMatrix(node.getNr(), i, cfTransitionProbs[node.cfNodeNr][i]);
-                    }
-                }
-            }
+            lhc.setNodePartialsForUpdate(slot);
+            lhc.setNodeStatesForUpdate(slot);
+            lhc.calculatePartials(leftSlot, rightSlot, slot);
 
-            if (!node.isLeaf()) {
+            slots[nr] = slot;
+        }
 
-                // LikelihoodCore only supports binary trees.
-                List<Node> children = node.getChildren();
-                lhc.setNodePartialsForUpdate(node.getNr());
-                lhc.setNodeStatesForUpdate(node.getNr());
-                lhc.calculatePartials(children.get(0).getNr(),
-                        children.get(1).getNr(), node.getNr());
+        double[] frequencies = substitutionModel.getFrequencies();
+        double[] proportions = siteModel.getCategoryProportions(acg.getRoot());
+        lhc.integratePartials(slots[tree.getRoot()], proportions, rootPartials);
+        lhc.calculateLogLikelihoods(rootPartials, frequencies, patternLogLikelihoods);
+
+        // Invariant sites are added in log space, as dividing them by the
+        // scale factor of a deep tree would overflow.
+        double pInv = siteModel.getProportionInvariant();
+        if (pInv > 0.0) {
+            for (int idx : constantPatterns) {
+                int pattern = idx/nStates;
+                patternLogLikelihoods[pattern] = logSumExp(patternLogLikelihoods[pattern],
+                        Math.log(pInv*frequencies[idx%nStates]));
+            }
+        }
+    }
 
-                if (node.isRoot()) {
-                    double[] frequencies = substitutionModel.getFrequencies();
-                    double[] proportions = siteModel.getCategoryProportions(node);
-                    lhc.integratePartials(node.getNr(), proportions,
-                            rootPartials.get(region));
+    /**
+     * @param a first log value
+     * @param b second log value
+     * @return log(exp(a) + exp(b)), computed without overflow
+     */
+    static double logSumExp(double a, double b) {
+        double max = Math.max(a, b);
+        if (max == Double.NEGATIVE_INFINITY)
+            return max;
 
-                    for (int idx : constantPatterns.get(region)) {
-                        rootPartials.get(region)[idx]
-                                += siteModel.getProportionInvariant();
-                    }
+        return max + Math.log1p(Math.exp(Math.min(a, b) - max));
+    }
 
-                    lhc.calculateLogLikelihoods(rootPartials.get(region),
-                            frequencies, patternLogLikelihoods.get(region));
-                }
+    /**
+     * @param tree marginal tree
+     * @param nr number of non-root marginal node
+     * @return true if the edge above node coincides with a CF edge
+     */
+    private boolean isCFEdge(FlatMarginalTree tree, int nr) {
+        int cfNodeNr = tree.cfNodeNr[nr];
+        return cfNodeNr>=0
+                && !acg.getNode(cfNodeNr).isRoot()
+                && acg.getNode(cfNodeNr).getParent().getNr()
+                   == tree.cfNodeNr[tree.parent[nr]];
+    }
+
+    /**
+     * Set transition matrices for the marginal edge above the given node.
+     * Matrices of non-CF edges must already be present in the workspace.
+     *
+     * @param lhc likelihood core
+     * @param tree marginal tree
+     * @param nr number of non-root marginal node
+     * @param slot slot holding partials for subtree below node
+     * @param ws scratch memory for traversal
+     */
+    private void setEdgeMatrices(LikelihoodCore lhc, FlatMarginalTree tree, int nr,
+                                 int slot, TraversalWorkspace ws) {
+        lhc.setNodeMatrixForUpdate(slot);
+
+        if (!isCFEdge(tree, nr)) {
+            double[][] matrices = ws.edgeMatrices[nr];
+            for (int i=0; i<siteModel.getCategoryCount(); i++)
+                lhc.setNodeMatrix(slot, i, matrices[i]);
+        } else {
+            for (int i=0; i<siteModel.getCategoryCount(); i++) {
+                lhc.setNodeMatrix(slot, i, cfCache.getTransitionProbs(tree.cfNodeNr[nr], i));
             }
         }
     }
@@ -500,63 +1107,97 @@ public class ACGLikelihood extends GenericTreeLikelihood {
 
     @Override
     protected boolean requiresRecalculation() {
-        if (acg.clonalFrameIsDirty()
-                || siteModel.isDirtyCalculation()
+        if (siteModel.isDirtyCalculation()
                 || branchRateModel.isDirtyCalculation())
             regionLogLikelihoods.clear();
+        else if (acg.clonalFrameIsDirty())
+            invalidateDirtyRegions();
+
+        // Cached subtree partials are keyed on node heights, so survive
+        // clonal frame changes but not changes to rates or the
+        // substitution model.
+        if (siteModel.isDirtyCalculation() || branchRateModel.isDirtyCalculation())
+            flushPartialsCaches();
+
+        if (ownsCFCache)
+            cfCache.requiresRecalculation();
 
         return true;
     }
 
-    @Override
-    public void store() {
-        storedPatterns.clear();
-        storedPatterns.putAll(patterns);
-
-        storedPatternLogLikelihoods.clear();
-        storedPatternLogLikelihoods.putAll(patternLogLikelihoods);
+    /**
+     * Discard log likelihoods of regions whose marginal trees may have
+     * been altered by a clonal frame change.  Changing a node's height
+     * or parent marks both it and its children dirty, so it suffices to
+     * check for dirty nodes among those whose parent edges carry
+     * ancestral material.
+     */
+    protected void invalidateDirtyRegions() {
+        BitSet dirtyCFNodes = new BitSet(acg.getNodeCount());
+        for (Node node : acg.getNodesAsArray())
+            if (node.isDirty() > Tree.IS_CLEAN)
+                dirtyCFNodes.set(node.getNr());
+
+        List<Region> invalidRegions = new ArrayList<>();
+        for (Region region : regionLogLikelihoods.keyList()) {
+            BitSet cfNodes = regionCFNodes.get(region);
+            if (cfNodes == null || cfNodes.intersects(dirtyCFNodes))
+                invalidRegions.add(region);
+        }
 
-        storedConstantPatterns.clear();
-        storedConstantPatterns.putAll(constantPatterns);
+        for (Region region : invalidRegions)
+            regionLogLikelihoods.remove(region);
+    }
 
-        storedRootPartials.clear();
-        storedRootPartials.putAll(rootPartials);
+    @Override
+    public void store() {
+        patterns.store();
+        patternLogLikelihoods.store();
+        constantPatterns.store();
+        rootPartials.store();
+        regionLogLikelihoods.store();
+        regionCFNodes.store();
 
-        storedLikelihoodCores.clear();
-        storedLikelihoodCores.putAll(likelihoodCores);
+        partialsCachesFlushed = false;
 
-        storedRegionLogLikelihoods.clear();
-        storedRegionLogLikelihoods.putAll(regionLogLikelihoods);
+        if (ownsCFCache)
+            cfCache.store();
 
         super.store();
     }
 
     @Override
     public void restore() {
-        Map<Region, Multiset<int[]>> tmpPatterns = patterns;
-        patterns = storedPatterns;
-        storedPatterns = tmpPatterns;
-
-        Map<Region, double[]> tmpPatternLogLikelihoods = patternLogLikelihoods;
-        patternLogLikelihoods = storedPatternLogLikelihoods;
-        storedPatternLogLikelihoods = tmpPatternLogLikelihoods;
-
-        Map<Region, double[]> tmpRootPartials = rootPartials;
-        rootPartials = storedRootPartials;
-        storedRootPartials = tmpRootPartials;
+        patterns.restore();
+        patternLogLikelihoods.restore();
+        rootPartials.restore();
+        constantPatterns.restore();
+        regionLogLikelihoods.restore();
+        regionCFNodes.restore();
+
+        // Partials computed under rejected parameter values are invalid.
+        if (partialsCachesFlushed) {
+            for (SubtreePartialsCache cache : partialsCaches.values())
+                cache.clear();
+            partialsCachesFlushed = false;
+        }
 
-        Map<Region, LikelihoodCore> tmpLikelihoodCores = likelihoodCores;
-        likelihoodCores = storedLikelihoodCores;
-        storedLikelihoodCores = tmpLikelihoodCores;
+        if (ownsCFCache)
+            cfCache.restore();
 
-        Map<Region, List<Integer>> tmpConstantPatterns = constantPatterns;
-        constantPatterns = storedConstantPatterns;
-        storedConstantPatterns = tmpConstantPatterns;
+        super.restore();
+    }
 
-        Map<Region, Double> tmpRegionLogLikelihoods = regionLogLikelihoods;
-        regionLogLikelihoods = storedRegionLogLikelihoods;
-        storedRegionLogLikelihoods = tmpRegionLogLikelihoods;
+    @Override
+    public void accept() {
+        // Caches of the accepted state become the stored state's caches,
+        // which are the most likely to be needed again.
+        for (Region region : patterns.keyList()) {
+            CacheUsage usage = partialsCacheUsage.get(getRangeKey(region));
+            if (usage != null)
+                usage.lastAccepted = evaluationCount;
+        }
 
-        super.restore();
+        super.accept();
     }
 }
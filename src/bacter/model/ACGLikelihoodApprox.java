@@ -7,7 +7,6 @@ import beast.core.Input;
 import beast.core.State;
 import beast.core.parameter.RealParameter;
 import beast.evolution.alignment.Alignment;
-import beast.evolution.tree.Node;
 import beast.math.Binomial;
 
 import java.util.*;
@@ -38,6 +37,12 @@ public class ACGLikelihoodApprox extends Distribution {
             "Locus alignment is associated with.",
             Input.Validate.REQUIRED);
 
+    /**
+     * Leaf set pool is cleared once it holds more than this many sets
+     * per ACG node.
+     */
+    private static final int MAX_POOLED_LEAF_SETS_PER_NODE = 64;
+
     private int nLeaves;
     private int[][] cumulativeHD;
     private int[] pairNrLookup;
@@ -45,6 +50,24 @@ public class ACGLikelihoodApprox extends Distribution {
     ConversionGraph acg;
     Locus locus;
 
+    /**
+     * Coalescences found by the most recent call to findCoalescences().
+     * Coalescence objects are reused between calls.
+     */
+    private final List<Coalescence> coalescences = new ArrayList<>();
+    private double[] coalescenceHeights = new double[16];
+    private int coalescenceCount;
+
+    /**
+     * Scratch state of findCoalescences(): interned leaf sets, ancestries
+     * of active CF edges (indexed by node number) and conversions, and
+     * ancestry objects available for reuse.
+     */
+    private final LeafSetPool leafSetPool = new LeafSetPool();
+    private SiteAncestry[] activeCFNodes = new SiteAncestry[0];
+    private final Map<Conversion, SiteAncestry> activeConversions = new IdentityHashMap<>();
+    private final Deque<SiteAncestry> freeAncestries = new ArrayDeque<>();
+
     public ACGLikelihoodApprox() { }
 
     @Override
@@ -62,17 +85,17 @@ public class ACGLikelihoodApprox extends Distribution {
     public double calculateLogP() {
         logP = 0.0;
 
-        Map<Double, Coalescence> heightMap = getCoalescenceHeights();
+        findCoalescences();
 
-        for (Map.Entry<Double, Coalescence> entry : heightMap.entrySet()) {
-            double height = entry.getKey();
-            Coalescence coalescence = entry.getValue();
+        for (int c=0; c<coalescenceCount; c++) {
+            double height = coalescenceHeights[c];
+            Coalescence coalescence = coalescences.get(c);
 
             for (int i=0; i<coalescence.getIntervalCount(); i++) {
-                BitSet dl1 = coalescence.descendantLeaves1.get(i);
-                BitSet dl2 = coalescence.descendantLeaves2.get(i);
-                int x = coalescence.siteRanges.get(2*i);
-                int y = coalescence.siteRanges.get(2*i + 1);
+                BitSet dl1 = coalescence.getDescendantLeaves1(i);
+                BitSet dl2 = coalescence.getDescendantLeaves2(i);
+                int x = coalescence.siteRanges.getStart(i);
+                int y = coalescence.siteRanges.getEnd(i);
 
                 double time = 0;
                 double h = 0;
@@ -115,80 +138,165 @@ public class ACGLikelihoodApprox extends Distribution {
 
     /**
      * @return map from heights of coalescences to objects describing
-     * the sites and samples they involve.
+     * the sites and samples they involve.  The objects are only valid
+     * until the next likelihood calculation.
      */
     Map<Double, Coalescence> getCoalescenceHeights() {
+        findCoalescences();
 
         Map<Double, Coalescence> heightMap = new HashMap<>();
+        for (int c=0; c<coalescenceCount; c++)
+            heightMap.put(coalescenceHeights[c], coalescences.get(c));
 
-        Map<Node, SiteAncestry> activeCFNodes = new HashMap<>();
-        Map<Conversion, SiteAncestry> activeConversions = new HashMap<>();
+        return heightMap;
+    }
+
+    /**
+     * Find the heights of coalescences and the sites and samples they
+     * involve, ordered by height.  Site ancestries and coalescences are
+     * recycled, so that once buffers have grown to size little is
+     * allocated besides the event list.
+     */
+    private void findCoalescences() {
+
+        coalescenceCount = 0;
+
+        if (activeCFNodes.length != acg.getNodeCount())
+            activeCFNodes = new SiteAncestry[acg.getNodeCount()];
+
+        // Interned sets are never released, so discard them all should
+        // the pool grow large.
+        if (leafSetPool.size() > MAX_POOLED_LEAF_SETS_PER_NODE*acg.getNodeCount())
+            leafSetPool.clear();
 
         ACGEventList acgEventList = new ACGEventList(acg, locus);
 
         for (ACGEventList.Event event : acgEventList.getACGEvents()) {
 
+            int nodeNr = event.node.getNr();
+
             switch (event.type) {
                 case CF_LEAF:
-                    activeCFNodes.put(event.node, new SiteAncestry(event.node, locus));
+                    SiteAncestry leafAncestry = getFreeAncestry();
+                    leafAncestry.addInterval(0, locus.getSiteCount(),
+                            leafSetPool.getLeaf(nodeNr));
+                    activeCFNodes[nodeNr] = leafAncestry;
 
                     break;
 
                 case CF_COALESCENCE:
-                    Node node1 = event.node.getLeft();
-                    Node node2 = event.node.getRight();
+                    int node1Nr = event.node.getLeft().getNr();
+                    int node2Nr = event.node.getRight().getNr();
 
-                    SiteAncestry ancestryCF = new SiteAncestry();
-                    Coalescence coalescenceCF = new Coalescence();
-                    activeCFNodes.get(node1).merge(activeCFNodes.get(node2),
-                            coalescenceCF, ancestryCF);
+                    SiteAncestry ancestryCF = getFreeAncestry();
+                    Coalescence coalescenceCF = getFreeCoalescence();
+                    activeCFNodes[node1Nr].merge(activeCFNodes[node2Nr],
+                            coalescenceCF, ancestryCF, leafSetPool);
 
-                    activeCFNodes.remove(node1);
-                    activeCFNodes.remove(node2);
-                    activeCFNodes.put(event.node, ancestryCF);
+                    releaseAncestry(activeCFNodes[node1Nr]);
+                    releaseAncestry(activeCFNodes[node2Nr]);
+                    activeCFNodes[node1Nr] = null;
+                    activeCFNodes[node2Nr] = null;
+                    activeCFNodes[nodeNr] = ancestryCF;
 
-                    if (coalescenceCF.getIntervalCount()>0)
-                        heightMap.put(event.t, coalescenceCF);
+                    recordCoalescence(event.t);
 
                     break;
 
                 case CONV_DEPART:
-                    SiteAncestry inside = new SiteAncestry();
-                    SiteAncestry outside = new SiteAncestry();
-                    activeCFNodes.get(event.node).split(
+                    SiteAncestry inside = getFreeAncestry();
+                    SiteAncestry outside = getFreeAncestry();
+                    activeCFNodes[nodeNr].split(
                             event.conversion.getStartSite(),
                             event.conversion.getEndSite()+1,
                             inside, outside);
 
                     if (inside.getIntervalCount()>0) {
-                        activeCFNodes.put(event.node, outside);
+                        releaseAncestry(activeCFNodes[nodeNr]);
+                        activeCFNodes[nodeNr] = outside;
                         activeConversions.put(event.conversion, inside);
+                    } else {
+                        releaseAncestry(inside);
+                        releaseAncestry(outside);
                     }
 
                     break;
 
                 case CONV_ARRIVE:
 
-                    if (!activeConversions.containsKey(event.conversion))
+                    SiteAncestry convAncestry = activeConversions.remove(event.conversion);
+                    if (convAncestry == null)
                         continue;
 
-                    SiteAncestry ancestry = new SiteAncestry();
-                    Coalescence coalescence = new Coalescence();
-                    activeCFNodes.get(event.node).merge(activeConversions.get(event.conversion),
-                            coalescence, ancestry);
+                    SiteAncestry ancestry = getFreeAncestry();
+                    Coalescence coalescence = getFreeCoalescence();
+                    activeCFNodes[nodeNr].merge(convAncestry,
+                            coalescence, ancestry, leafSetPool);
 
-                    activeCFNodes.put(event.node, ancestry);
-                    activeConversions.remove(event.conversion);
+                    releaseAncestry(activeCFNodes[nodeNr]);
+                    releaseAncestry(convAncestry);
+                    activeCFNodes[nodeNr] = ancestry;
 
-                    if (coalescence.getIntervalCount()>0)
-                        heightMap.put(event.t, coalescence);
+                    recordCoalescence(event.t);
 
                     break;
             }
 
         }
 
-        return heightMap;
+        for (int nr=0; nr<activeCFNodes.length; nr++) {
+            if (activeCFNodes[nr] != null) {
+                releaseAncestry(activeCFNodes[nr]);
+                activeCFNodes[nr] = null;
+            }
+        }
+
+        for (SiteAncestry ancestry : activeConversions.values())
+            releaseAncestry(ancestry);
+        activeConversions.clear();
+    }
+
+    /**
+     * @return empty site ancestry
+     */
+    private SiteAncestry getFreeAncestry() {
+        SiteAncestry ancestry = freeAncestries.poll();
+        return ancestry != null ? ancestry : new SiteAncestry();
+    }
+
+    /**
+     * @param ancestry site ancestry no longer in use
+     */
+    private void releaseAncestry(SiteAncestry ancestry) {
+        ancestry.clear();
+        freeAncestries.push(ancestry);
+    }
+
+    /**
+     * @return coalescence object following those recorded so far
+     */
+    private Coalescence getFreeCoalescence() {
+        if (coalescenceCount == coalescences.size())
+            coalescences.add(new Coalescence());
+
+        return coalescences.get(coalescenceCount);
+    }
+
+    /**
+     * Record the coalescence object last obtained from
+     * getFreeCoalescence(), provided it involves any sites.
+     *
+     * @param height height of coalescence
+     */
+    private void recordCoalescence(double height) {
+        if (coalescences.get(coalescenceCount).getIntervalCount() == 0)
+            return;
+
+        if (coalescenceCount == coalescenceHeights.length)
+            coalescenceHeights = Arrays.copyOf(coalescenceHeights, 2*coalescenceCount);
+
+        coalescenceHeights[coalescenceCount] = height;
+        coalescenceCount += 1;
     }
 
     private void computePairwiseDistances() {
@@ -17,6 +17,7 @@
 package bacter.model;
 
 import bacter.*;
+import bacter.util.JournaledArrayMap;
 import beagle.Beagle;
 import beagle.BeagleFactory;
 import beast.core.Description;
@@ -30,15 +31,25 @@ import beast.evolution.sitemodel.SiteModel;
 import beast.evolution.substitutionmodel.EigenDecomposition;
 import beast.evolution.substitutionmodel.SubstitutionModel;
 import beast.evolution.tree.Node;
-import com.google.common.collect.LinkedHashMultiset;
-import com.google.common.collect.Multiset;
 
 import java.util.*;
 
 /**
  * ACGLikelihood that uses libhmsbeagle to compute marginal tree likelihoods.
- * This is EXPERIMENTAL, and may actually incur a performance hit over the
- * java ACGLikelihood due to the cost of spinning up beagle instances.
+ *
+ * Regions are evaluated using a small number of Beagle instances, each
+ * of which serves all regions whose pattern counts round up to the same
+ * capacity (see LikelihoodCorePool.getPatternCapacity()).  Each instance
+ * is divided into slots, each slot being a contiguous range of partials
+ * and transition matrix buffers holding the computation for one region.
+ * All dirty regions sharing an instance are evaluated using a single
+ * updatePartials() call.
+ *
+ * Slots are never overwritten while they may be needed by a restore():
+ * a recomputed region is always assigned a fresh slot, and slots released
+ * during an MCMC step only become available again once the step is
+ * accepted.  Store and restore therefore amount to swapping the
+ * region-to-slot map.
  *
  * @author Tim Vaughan <tgvaughan@gmail.com>
  */
@@ -55,6 +66,27 @@ public class ACGLikelihoodBeagle extends GenericTreeLikelihood {
             "Whether sites containing ambiguous states should be handled " +
                     "instead of ignored (the default)", false);
 
+    public Input<Boolean> useJavaBeagleInput = new Input<>(
+            "useJavaBeagle",
+            "Use the pure-Java Beagle implementation rather than the " +
+                    "native BEAGLE library.", false);
+
+    public Input<Integer> threadCountInput = new Input<>(
+            "threads",
+            "Number of threads the pure-Java Beagle implementation splits " +
+                    "patterns across. (Default 1.)", 1);
+
+    /**
+     * Maximum number of regions handled by a single Beagle instance.
+     */
+    public static final int MAX_SLOTS_PER_INSTANCE = 64;
+
+    /**
+     * Approximate number of partials entries a Beagle instance is allowed
+     * to hold.  Instances always have at least one slot.
+     */
+    public static final long INSTANCE_PARTIALS_BUDGET = 1L << 22;
+
     protected ConversionGraph acg;
 
     protected SiteModel.Base siteModel;
@@ -64,17 +96,81 @@ public class ACGLikelihoodBeagle extends GenericTreeLikelihood {
     protected Locus locus;
     protected int nStates;
 
-    protected Map<Region, Multiset<int[]>> patterns;
-    protected Map<Region, Multiset<int[]>> storedPatterns;
-    protected Map<Region, List<Integer>> constantPatterns;
-    protected Map<Region, List<Integer>> storedConstantPatterns;
-    protected Map<Region, Beagle> beagleInstances;
-    protected Map<Region, Double> regionLogLikelihoods;
-    protected Map<Region, Double> storedRegionLogLikelihoods;
+    protected PatternDictionary patternDictionary;
+
+    /**
+     * Per-region data, indexed by region ID.
+     */
+    protected JournaledArrayMap<Region, PatternDictionary.RegionPatterns> patterns;
+    protected JournaledArrayMap<Region, Double> regionLogLikelihoods;
+    protected JournaledArrayMap<Region, RegionSlot> regionSlots;
+
+    /**
+     * Beagle instances, keyed by pattern capacity.
+     */
+    protected Map<Integer, List<RegionInstance>> instances;
+
+    /**
+     * Slots acquired and released since the last call to store().
+     */
+    protected List<RegionSlot> acquiredSlots, releasedSlots;
+
+    MarginalTreeBuilder marginalTreeBuilder;
+
+    /**
+     * Slot occupied by a region within a Beagle instance.
+     */
+    protected static class RegionSlot {
+        final RegionInstance instance;
+        final int slot;
 
-    int[] nodeNrs;
-    double[] edgeLengths;
-    int[] operationList, operationListIdx;
+        RegionSlot(RegionInstance instance, int slot) {
+            this.instance = instance;
+            this.slot = slot;
+        }
+
+        /**
+         * @param nodeNr marginal node number
+         * @return index of partials and transition matrix buffers
+         * associated with marginal node
+         */
+        int getBufferIndex(int nodeNr) {
+            return slot*instance.nodeCount + nodeNr;
+        }
+    }
+
+    /**
+     * Beagle instance together with the slot bookkeeping and the
+     * operations pending for its dirty regions.
+     */
+    protected static class RegionInstance {
+        final Beagle beagle;
+        final int capacity, slotCount, nodeCount;
+        final Deque<Integer> freeSlots = new ArrayDeque<>();
+
+        final int[] operations, matrixIndices;
+        final double[] edgeLengths, siteLogLikelihoods;
+        int operationCount, matrixCount;
+
+        final List<Region> pendingRegions = new ArrayList<>();
+        final int[] pendingRoots;
+
+        RegionInstance(Beagle beagle, int capacity, int slotCount, int nodeCount) {
+            this.beagle = beagle;
+            this.capacity = capacity;
+            this.slotCount = slotCount;
+            this.nodeCount = nodeCount;
+
+            for (int slot=slotCount-1; slot>=0; slot--)
+                freeSlots.push(slot);
+
+            operations = new int[slotCount*nodeCount*Beagle.OPERATION_TUPLE_SIZE];
+            matrixIndices = new int[slotCount*nodeCount];
+            edgeLengths = new double[slotCount*nodeCount];
+            siteLogLikelihoods = new double[capacity];
+            pendingRoots = new int[slotCount];
+        }
+    }
 
     public ACGLikelihoodBeagle() {
         // We allow alignments to be specified using Locus objects.
@@ -116,258 +212,312 @@ public class ACGLikelihoodBeagle extends GenericTreeLikelihood {
         } else
             branchRateModel = new StrictClockModel();
 
-        patterns = new HashMap<>();
-        storedPatterns = new HashMap<>();
-        constantPatterns = new HashMap<>();
-        storedConstantPatterns = new HashMap<>();
-        beagleInstances = new HashMap<>();
-        regionLogLikelihoods = new HashMap<>();
-        storedRegionLogLikelihoods = new HashMap<>();
-
-        edgeLengths = new double[acg.getNodeCount()-1];
-        nodeNrs = new int[acg.getNodeCount()-1];
-        for (int i=0; i<nodeNrs.length; i++)
-            nodeNrs[i] = i;
-
-        operationList = new int[acg.getInternalNodeCount() * Beagle.OPERATION_TUPLE_SIZE];
-        operationListIdx = new int[1];
-    }
-
-    @Override
-    public double calculateLogP() {
-        updatePatterns();
-        updateBeagleInstances();
+        patternDictionary = new PatternDictionary(acg, alignment,
+                useAmbiguitiesInput.get());
 
-        logP = 0.0;
+        patterns = new JournaledArrayMap<>(Region::getID);
+        regionLogLikelihoods = new JournaledArrayMap<>(Region::getID);
+        regionSlots = new JournaledArrayMap<>(Region::getID);
 
-        regionLogLikelihoods.keySet().retainAll(acg.getRegions(locus));
+        instances = new HashMap<>();
+        acquiredSlots = new ArrayList<>();
+        releasedSlots = new ArrayList<>();
 
-        int rootNr = acg.getRoot().getNr();
-        double[] regionLogP = new double[1];
+        marginalTreeBuilder = new MarginalTreeBuilder(acg);
 
-        for (Region region : acg.getRegions(locus)) {
+        if (threadCountInput.get() < 1)
+            throw new IllegalArgumentException("ACGLikelihoodBeagle requires at " +
+                    "least one thread.");
+    }
 
-            if (!regionLogLikelihoods.containsKey(region)) {
-                Beagle beagle = beagleInstances.get(region);
-                MarginalTree marginalTree = new MarginalTree(acg, region);
+    @Override
+    public double calculateLogP() {
+        List<Region> regionList = acg.getRegions(locus);
 
-                operationListIdx[0] = 0;
-                buildOperationList(beagle, marginalTree.getRoot(), region);
+        updatePatterns(regionList);
 
-                beagle.setCategoryRates(siteModel.getCategoryRates(null));
-                beagle.setCategoryWeights(0, siteModel.getCategoryProportions(null));
-                beagle.setStateFrequencies(0, substitutionModel.getFrequencies());
+        // Release slots of regions which are no longer current
+        regionLogLikelihoods.retainAll(regionList);
+        for (Region region : regionSlots.keyList()) {
+            if (!regionLogLikelihoods.containsKey(region))
+                releasedSlots.add(regionSlots.remove(region));
+        }
 
-                beagle.updateTransitionMatrices(0, nodeNrs,
-                        null, null, edgeLengths, edgeLengths.length);
+        // Assemble operations for dirty regions
+        Set<RegionInstance> dirtyInstances = new LinkedHashSet<>();
+        for (Region region : regionList) {
+            if (regionLogLikelihoods.containsKey(region))
+                continue;
 
-                beagle.updatePartials(operationList, operationListIdx[0], Beagle.NONE);
+            PatternDictionary.RegionPatterns regionPatterns = patterns.get(region);
+            RegionSlot regionSlot = acquireSlot(regionPatterns.getPatternCount());
+            regionSlots.put(region, regionSlot);
 
-                beagle.calculateRootLogLikelihoods(
-                        new int[]{rootNr},
-                        new int[]{0},
-                        new int[]{0},
-                        new int[]{Beagle.NONE},
-                        1,
-                        regionLogP);
+            setLeafPartials(regionSlot, regionPatterns);
+            addOperations(regionSlot, region);
 
-                regionLogLikelihoods.put(region, regionLogP[0]);
-                logP += regionLogP[0];
-            } else {
-                logP += regionLogLikelihoods.get(region);
-            }
+            dirtyInstances.add(regionSlot.instance);
         }
 
+        // Evaluate dirty regions
+        for (RegionInstance instance : dirtyInstances)
+            updateInstance(instance);
+
+        logP = 0.0;
+        for (Region region : regionList)
+            logP += regionLogLikelihoods.get(region);
+
         return logP;
     }
 
     /**
      * Ensure pattern counts are up to date.
+     *
+     * @param regionList list of regions
      */
-    private void updatePatterns() {
-        List<Region> regionList = acg.getRegions(locus);
+    private void updatePatterns(List<Region> regionList) {
 
         // Remove stale pattern sets
-        patterns.keySet().retainAll(regionList);
-        constantPatterns.keySet().retainAll(regionList);
+        patterns.retainAll(regionList);
 
         for (Region region : regionList) {
 
             if (patterns.containsKey(region))
                 continue;
 
-            // Add new pattern set
-            Multiset<int[]> patSet = LinkedHashMultiset.create();
-            for (int j=region.leftBoundary; j<region.rightBoundary; j++) {
-                int [] pat = alignment.getPattern(alignment.getPatternIndex(j));
-                patSet.add(pat);
-            }
-            patterns.put(region, patSet);
-
-            // Compute corresponding constant pattern list
-            List<Integer> constantPatternList = new ArrayList<>();
-
-            int patternIdx = 0;
-            for (int[] pattern : patSet.elementSet()) {
-                boolean isConstant = true;
-                for (int i=1; i<pattern.length; i++)
-                    if (pattern[i] != pattern[0]) {
-                        isConstant = false;
-                        break;
-                    }
-
-                if (isConstant) {
-                    if (alignment.getDataType().isAmbiguousCode(pattern[0])) {
-                        if (useAmbiguitiesInput.get()) {
-                            for (int state : alignment.getDataType().getStatesForCode(pattern[0]))
-                                constantPatternList.add(patternIdx * nStates + state);
-                        }
-                    } else {
-                        constantPatternList.add(patternIdx * nStates + pattern[0]);
-                    }
-                }
+            patterns.put(region, patternDictionary.getRegionPatterns(
+                    region.leftBoundary, region.rightBoundary));
+        }
+    }
 
-                patternIdx += 1;
+    /**
+     * Obtain an unused slot from an instance able to evaluate the given
+     * number of patterns, creating a new instance if necessary.
+     *
+     * @param patternCount number of patterns to evaluate
+     * @return newly acquired slot
+     */
+    private RegionSlot acquireSlot(int patternCount) {
+        int capacity = LikelihoodCorePool.getPatternCapacity(patternCount);
+
+        List<RegionInstance> instanceList = instances.computeIfAbsent(
+                capacity, k -> new ArrayList<>());
+
+        RegionInstance instance = null;
+        for (RegionInstance candidate : instanceList) {
+            if (!candidate.freeSlots.isEmpty()) {
+                instance = candidate;
+                break;
             }
+        }
 
-            constantPatterns.put(region, constantPatternList);
+        if (instance == null) {
+            instance = createInstance(capacity);
+            instanceList.add(instance);
         }
+
+        RegionSlot regionSlot = new RegionSlot(instance, instance.freeSlots.pop());
+        acquiredSlots.add(regionSlot);
+
+        return regionSlot;
     }
-    
-    
+
     /**
-     * Initialize beagle instances.
+     * Create a Beagle instance with as many slots as fit within the
+     * partials budget.  All leaves are represented using partials so
+     * that every slot has its own leaf buffers.
+     *
+     * @param capacity number of patterns evaluated by instance
+     * @return new instance
      */
-    private void updateBeagleInstances() {
-
-        List<Region> regionList = acg.getRegions(locus);
-        beagleInstances.keySet().retainAll(regionList);
-
-        for (Region region : regionList) {
-            Beagle beagleInstance = BeagleFactory.loadBeagleInstance(
+    private RegionInstance createInstance(int capacity) {
+        int nodeCount = acg.getNodeCount();
+        int categoryCount = siteModel.getCategoryCount();
+
+        long slotSize = (long)nodeCount*capacity*nStates*categoryCount;
+        int slotCount = (int)Math.max(1, Math.min(MAX_SLOTS_PER_INSTANCE,
+                INSTANCE_PARTIALS_BUDGET/slotSize));
+
+        Beagle beagle;
+        if (useJavaBeagleInput.get()) {
+            beagle = new JavaBeagle(
+                    acg.getLeafNodeCount(), slotCount*nodeCount, 0,
+                    nStates, capacity, 1, slotCount*nodeCount,
+                    categoryCount, 0, threadCountInput.get());
+        } else {
+            beagle = BeagleFactory.loadBeagleInstance(
                     acg.getLeafNodeCount(), // Number of tips
-                    acg.getNodeCount(), // Number of partials
-                    useAmbiguitiesInput.get() ? 0 : acg.getLeafNodeCount(), // Number of compacts
+                    slotCount*nodeCount, // Number of partials
+                    0, // Number of compacts
                     nStates, // Number of discrete states in model (4 for DNA)
-                    patterns.get(region).elementSet().size(), // Number of patterns
+                    capacity, // Number of patterns
                     1, // Number of eigen decompositions
-                    acg.getNodeCount()-1, // Number of transition matrices (one per edge)
-                    siteModel.getCategoryCount(), // Number of rate categories
+                    slotCount*nodeCount, // Number of transition matrices
+                    categoryCount, // Number of rate categories
                     0, // Number of scaling buffers (0 means not needed)
                     null, // Potential resource list (null -> no restriction)
                     0, // bit flags indicating preferred implementation characteristics
                     0); // bit flags indicating required implementation characteristics
+        }
+
+        // Region weights are applied to the site log likelihoods directly.
+        double[] weights = new double[capacity];
+        Arrays.fill(weights, 1.0);
+        beagle.setPatternWeights(weights);
+
+        return new RegionInstance(beagle, capacity, slotCount, nodeCount);
+    }
+
+    /**
+     * Set leaf partials for the given slot.  Patterns beyond the region's
+     * own pattern count are padded with missing data.
+     *
+     * @param regionSlot slot to initialize
+     * @param patterns patterns present in region
+     */
+    protected void setLeafPartials(RegionSlot regionSlot,
+                                   PatternDictionary.RegionPatterns patterns) {
+        int capacity = regionSlot.instance.capacity;
+        int n = capacity*nStates;
+        int categoryCount = siteModel.getCategoryCount();
+
+        for (Node node : acg.getExternalNodes()) {
+            double[] partials = new double[n*categoryCount];
 
             if (useAmbiguitiesInput.get()) {
-                setPartials(beagleInstance, patterns.get(region));
+                System.arraycopy(patternDictionary.getLeafPartials(
+                        node.getNr(), patterns.patternIDs, capacity),
+                        0, partials, 0, n);
             } else {
-                setStates(beagleInstance, patterns.get(region));
+                int[] states = patternDictionary.getLeafStates(
+                        node.getNr(), patterns.patternIDs, capacity);
+                for (int i=0; i<capacity; i++) {
+                    if (states[i] < nStates)
+                        partials[i*nStates + states[i]] = 1.0;
+                    else
+                        Arrays.fill(partials, i*nStates, (i+1)*nStates, 1.0);
+                }
             }
 
-            double weights[] = new double[patterns.get(region).elementSet().size()];
-            int i=0;
-            for (int[] pattern : patterns.get(region).elementSet())
-                weights[i++] = patterns.get(region).count(pattern);
-            beagleInstance.setPatternWeights(weights);
-
-            EigenDecomposition ed = substitutionModel.getEigenDecomposition(null);
-            beagleInstance.setEigenDecomposition(0,
-                    ed.getEigenVectors(),
-                    ed.getInverseEigenVectors(),
-                    ed.getEigenValues());
-
-            beagleInstance.setCategoryRates(siteModel.getCategoryRates(null));
-            beagleInstance.setCategoryWeights(0, siteModel.getCategoryProportions(null));
-            beagleInstance.setStateFrequencies(0, substitutionModel.getFrequencies());
+            for (int cIdx = 1; cIdx<categoryCount; cIdx++)
+                System.arraycopy(partials, 0, partials, n*cIdx, n);
 
-            beagleInstances.put(region, beagleInstance);
+            regionSlot.instance.beagle.setPartials(
+                    regionSlot.getBufferIndex(node.getNr()), partials);
         }
     }
-    
-    
+
     /**
-     * Set leaf states in a Beagle instance
-     * 
-     * @param beagle beagle instance object
-     * @param patterns leaf state patterns
+     * Append the partials operations and transition matrices required
+     * to evaluate a region to the list pending on its instance.
+     *
+     * @param regionSlot slot assigned to region
+     * @param region region to evaluate
      */
-    void setStates(Beagle beagle, Multiset<int[]> patterns) {
-        
-        for (Node node : acg.getExternalNodes()) {
-            int[] states = new int[patterns.size()];
-            int taxon = alignment.getTaxonIndex(node.getID());
-            int i=0;
-            for (int [] pattern : patterns.elementSet()) {
-//                int code = pattern[taxon];
-//                int[] statesForCode = alignment.getDataType().getStatesForCode(code);
-//                if (statesForCode.length==1)
-//                    states[i] = statesForCode[0];
-//                else
-//                    states[i] = code; // Causes ambiguous states to be ignored.
-                states[i] = pattern[taxon];
-
-                i += 1;
-            }
-            beagle.setTipStates(node.getNr(), states);
-        }
+    private void addOperations(RegionSlot regionSlot, Region region) {
+        FlatMarginalTree tree = marginalTreeBuilder.getMarginalTree(region);
+        buildOperationList(regionSlot, tree);
+
+        RegionInstance instance = regionSlot.instance;
+        instance.pendingRoots[instance.pendingRegions.size()] =
+                regionSlot.getBufferIndex(tree.getRoot());
+        instance.pendingRegions.add(region);
     }
 
-
     /**
-     * Set leaf partials in a Beagle instance
+     * Append the transition matrices and partials operations of a
+     * marginal tree, visiting its nodes in post-order.
      *
-     * @param beagle beagle instance object
-     * @param patterns leaf state patterns
+     * @param regionSlot slot assigned to region
+     * @param tree marginal tree of region
      */
-    protected void setPartials(Beagle beagle, Multiset<int[]> patterns) {
-        for (Node node : acg.getExternalNodes()) {
-            Alignment data = dataInput.get();
-            int nStates = data.getDataType().getStateCount();
-            double[] partials = new double[patterns.elementSet().size() * nStates * siteModel.getCategoryCount()];
-            int k = 0;
-            int iTaxon = alignment.getTaxonIndex(node.getID());
-            for (int[] pattern : patterns.elementSet()) {
-                int code = pattern[iTaxon];
-                boolean[] stateSet = alignment.getDataType().getStateSet(code);
-                for (int iState = 0; iState < nStates; iState++) {
-                    partials[k++] = (stateSet[iState] ? 1.0 : 0.0);
-                }
-            }
+    protected void buildOperationList(RegionSlot regionSlot, FlatMarginalTree tree) {
+        RegionInstance instance = regionSlot.instance;
 
-            int n = patterns.elementSet().size()*siteModel.getCategoryCount();
-            for (int cIdx = 1; cIdx<siteModel.getCategoryCount(); cIdx++) {
-                System.arraycopy(partials, 0, partials, n*cIdx, n);
-            }
+        // Only strict clocks are supported, so the rate is node-independent.
+        double rate = branchRateModel.getRateForBranch(null);
 
-            beagle.setTipPartials(node.getNr(), partials);
-        }
-    }
+        for (int i=0; i<tree.getNodeCount(); i++) {
+            int nr = tree.postOrder[i];
+            int bufferIdx = regionSlot.getBufferIndex(nr);
 
-    protected void buildOperationList(Beagle beagle, MarginalNode node, Region region) {
-        if (!node.isRoot()) {
-            edgeLengths[node.getNr()] = node.getLength() * branchRateModel.getRateForBranch(node);
-        }
+            if (!tree.isRoot(nr)) {
+                instance.matrixIndices[instance.matrixCount] = bufferIdx;
+                instance.edgeLengths[instance.matrixCount] = tree.getLength(nr) * rate;
+                instance.matrixCount += 1;
+            }
 
-        if (!node.isLeaf()) {
+            if (tree.isLeaf(nr))
+                continue;
 
-            MarginalNode leftChild = (MarginalNode)node.getLeft();
-            MarginalNode rightChild = (MarginalNode)node.getRight();
+            int leftIdx = regionSlot.getBufferIndex(tree.left[nr]);
+            int rightIdx = regionSlot.getBufferIndex(tree.right[nr]);
 
-            buildOperationList(beagle, leftChild, region);
-            buildOperationList(beagle, rightChild, region);
+            int opIdx = instance.operationCount*Beagle.OPERATION_TUPLE_SIZE;
 
-            int opIdx = operationListIdx[0]*Beagle.OPERATION_TUPLE_SIZE;
+            instance.operations[opIdx + 0] = bufferIdx;
+            instance.operations[opIdx + 1] = Beagle.NONE;
+            instance.operations[opIdx + 2] = Beagle.NONE;
+            instance.operations[opIdx + 3] = leftIdx;
+            instance.operations[opIdx + 4] = leftIdx;
+            instance.operations[opIdx + 5] = rightIdx;
+            instance.operations[opIdx + 6] = rightIdx;
 
-            operationList[opIdx + 0] = node.getNr();
-            operationList[opIdx + 1] = Beagle.NONE;
-            operationList[opIdx + 2] = Beagle.NONE;
-            operationList[opIdx + 3] = leftChild.getNr();
-            operationList[opIdx + 4] = leftChild.getNr();
-            operationList[opIdx + 5] = rightChild.getNr();
-            operationList[opIdx + 6] = rightChild.getNr();
+            instance.operationCount += 1;
+        }
+    }
 
-            operationListIdx[0] += 1;
+    /**
+     * Evaluate all regions pending on an instance and record their
+     * log likelihoods.
+     *
+     * @param instance instance to update
+     */
+    private void updateInstance(RegionInstance instance) {
+        Beagle beagle = instance.beagle;
+
+        EigenDecomposition ed = substitutionModel.getEigenDecomposition(null);
+        beagle.setEigenDecomposition(0,
+                ed.getEigenVectors(),
+                ed.getInverseEigenVectors(),
+                ed.getEigenValues());
+
+        beagle.setCategoryRates(siteModel.getCategoryRates(null));
+        beagle.setCategoryWeights(0, siteModel.getCategoryProportions(null));
+        beagle.setStateFrequencies(0, substitutionModel.getFrequencies());
+
+        beagle.updateTransitionMatrices(0, instance.matrixIndices,
+                null, null, instance.edgeLengths, instance.matrixCount);
+
+        beagle.updatePartials(instance.operations, instance.operationCount,
+                Beagle.NONE);
+
+        int[] rootIdx = new int[1];
+        double[] sumLogL = new double[1];
+        for (int i=0; i<instance.pendingRegions.size(); i++) {
+            Region region = instance.pendingRegions.get(i);
+
+            rootIdx[0] = instance.pendingRoots[i];
+            beagle.calculateRootLogLikelihoods(
+                    rootIdx,
+                    new int[]{0},
+                    new int[]{0},
+                    new int[]{Beagle.NONE},
+                    1,
+                    sumLogL);
+            beagle.getSiteLogLikelihoods(instance.siteLogLikelihoods);
+
+            int[] weights = patterns.get(region).weights;
+            double regionLogP = 0.0;
+            for (int j=0; j<weights.length; j++)
+                regionLogP += weights[j]*instance.siteLogLikelihoods[j];
+
+            regionLogLikelihoods.put(region, regionLogP);
         }
+
+        instance.pendingRegions.clear();
+        instance.operationCount = 0;
+        instance.matrixCount = 0;
     }
 
     @Override
@@ -387,7 +537,8 @@ public class ACGLikelihoodBeagle extends GenericTreeLikelihood {
 
     @Override
     protected boolean requiresRecalculation() {
-        if (acg.clonalFrameIsDirty() || siteModel.isDirtyCalculation())
+        if (acg.clonalFrameIsDirty() || siteModel.isDirtyCalculation()
+                || branchRateModel.isDirtyCalculation())
             regionLogLikelihoods.clear();
 
         return true;
@@ -395,31 +546,28 @@ public class ACGLikelihoodBeagle extends GenericTreeLikelihood {
 
     @Override
     public void store() {
-        storedPatterns.clear();
-        storedPatterns.putAll(patterns);
+        patterns.store();
+        regionLogLikelihoods.store();
+        regionSlots.store();
 
-        storedConstantPatterns.clear();
-        storedConstantPatterns.putAll(constantPatterns);
-
-        storedRegionLogLikelihoods.clear();
-        storedRegionLogLikelihoods.putAll(regionLogLikelihoods);
+        for (RegionSlot regionSlot : releasedSlots)
+            regionSlot.instance.freeSlots.push(regionSlot.slot);
+        releasedSlots.clear();
+        acquiredSlots.clear();
 
         super.store();
     }
 
     @Override
     public void restore() {
-        Map<Region, Multiset<int[]>> tmpPatterns = patterns;
-        patterns = storedPatterns;
-        storedPatterns = tmpPatterns;
-
-        Map<Region, List<Integer>> tmpConstantPatterns = constantPatterns;
-        constantPatterns = storedConstantPatterns;
-        storedConstantPatterns = tmpConstantPatterns;
-
-        Map<Region, Double> tmpRegionLogLikelihoods = regionLogLikelihoods;
-        regionLogLikelihoods = storedRegionLogLikelihoods;
-        storedRegionLogLikelihoods = tmpRegionLogLikelihoods;
+        patterns.restore();
+        regionLogLikelihoods.restore();
+        regionSlots.restore();
+
+        for (RegionSlot regionSlot : acquiredSlots)
+            regionSlot.instance.freeSlots.push(regionSlot.slot);
+        releasedSlots.clear();
+        acquiredSlots.clear();
 
         super.restore();
     }
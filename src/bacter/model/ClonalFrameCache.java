@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2015 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bacter.model;
+
+import bacter.ConversionGraph;
+import bacter.FlatMarginalTree;
+import bacter.MarginalTreeBuilder;
+import beast.core.CalculationNode;
+import beast.core.Description;
+import beast.core.Input;
+import beast.evolution.branchratemodel.BranchRateModel;
+import beast.evolution.branchratemodel.StrictClockModel;
+import beast.evolution.sitemodel.SiteModel;
+import beast.evolution.substitutionmodel.SubstitutionModel;
+import beast.evolution.tree.Node;
+
+import java.util.BitSet;
+import java.util.Collections;
+
+/**
+ * Marginal tree of the clonal frame together with the transition
+ * probabilities of every CF edge.  Neither depends on the data, so
+ * the likelihoods of all loci sharing a site model can share a single
+ * instance, which is then updated at most once per MCMC step.
+ *
+ * Transition probabilities are double-buffered: an update following a
+ * store() writes to the buffer not holding the stored values, so that
+ * restore() only needs to switch buffers back.
+ *
+ * The cache also owns the pool of clonal frame site patterns through
+ * which the likelihoods of state-coded loci evaluate their CF regions
+ * together, and the cache of transition matrices for marginal edges
+ * not belonging to the clonal frame.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+@Description("Clonal frame marginal tree and CF edge transition " +
+        "probabilities, shared between the likelihoods of different loci.")
+public class ClonalFrameCache extends CalculationNode {
+
+    public Input<ConversionGraph> acgInput = new Input<>(
+            "acg",
+            "Conversion graph whose clonal frame is cached.",
+            Input.Validate.REQUIRED);
+
+    public Input<SiteModel.Base> siteModelInput = new Input<>(
+            "siteModel",
+            "Site model used to compute transition probabilities.",
+            Input.Validate.REQUIRED);
+
+    public Input<BranchRateModel.Base> branchRateModelInput = new Input<>(
+            "branchRateModel",
+            "Branch rate model used to compute transition probabilities. " +
+                    "Defaults to a strict clock.");
+
+    protected ConversionGraph acg;
+    protected SiteModel.Base siteModel;
+    protected BranchRateModel.Base branchRateModel;
+    protected SubstitutionModel substitutionModel;
+
+    /**
+     * Transition probabilities, indexed by buffer, CF node number and
+     * rate category.
+     */
+    private double[][][][] transitionProbs;
+    private int currentBuffer, storedBuffer;
+    private boolean probsDirty, storedProbsDirty;
+
+    private MarginalTreeBuilder treeBuilder;
+    private FlatMarginalTree cfTree;
+    private BitSet cfNodes;
+    private boolean treeDirty, storedTreeDirty, treeRebuilt, treeRestoring;
+
+    private ClonalFramePatternPool patternPool;
+    private TransitionMatrixCache matrixCache;
+
+    @Override
+    public void initAndValidate() {
+        acg = acgInput.get();
+        siteModel = siteModelInput.get();
+        substitutionModel = siteModel.getSubstitutionModel();
+
+        if (branchRateModelInput.get() != null) {
+            branchRateModel = branchRateModelInput.get();
+
+            if (!(branchRateModel instanceof StrictClockModel))
+                throw new IllegalArgumentException("ClonalFrameCache currently " +
+                        "only supports strict clock models.");
+        } else
+            branchRateModel = new StrictClockModel();
+
+        // Some models write beyond the first nStates^2 elements.
+        int nStates = substitutionModel.getStateCount();
+        transitionProbs = new double[2][acg.getNodeCount()-1]
+                [siteModel.getCategoryCount()][(nStates+1)*(nStates+1)];
+
+        treeBuilder = new MarginalTreeBuilder(acg);
+        patternPool = new ClonalFramePatternPool(this, acg, nStates);
+        matrixCache = new TransitionMatrixCache(siteModel, branchRateModel);
+
+        probsDirty = true;
+        treeDirty = true;
+    }
+
+    /**
+     * @return site model used to compute transition probabilities
+     */
+    public SiteModel.Base getSiteModel() {
+        return siteModel;
+    }
+
+    /**
+     * @return branch rate model input, or null if a strict clock is used
+     */
+    public BranchRateModel.Base getBranchRateModelInput() {
+        return branchRateModelInput.get();
+    }
+
+    /**
+     * @return pool of clonal frame site patterns
+     */
+    public ClonalFramePatternPool getPatternPool() {
+        return patternPool;
+    }
+
+    /**
+     * @return cache of transition matrices for marginal tree edges
+     */
+    public TransitionMatrixCache getMatrixCache() {
+        return matrixCache;
+    }
+
+    /**
+     * Bring the cached tree and transition probabilities up to date.
+     * Must be called before the accessors, and must not be called while
+     * other threads are using their results.
+     */
+    public synchronized void update() {
+        if (probsDirty) {
+            if (currentBuffer == storedBuffer)
+                currentBuffer = 1 - storedBuffer;
+
+            double[][][] probs = transitionProbs[currentBuffer];
+
+            // Substitution models aren't guaranteed to be thread-safe.
+            synchronized (substitutionModel) {
+                for (int ni=0; ni<acg.getNodeCount()-1; ni++) {
+                    Node node = acg.getNode(ni);
+                    for (int ci=0; ci<siteModel.getCategoryCount(); ci++) {
+                        double jointBranchRate = siteModel.getRateForCategory(ci, node)
+                                * branchRateModel.getRateForBranch(node);
+
+                        substitutionModel.getTransitionProbabilities(
+                                node,
+                                node.getParent().getHeight(),
+                                node.getHeight(),
+                                jointBranchRate,
+                                probs[ni][ci]);
+                    }
+                }
+            }
+
+            probsDirty = false;
+            patternPool.invalidate();
+        }
+
+        if (treeDirty) {
+            cfTree = treeBuilder.getMarginalTree(Collections.emptySet());
+            cfNodes = (BitSet)treeBuilder.getAncestralCFNodes().clone();
+
+            treeDirty = false;
+            treeRebuilt = true;
+
+            // Rebuilding the stored tree leaves pattern likelihoods valid.
+            if (!treeRestoring)
+                patternPool.invalidate();
+            treeRestoring = false;
+        }
+    }
+
+    /**
+     * @param cfNodeNr number of non-root CF node
+     * @param category rate category
+     * @return transition probabilities for edge above CF node
+     */
+    public double[] getTransitionProbs(int cfNodeNr, int category) {
+        return transitionProbs[currentBuffer][cfNodeNr][category];
+    }
+
+    /**
+     * @return clonal frame marginal tree.  This tree must not be
+     * modified.
+     */
+    public FlatMarginalTree getClonalFrameTree() {
+        return cfTree;
+    }
+
+    /**
+     * @return numbers of CF nodes whose edges belong to the clonal frame
+     * marginal tree.  This set must not be modified.
+     */
+    public BitSet getClonalFrameNodes() {
+        return cfNodes;
+    }
+
+    @Override
+    protected boolean requiresRecalculation() {
+        if (acg.clonalFrameIsDirty()) {
+            probsDirty = true;
+            treeDirty = true;
+            treeRestoring = false;
+        }
+
+        if (siteModel.isDirtyCalculation() || branchRateModel.isDirtyCalculation()) {
+            probsDirty = true;
+            matrixCache.invalidate();
+        }
+
+        return probsDirty || treeDirty;
+    }
+
+    @Override
+    public void store() {
+        storedBuffer = currentBuffer;
+        storedProbsDirty = probsDirty;
+        storedTreeDirty = treeDirty;
+        treeRebuilt = false;
+        patternPool.store();
+        matrixCache.store();
+
+        super.store();
+    }
+
+    @Override
+    public void restore() {
+        currentBuffer = storedBuffer;
+        probsDirty = storedProbsDirty;
+        treeDirty = storedTreeDirty || treeRebuilt;
+        treeRestoring = treeRebuilt && !storedTreeDirty;
+        treeRebuilt = false;
+        patternPool.restore();
+        matrixCache.restore();
+
+        super.restore();
+    }
+}
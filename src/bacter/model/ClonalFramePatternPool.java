@@ -0,0 +1,364 @@
+/*
+ * Copyright (C) 2015 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bacter.model;
+
+import bacter.ConversionGraph;
+import bacter.FlatMarginalTree;
+import beast.evolution.likelihood.LikelihoodCore;
+import beast.evolution.sitemodel.SiteModel;
+
+import java.util.*;
+
+/**
+ * Pool of the site patterns found in the clonal frame regions of all
+ * loci sharing a ClonalFrameCache.  Patterns are identified by their
+ * leaf states, so identical columns from different loci share a single
+ * pooled pattern.  All patterns in use by any locus are evaluated on the
+ * clonal frame tree in a single likelihood core pass whenever the clonal
+ * frame or the substitution parameters change, with each locus then
+ * reading the pattern log likelihoods it requires.
+ *
+ * Loci declare the pooled patterns they use each time they request
+ * likelihoods.  Patterns requested by a locus that were not declared at
+ * the time of the last full pass are evaluated in a separate, smaller
+ * pass.
+ *
+ * Pattern log likelihoods are double-buffered in the same way as the
+ * transition probabilities of the ClonalFrameCache, so that values
+ * computed before a store() survive a subsequent restore().
+ *
+ * Only leaf states are pooled, so loci using ambiguities can't take part.
+ * Pools are thread-safe.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class ClonalFramePatternPool {
+
+    /**
+     * Leaf states of a pattern, indexed by leaf node number.
+     */
+    private static class PatternKey {
+        final int[] states;
+        final int hashCode;
+
+        PatternKey(int[] states) {
+            this.states = states;
+            this.hashCode = Arrays.hashCode(states);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            return Arrays.equals(states, ((PatternKey) o).states);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
+    private final ClonalFrameCache cfCache;
+    private final ConversionGraph acg;
+    private final int nStates;
+
+    private final Map<PatternKey, Integer> patternIDs = new HashMap<>();
+    private final List<int[]> patternStates = new ArrayList<>();
+    private final List<int[]> constantStates = new ArrayList<>();
+
+    /**
+     * Number of loci currently declaring use of each pooled pattern, and
+     * the patterns declared by each locus.
+     */
+    private int[] useCounts = new int[0];
+    private final Map<Object, int[]> declaredPatterns = new HashMap<>();
+
+    /**
+     * Pooled pattern log likelihoods, indexed by buffer then by pooled
+     * pattern ID.  Values are valid for patterns whose entry in
+     * evaluatedGeneration equals the current generation.
+     */
+    private final double[][] logLikelihoods = {new double[0], new double[0]};
+    private final long[][] evaluatedGeneration = {new long[0], new long[0]};
+    private int currentBuffer, storedBuffer;
+
+    private long generation = 1, fullPassGeneration = 0, lastGeneration = 1;
+    private long storedGeneration, storedFullPassGeneration;
+
+    private final LikelihoodCorePool corePool;
+
+    private long fullPassCount, partialPassCount, patternEvaluationCount;
+
+    /**
+     * Construct a new pool.
+     *
+     * @param cfCache cache supplying the clonal frame tree and matrices
+     * @param acg conversion graph
+     * @param nStates number of states in data type
+     */
+    public ClonalFramePatternPool(ClonalFrameCache cfCache, ConversionGraph acg,
+                                  int nStates) {
+        this.cfCache = cfCache;
+        this.acg = acg;
+        this.nStates = nStates;
+
+        corePool = new LikelihoodCorePool(nStates, acg.getLeafNodeCount(),
+                acg.getNodeCount(), false);
+    }
+
+    /**
+     * @return number of states of pooled patterns
+     */
+    public int getStateCount() {
+        return nStates;
+    }
+
+    /**
+     * Add the patterns of a locus to the pool.
+     *
+     * @param dictionary pattern dictionary of locus
+     * @return pooled pattern IDs, indexed by dictionary pattern ID
+     */
+    public synchronized int[] register(PatternDictionary dictionary) {
+        int count = dictionary.getPatternCount();
+        int[] allIDs = new int[count];
+        for (int p=0; p<count; p++)
+            allIDs[p] = p;
+
+        int leafCount = acg.getLeafNodeCount();
+        int[][] leafStates = new int[leafCount][];
+        for (int leafNr=0; leafNr<leafCount; leafNr++)
+            leafStates[leafNr] = dictionary.getLeafStates(leafNr, allIDs);
+
+        int[] pooledIDs = new int[count];
+        for (int p=0; p<count; p++) {
+            int[] states = new int[leafCount];
+            for (int leafNr=0; leafNr<leafCount; leafNr++)
+                states[leafNr] = leafStates[leafNr][p];
+
+            PatternKey key = new PatternKey(states);
+            Integer pooledID = patternIDs.get(key);
+            if (pooledID == null) {
+                pooledID = patternStates.size();
+                patternIDs.put(key, pooledID);
+                patternStates.add(states);
+                constantStates.add(dictionary.getConstantStates(p));
+            }
+
+            pooledIDs[p] = pooledID;
+        }
+
+        int pooledCount = patternStates.size();
+        useCounts = Arrays.copyOf(useCounts, pooledCount);
+        for (int b=0; b<2; b++) {
+            logLikelihoods[b] = Arrays.copyOf(logLikelihoods[b], pooledCount);
+            evaluatedGeneration[b] = Arrays.copyOf(evaluatedGeneration[b], pooledCount);
+        }
+
+        return pooledIDs;
+    }
+
+    /**
+     * Discard all pattern log likelihoods.  Called whenever the clonal
+     * frame tree or its transition probabilities change.
+     */
+    public synchronized void invalidate() {
+        lastGeneration += 1;
+        generation = lastGeneration;
+
+        if (currentBuffer == storedBuffer)
+            currentBuffer = 1 - storedBuffer;
+    }
+
+    /**
+     * Record the current pattern log likelihoods so that they can be
+     * reinstated by restore().
+     */
+    public synchronized void store() {
+        storedBuffer = currentBuffer;
+        storedGeneration = generation;
+        storedFullPassGeneration = fullPassGeneration;
+    }
+
+    /**
+     * Reinstate the pattern log likelihoods recorded by store().
+     */
+    public synchronized void restore() {
+        currentBuffer = storedBuffer;
+        generation = storedGeneration;
+        fullPassGeneration = storedFullPassGeneration;
+    }
+
+    /**
+     * Obtain log likelihoods of pooled patterns under the clonal frame
+     * tree.  The given patterns replace those previously declared by the
+     * locus.  The clonal frame cache must be up to date.
+     *
+     * @param locus object identifying the requesting locus
+     * @param ids pooled pattern IDs, in increasing order
+     * @param out array in which to place the log likelihoods
+     */
+    public synchronized void getPatternLogLikelihoods(Object locus, int[] ids,
+                                                      double[] out) {
+        declare(locus, ids);
+
+        List<Integer> toEvaluate = new ArrayList<>();
+        if (fullPassGeneration != generation) {
+            for (int id=0; id<useCounts.length; id++)
+                if (useCounts[id] > 0)
+                    toEvaluate.add(id);
+
+            fullPassGeneration = generation;
+            fullPassCount += 1;
+        } else {
+            for (int id : ids)
+                if (evaluatedGeneration[currentBuffer][id] != generation)
+                    toEvaluate.add(id);
+
+            if (!toEvaluate.isEmpty())
+                partialPassCount += 1;
+        }
+
+        if (!toEvaluate.isEmpty())
+            evaluate(toEvaluate);
+
+        for (int i=0; i<ids.length; i++)
+            out[i] = logLikelihoods[currentBuffer][ids[i]];
+    }
+
+    /**
+     * Record the patterns used by a locus.
+     *
+     * @param locus object identifying the locus
+     * @param ids pooled pattern IDs
+     */
+    private void declare(Object locus, int[] ids) {
+        int[] previous = declaredPatterns.put(locus, ids);
+        if (previous != null)
+            for (int id : previous)
+                useCounts[id] -= 1;
+
+        for (int id : ids)
+            useCounts[id] += 1;
+    }
+
+    /**
+     * Evaluate the given pooled patterns in a single pass over the clonal
+     * frame tree.
+     *
+     * @param ids pooled pattern IDs
+     */
+    private void evaluate(List<Integer> ids) {
+        int n = ids.size();
+        int capacity = LikelihoodCorePool.getPatternCapacity(n);
+        SiteModel.Base siteModel = cfCache.getSiteModel();
+        int categoryCount = siteModel.getCategoryCount();
+
+        LikelihoodCore core = corePool.acquire(n, categoryCount);
+
+        int leafCount = acg.getLeafNodeCount();
+        for (int leafNr=0; leafNr<leafCount; leafNr++) {
+            int[] states = new int[capacity];
+            for (int i=0; i<n; i++)
+                states[i] = patternStates.get(ids.get(i))[leafNr];
+            Arrays.fill(states, n, capacity, nStates);
+
+            core.setNodeStates(leafNr, states);
+        }
+
+        FlatMarginalTree tree = cfCache.getClonalFrameTree();
+
+        for (int i=0; i<tree.getNodeCount(); i++) {
+            int nodeNr = tree.postOrder[i];
+            if (tree.isLeaf(nodeNr))
+                continue;
+
+            int leftNr = tree.left[nodeNr], rightNr = tree.right[nodeNr];
+            setCFMatrices(core, tree, leftNr, categoryCount);
+            setCFMatrices(core, tree, rightNr, categoryCount);
+
+            core.setNodePartialsForUpdate(nodeNr);
+            core.setNodeStatesForUpdate(nodeNr);
+            core.calculatePartials(leftNr, rightNr, nodeNr);
+        }
+
+        double[] rootPartials = new double[capacity*nStates];
+        core.integratePartials(tree.getRoot(),
+                siteModel.getCategoryProportions(acg.getRoot()), rootPartials);
+
+        double[] frequencies = siteModel.getSubstitutionModel().getFrequencies();
+        double[] patternLogLikelihoods = new double[capacity];
+        core.calculateLogLikelihoods(rootPartials, frequencies, patternLogLikelihoods);
+
+        // As in ACGLikelihood, invariant sites are added in log space.
+        double pInv = siteModel.getProportionInvariant();
+        if (pInv > 0.0) {
+            for (int i=0; i<n; i++)
+                for (int state : constantStates.get(ids.get(i)))
+                    patternLogLikelihoods[i] = ACGLikelihood.logSumExp(
+                            patternLogLikelihoods[i], Math.log(pInv*frequencies[state]));
+        }
+
+        for (int i=0; i<n; i++) {
+            logLikelihoods[currentBuffer][ids.get(i)] = patternLogLikelihoods[i];
+            evaluatedGeneration[currentBuffer][ids.get(i)] = generation;
+        }
+
+        corePool.release(core);
+        patternEvaluationCount += n;
+    }
+
+    /**
+     * Load the transition matrices of the CF edge above a marginal node.
+     *
+     * @param core likelihood core
+     * @param tree clonal frame marginal tree
+     * @param nodeNr number of non-root marginal node
+     * @param categoryCount number of rate categories
+     */
+    private void setCFMatrices(LikelihoodCore core, FlatMarginalTree tree,
+                               int nodeNr, int categoryCount) {
+        core.setNodeMatrixForUpdate(nodeNr);
+        for (int c=0; c<categoryCount; c++)
+            core.setNodeMatrix(nodeNr, c,
+                    cfCache.getTransitionProbs(tree.cfNodeNr[nodeNr], c));
+    }
+
+    /**
+     * @return number of passes evaluating all patterns in use
+     */
+    public long getFullPassCount() {
+        return fullPassCount;
+    }
+
+    /**
+     * @return number of passes evaluating newly-requested patterns only
+     */
+    public long getPartialPassCount() {
+        return partialPassCount;
+    }
+
+    /**
+     * @return total number of pattern evaluations performed
+     */
+    public long getPatternEvaluationCount() {
+        return patternEvaluationCount;
+    }
+}
@@ -0,0 +1,343 @@
+/*
+ * Copyright (C) 2015 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bacter.model;
+
+import beast.evolution.likelihood.BeerLikelihoodCore;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+/**
+ * Likelihood core holding partials in single precision, halving the
+ * memory used by each partials buffer.  Partials may optionally be
+ * allocated outside the Java heap.
+ *
+ * Since single-precision partials underflow quickly, each pattern of a
+ * newly-computed node is rescaled whenever its largest partial falls
+ * below SCALING_THRESHOLD.  Log scale factors are accumulated up the
+ * tree, so each buffer carries the total scaling applied to its subtree
+ * and buffers can be shared between trees as SubtreePartialsCache
+ * requires.  Log scale arrays are only allocated for buffers whose
+ * subtree actually required scaling.
+ *
+ * Partials and matrices are single-buffered, as ACGLikelihood never
+ * stores or restores the contents of its cores: store(), restore() and
+ * the various ...ForUpdate() methods have no effect.  Only the
+ * operations used by ACGLikelihood are supported.  Computation is
+ * carried out in double precision, with only the stored partials
+ * rounded to single precision.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class FloatLikelihoodCore extends BeerLikelihoodCore {
+
+    /**
+     * Patterns whose largest partial falls below this value are rescaled.
+     */
+    public static final double SCALING_THRESHOLD = 1e-20;
+
+    private final int nStates;
+    private final boolean offHeap;
+
+    private int patternCount, categoryCount, partialsSize, matrixSize;
+
+    private FloatBuffer[] nodePartials;
+    private int[][] nodeStates;
+    private double[][] nodeMatrices;
+
+    /**
+     * Accumulated log scale factors, indexed by node then by pattern.
+     * Arrays are retained once allocated, but only hold valid values
+     * when the corresponding element of nodeScaled is true.
+     */
+    private double[][] nodeLogScales;
+    private boolean[] nodeScaled;
+
+    /**
+     * Log scale factors of the node whose partials were last integrated.
+     */
+    private double[] rootLogScales;
+
+    private double[] scratch;
+
+    /**
+     * Construct a new core.
+     *
+     * @param nStates number of states
+     * @param offHeap whether partials are to be allocated off-heap
+     */
+    public FloatLikelihoodCore(int nStates, boolean offHeap) {
+        super(nStates);
+
+        this.nStates = nStates;
+        this.offHeap = offHeap;
+    }
+
+    @Override
+    public void initialize(int nodeCount, int patternCount, int matrixCount,
+                           boolean integrateCategories, boolean useAmbiguities) {
+        this.patternCount = patternCount;
+        this.categoryCount = matrixCount;
+
+        partialsSize = patternCount*nStates*matrixCount;
+        matrixSize = nStates*nStates;
+
+        nodePartials = new FloatBuffer[nodeCount];
+        nodeStates = new int[nodeCount][];
+        nodeMatrices = new double[nodeCount][matrixCount*matrixSize];
+        nodeLogScales = new double[nodeCount][];
+        nodeScaled = new boolean[nodeCount];
+
+        scratch = new double[matrixCount*nStates];
+    }
+
+    /**
+     * @param size number of floats
+     * @return new buffer, on or off the heap as requested at construction
+     */
+    private FloatBuffer allocate(int size) {
+        if (offHeap)
+            return ByteBuffer.allocateDirect(size*Float.BYTES)
+                    .order(ByteOrder.nativeOrder())
+                    .asFloatBuffer();
+        else
+            return FloatBuffer.allocate(size);
+    }
+
+    @Override
+    public void createNodePartials(int nodeIndex) {
+        nodePartials[nodeIndex] = allocate(partialsSize);
+    }
+
+    /**
+     * Set partials for a node.  Partials covering fewer than the full
+     * number of categories are repeated for each category.
+     */
+    @Override
+    public void setNodePartials(int nodeIndex, double[] partials) {
+        if (nodePartials[nodeIndex] == null)
+            createNodePartials(nodeIndex);
+
+        FloatBuffer buffer = nodePartials[nodeIndex];
+        for (int k=0; k<partialsSize; k++)
+            buffer.put(k, (float)partials[k % partials.length]);
+
+        nodeStates[nodeIndex] = null;
+        nodeScaled[nodeIndex] = false;
+    }
+
+    /**
+     * Retrieve the partials of a node.  These are scaled by the factors
+     * reported by getLogScalingFactor() when the node is integrated.
+     */
+    @Override
+    public void getNodePartials(int nodeIndex, double[] partials) {
+        FloatBuffer buffer = nodePartials[nodeIndex];
+        for (int k=0; k<partialsSize; k++)
+            partials[k] = buffer.get(k);
+    }
+
+    @Override
+    public void createNodeStates(int nodeIndex) {
+        nodeStates[nodeIndex] = new int[patternCount];
+    }
+
+    @Override
+    public void setNodeStates(int nodeIndex, int[] states) {
+        nodeStates[nodeIndex] = Arrays.copyOf(states, patternCount);
+        nodeScaled[nodeIndex] = false;
+    }
+
+    @Override
+    public void getNodeStates(int nodeIndex, int[] states) {
+        System.arraycopy(nodeStates[nodeIndex], 0, states, 0, patternCount);
+    }
+
+    @Override
+    public void setNodeMatrix(int nodeIndex, int matrixIndex, double[] matrix) {
+        System.arraycopy(matrix, 0, nodeMatrices[nodeIndex],
+                matrixIndex*matrixSize, matrixSize);
+    }
+
+    @Override
+    public void getNodeMatrix(int nodeIndex, int matrixIndex, double[] matrix) {
+        System.arraycopy(nodeMatrices[nodeIndex], matrixIndex*matrixSize,
+                matrix, 0, matrixSize);
+    }
+
+    @Override
+    public void setNodePartialsForUpdate(int nodeIndex) { }
+
+    @Override
+    public void setNodeStatesForUpdate(int nodeIndex) { }
+
+    @Override
+    public void setNodeMatrixForUpdate(int nodeIndex) { }
+
+    @Override
+    public void calculatePartials(int nodeIndex1, int nodeIndex2, int nodeIndex3) {
+        double[] matrices1 = nodeMatrices[nodeIndex1];
+        double[] matrices2 = nodeMatrices[nodeIndex2];
+        int[] states1 = nodeStates[nodeIndex1];
+        int[] states2 = nodeStates[nodeIndex2];
+        FloatBuffer partials1 = nodePartials[nodeIndex1];
+        FloatBuffer partials2 = nodePartials[nodeIndex2];
+        double[] logScales1 = nodeScaled[nodeIndex1] ? nodeLogScales[nodeIndex1] : null;
+        double[] logScales2 = nodeScaled[nodeIndex2] ? nodeLogScales[nodeIndex2] : null;
+
+        if (nodePartials[nodeIndex3] == null)
+            createNodePartials(nodeIndex3);
+        FloatBuffer partials3 = nodePartials[nodeIndex3];
+        double[] logScales3 = nodeLogScales[nodeIndex3];
+        boolean scaled = false;
+
+        for (int k=0; k<patternCount; k++) {
+
+            double max = 0.0;
+            for (int c=0; c<categoryCount; c++) {
+                int pOffset = (c*patternCount + k)*nStates;
+
+                for (int i=0; i<nStates; i++) {
+                    int mOffset = c*matrixSize + i*nStates;
+
+                    double sum1 = childSum(matrices1, mOffset, states1, partials1, pOffset, k);
+                    double sum2 = childSum(matrices2, mOffset, states2, partials2, pOffset, k);
+                    double value = sum1*sum2;
+
+                    scratch[c*nStates + i] = value;
+                    if (value > max)
+                        max = value;
+                }
+            }
+
+            double factor = 1.0, logScale = 0.0;
+            if (max < SCALING_THRESHOLD && max > 0.0) {
+                factor = 1.0/max;
+                logScale = Math.log(max);
+            }
+
+            for (int c=0; c<categoryCount; c++) {
+                int pOffset = (c*patternCount + k)*nStates;
+                for (int i=0; i<nStates; i++)
+                    partials3.put(pOffset + i, (float)(scratch[c*nStates + i]*factor));
+            }
+
+            if (logScales1 != null)
+                logScale += logScales1[k];
+            if (logScales2 != null)
+                logScale += logScales2[k];
+
+            if (logScale != 0.0) {
+                if (logScales3 == null) {
+                    logScales3 = new double[patternCount];
+                    nodeLogScales[nodeIndex3] = logScales3;
+                }
+
+                if (!scaled) {
+                    Arrays.fill(logScales3, 0, k, 0.0);
+                    scaled = true;
+                }
+
+                logScales3[k] = logScale;
+            } else if (scaled)
+                logScales3[k] = 0.0;
+        }
+
+        nodeScaled[nodeIndex3] = scaled;
+    }
+
+    /**
+     * @param matrices transition matrices of child edge
+     * @param mOffset offset of matrix row for parent state
+     * @param states child states, or null if child has partials
+     * @param partials child partials, used if states is null
+     * @param pOffset offset of child partials for pattern and category
+     * @param k pattern index
+     * @return probability of data below child given parent state
+     */
+    private double childSum(double[] matrices, int mOffset, int[] states,
+                            FloatBuffer partials, int pOffset, int k) {
+        if (states != null) {
+            int state = states[k];
+            return state < nStates ? matrices[mOffset + state] : 1.0;
+        }
+
+        double sum = 0.0;
+        for (int j=0; j<nStates; j++)
+            sum += matrices[mOffset + j]*partials.get(pOffset + j);
+
+        return sum;
+    }
+
+    @Override
+    public void integratePartials(int nodeIndex, double[] proportions,
+                                  double[] outPartials) {
+        FloatBuffer partials = nodePartials[nodeIndex];
+
+        for (int k=0; k<patternCount; k++) {
+            for (int i=0; i<nStates; i++) {
+                double sum = 0.0;
+                for (int c=0; c<categoryCount; c++)
+                    sum += proportions[c]*partials.get((c*patternCount + k)*nStates + i);
+
+                outPartials[k*nStates + i] = sum;
+            }
+        }
+
+        rootLogScales = nodeScaled[nodeIndex] ? nodeLogScales[nodeIndex] : null;
+    }
+
+    @Override
+    public void calculateLogLikelihoods(double[] partials, double[] frequencies,
+                                        double[] outLogLikelihoods) {
+        for (int k=0; k<patternCount; k++) {
+            double sum = 0.0;
+            for (int i=0; i<nStates; i++)
+                sum += frequencies[i]*partials[k*nStates + i];
+
+            outLogLikelihoods[k] = Math.log(sum) + getLogScalingFactor(k);
+        }
+    }
+
+    /**
+     * @param patternIndex pattern index
+     * @return log of the factor by which the most recently integrated
+     * partials of the given pattern were scaled
+     */
+    @Override
+    public double getLogScalingFactor(int patternIndex) {
+        return rootLogScales != null ? rootLogScales[patternIndex] : 0.0;
+    }
+
+    /**
+     * Scaling is always adaptive, so requests to enable it are ignored.
+     */
+    @Override
+    public void setUseScaling(double scale) { }
+
+    @Override
+    public void store() { }
+
+    @Override
+    public void restore() { }
+
+    @Override
+    public void unstore() { }
+}
@@ -0,0 +1,538 @@
+/*
+ * Copyright (C) 2015 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bacter.model;
+
+import beagle.Beagle;
+import beagle.InstanceDetails;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Pure-Java implementation of the subset of the Beagle API used by
+ * ACGLikelihoodBeagle.  This allows the batched operation list code
+ * path to be used on machines without the native BEAGLE library.
+ *
+ * Partials are laid out exactly as in BEAGLE (category, then pattern,
+ * then state) and transition matrices as (category, then from-state,
+ * then to-state).  Operations never combine values from different
+ * patterns, so updatePartials() and calculateRootLogLikelihoods() split
+ * the pattern range into blocks which are processed in parallel, each
+ * block running through the whole operation list.
+ *
+ * Calls outside the supported subset throw UnsupportedOperationException.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class JavaBeagle implements Beagle {
+
+    /**
+     * Minimum number of patterns worth handing to a separate thread.
+     */
+    public static final int MIN_PATTERNS_PER_BLOCK = 64;
+
+    private final int tipCount, stateCount, patternCount, categoryCount;
+    private final int partialsSize, matrixSize;
+
+    private final double[][] partials;
+    private final int[][] tipStates;
+    private final double[][] matrices;
+    private final double[][] scaleFactors;
+
+    private final double[][] eigenVectors, inverseEigenVectors, eigenValues;
+    private final double[][] stateFrequencies, categoryWeights;
+    private double[] categoryRates;
+
+    private final double[] patternWeights;
+    private final double[] siteLogLikelihoods;
+
+    private ForkJoinPool pool;
+    private int threadCount;
+
+    /**
+     * Construct a new instance.  Arguments have the same meaning as those
+     * of BeagleFactory.loadBeagleInstance().
+     *
+     * @param tipCount number of tips
+     * @param partialsBufferCount number of partials buffers
+     * @param compactBufferCount number of tip state buffers
+     * @param stateCount number of states
+     * @param patternCount number of patterns
+     * @param eigenBufferCount number of eigen decomposition buffers
+     * @param matrixBufferCount number of transition matrix buffers
+     * @param categoryCount number of rate categories
+     * @param scaleBufferCount number of scale factor buffers
+     * @param threadCount number of threads to split patterns across
+     */
+    public JavaBeagle(int tipCount, int partialsBufferCount,
+                      int compactBufferCount, int stateCount,
+                      int patternCount, int eigenBufferCount,
+                      int matrixBufferCount, int categoryCount,
+                      int scaleBufferCount, int threadCount) {
+
+        if (compactBufferCount > tipCount)
+            throw new IllegalArgumentException("JavaBeagle: compact buffer " +
+                    "count must not exceed tip count.");
+
+        this.tipCount = tipCount;
+        this.stateCount = stateCount;
+        this.patternCount = patternCount;
+        this.categoryCount = categoryCount;
+
+        partialsSize = categoryCount*patternCount*stateCount;
+        matrixSize = categoryCount*stateCount*stateCount;
+
+        partials = new double[partialsBufferCount][];
+        tipStates = new int[tipCount][];
+        matrices = new double[matrixBufferCount][];
+        scaleFactors = new double[scaleBufferCount][];
+
+        eigenVectors = new double[eigenBufferCount][];
+        inverseEigenVectors = new double[eigenBufferCount][];
+        eigenValues = new double[eigenBufferCount][];
+
+        stateFrequencies = new double[eigenBufferCount][];
+        categoryWeights = new double[eigenBufferCount][];
+        categoryRates = new double[categoryCount];
+        Arrays.fill(categoryRates, 1.0);
+
+        patternWeights = new double[patternCount];
+        Arrays.fill(patternWeights, 1.0);
+        siteLogLikelihoods = new double[patternCount];
+
+        setCPUThreadCount(threadCount);
+    }
+
+    /**
+     * Set the number of threads patterns are split across.
+     *
+     * @param threadCount number of threads
+     */
+    public void setCPUThreadCount(int threadCount) {
+        if (threadCount < 1)
+            throw new IllegalArgumentException("JavaBeagle: thread count " +
+                    "must be at least 1.");
+
+        this.threadCount = threadCount;
+        pool = threadCount > 1 ? ACGLikelihood.getRegionPool(threadCount) : null;
+    }
+
+    @Override
+    public void finalize() throws Throwable {
+        super.finalize();
+    }
+
+    @Override
+    public void setPatternWeights(double[] patternWeights) {
+        System.arraycopy(patternWeights, 0, this.patternWeights, 0, patternCount);
+    }
+
+    @Override
+    public void setTipStates(int tipIndex, int[] inStates) {
+        if (tipIndex >= tipCount)
+            throw new IllegalArgumentException("JavaBeagle: tip index out of range.");
+
+        tipStates[tipIndex] = Arrays.copyOf(inStates, patternCount);
+        partials[tipIndex] = null;
+    }
+
+    @Override
+    public void getTipStates(int tipIndex, int[] outStates) {
+        System.arraycopy(tipStates[tipIndex], 0, outStates, 0, patternCount);
+    }
+
+    @Override
+    public void setTipPartials(int tipIndex, double[] inPartials) {
+        if (tipIndex >= tipCount)
+            throw new IllegalArgumentException("JavaBeagle: tip index out of range.");
+
+        setPartials(tipIndex, inPartials);
+    }
+
+    @Override
+    public void setPartials(int bufferIndex, double[] inPartials) {
+        double[] buffer = getPartialsBuffer(bufferIndex);
+
+        // Partials given for a single category apply to all of them
+        int n = Math.min(inPartials.length, partialsSize);
+        System.arraycopy(inPartials, 0, buffer, 0, n);
+        for (int offset=n; offset<partialsSize; offset += n)
+            System.arraycopy(inPartials, 0, buffer, offset,
+                    Math.min(n, partialsSize-offset));
+
+        if (bufferIndex < tipCount)
+            tipStates[bufferIndex] = null;
+    }
+
+    @Override
+    public void getPartials(int bufferIndex, int scaleIndex, double[] outPartials) {
+        System.arraycopy(partials[bufferIndex], 0, outPartials, 0, partialsSize);
+
+        if (scaleIndex != NONE) {
+            double[] factors = scaleFactors[scaleIndex];
+            for (int c=0; c<categoryCount; c++) {
+                for (int p=0; p<patternCount; p++) {
+                    double scale = Math.exp(factors[p]);
+                    int offset = (c*patternCount + p)*stateCount;
+                    for (int i=0; i<stateCount; i++)
+                        outPartials[offset + i] *= scale;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void setEigenDecomposition(int eigenIndex, double[] inEigenVectors,
+                                      double[] inInverseEigenVectors,
+                                      double[] inEigenValues) {
+        eigenVectors[eigenIndex] = inEigenVectors.clone();
+        inverseEigenVectors[eigenIndex] = inInverseEigenVectors.clone();
+        eigenValues[eigenIndex] = inEigenValues.clone();
+    }
+
+    @Override
+    public void setStateFrequencies(int stateFrequenciesIndex, double[] inStateFrequencies) {
+        stateFrequencies[stateFrequenciesIndex] = inStateFrequencies.clone();
+    }
+
+    @Override
+    public void setCategoryWeights(int categoryWeightsIndex, double[] inCategoryWeights) {
+        categoryWeights[categoryWeightsIndex] = inCategoryWeights.clone();
+    }
+
+    @Override
+    public void setCategoryRates(double[] inCategoryRates) {
+        categoryRates = inCategoryRates.clone();
+    }
+
+    @Override
+    public void setTransitionMatrix(int matrixIndex, double[] inMatrix, double paddedValue) {
+        double[] matrix = getMatrixBuffer(matrixIndex);
+        System.arraycopy(inMatrix, 0, matrix, 0, matrixSize);
+    }
+
+    @Override
+    public void getTransitionMatrix(int matrixIndex, double[] outMatrix) {
+        System.arraycopy(matrices[matrixIndex], 0, outMatrix, 0, matrixSize);
+    }
+
+    @Override
+    public void updateTransitionMatrices(int eigenIndex, int[] probabilityIndices,
+                                         int[] firstDerivativeIndices,
+                                         int[] secondDerivativeIndices,
+                                         double[] edgeLengths, int count) {
+        if (firstDerivativeIndices != null || secondDerivativeIndices != null)
+            throw new UnsupportedOperationException("JavaBeagle does not " +
+                    "compute transition matrix derivatives.");
+
+        double[] evec = eigenVectors[eigenIndex];
+        double[] ievc = inverseEigenVectors[eigenIndex];
+        double[] eval = eigenValues[eigenIndex];
+        double[] expEval = new double[stateCount];
+
+        for (int m=0; m<count; m++) {
+            double[] matrix = getMatrixBuffer(probabilityIndices[m]);
+
+            for (int c=0; c<categoryCount; c++) {
+                double t = edgeLengths[m]*categoryRates[c];
+                for (int k=0; k<stateCount; k++)
+                    expEval[k] = Math.exp(eval[k]*t);
+
+                int offset = c*stateCount*stateCount;
+                for (int i=0; i<stateCount; i++) {
+                    for (int j=0; j<stateCount; j++) {
+                        double sum = 0.0;
+                        for (int k=0; k<stateCount; k++)
+                            sum += evec[i*stateCount + k]*expEval[k]
+                                    *ievc[k*stateCount + j];
+                        matrix[offset + i*stateCount + j] = Math.max(sum, 0.0);
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public void updatePartials(int[] operations, int operationCount, int cumulativeScaleIndex) {
+        for (int op=0; op<operationCount; op++) {
+            int o = op*OPERATION_TUPLE_SIZE;
+            getPartialsBuffer(operations[o]);
+            if (operations[o+1] != NONE)
+                getScaleBuffer(operations[o+1]);
+        }
+
+        if (cumulativeScaleIndex != NONE)
+            getScaleBuffer(cumulativeScaleIndex);
+
+        runBlocks((from, to) -> {
+            for (int op=0; op<operationCount; op++)
+                updatePartials(operations, op*OPERATION_TUPLE_SIZE,
+                        cumulativeScaleIndex, from, to);
+        });
+    }
+
+    /**
+     * Carry out a single operation for a block of patterns.
+     *
+     * @param operations operation list
+     * @param o offset of operation tuple
+     * @param cumulativeScaleIndex scale buffer accumulating any new
+     *                             scale factors, or NONE
+     * @param from first pattern in block
+     * @param to pattern following last pattern in block
+     */
+    private void updatePartials(int[] operations, int o, int cumulativeScaleIndex,
+                                int from, int to) {
+        double[] dest = partials[operations[o]];
+        int writeScale = operations[o+1];
+        int child1 = operations[o+3], child2 = operations[o+5];
+        double[] matrix1 = matrices[operations[o+4]];
+        double[] matrix2 = matrices[operations[o+6]];
+
+        for (int c=0; c<categoryCount; c++) {
+            int mOffset = c*stateCount*stateCount;
+
+            for (int p=from; p<to; p++) {
+                int pOffset = (c*patternCount + p)*stateCount;
+
+                for (int i=0; i<stateCount; i++) {
+                    int rowOffset = mOffset + i*stateCount;
+                    dest[pOffset + i] =
+                            childSum(child1, matrix1, rowOffset, pOffset, p)
+                            * childSum(child2, matrix2, rowOffset, pOffset, p);
+                }
+            }
+        }
+
+        if (writeScale != NONE) {
+            double[] factors = scaleFactors[writeScale];
+            double[] cumulative = cumulativeScaleIndex != NONE
+                    ? scaleFactors[cumulativeScaleIndex] : null;
+
+            for (int p=from; p<to; p++) {
+                double max = 0.0;
+                for (int c=0; c<categoryCount; c++) {
+                    int pOffset = (c*patternCount + p)*stateCount;
+                    for (int i=0; i<stateCount; i++)
+                        max = Math.max(max, dest[pOffset + i]);
+                }
+
+                if (max == 0.0)
+                    max = 1.0;
+
+                for (int c=0; c<categoryCount; c++) {
+                    int pOffset = (c*patternCount + p)*stateCount;
+                    for (int i=0; i<stateCount; i++)
+                        dest[pOffset + i] /= max;
+                }
+
+                factors[p] = Math.log(max);
+                if (cumulative != null)
+                    cumulative[p] += factors[p];
+            }
+        }
+    }
+
+    /**
+     * Compute the probability of the data below a child given the state
+     * at the top of its edge.
+     *
+     * @param child child buffer index
+     * @param matrix transition matrices for child edge
+     * @param rowOffset offset of matrix row corresponding to parent state
+     * @param pOffset offset of pattern within partials
+     * @param p pattern index
+     * @return sum over child states
+     */
+    private double childSum(int child, double[] matrix, int rowOffset,
+                            int pOffset, int p) {
+        if (child < tipCount && tipStates[child] != null) {
+            int state = tipStates[child][p];
+            if (state >= stateCount)
+                return 1.0;
+
+            return matrix[rowOffset + state];
+        }
+
+        double[] childPartials = partials[child];
+        double sum = 0.0;
+        for (int j=0; j<stateCount; j++)
+            sum += matrix[rowOffset + j]*childPartials[pOffset + j];
+
+        return sum;
+    }
+
+    @Override
+    public void accumulateScaleFactors(int[] scaleIndices, int count, int cumulativeScaleIndex) {
+        double[] cumulative = getScaleBuffer(cumulativeScaleIndex);
+        for (int s=0; s<count; s++) {
+            double[] factors = scaleFactors[scaleIndices[s]];
+            for (int p=0; p<patternCount; p++)
+                cumulative[p] += factors[p];
+        }
+    }
+
+    @Override
+    public void removeScaleFactors(int[] scaleIndices, int count, int cumulativeScaleIndex) {
+        double[] cumulative = getScaleBuffer(cumulativeScaleIndex);
+        for (int s=0; s<count; s++) {
+            double[] factors = scaleFactors[scaleIndices[s]];
+            for (int p=0; p<patternCount; p++)
+                cumulative[p] -= factors[p];
+        }
+    }
+
+    @Override
+    public void copyScaleFactors(int destScalingIndex, int srcScalingIndex) {
+        System.arraycopy(scaleFactors[srcScalingIndex], 0,
+                getScaleBuffer(destScalingIndex), 0, patternCount);
+    }
+
+    @Override
+    public void resetScaleFactors(int cumulativeScaleIndex) {
+        Arrays.fill(getScaleBuffer(cumulativeScaleIndex), 0.0);
+    }
+
+    @Override
+    public void getLogScaleFactors(int scaleIndex, double[] outFactors) {
+        System.arraycopy(scaleFactors[scaleIndex], 0, outFactors, 0, patternCount);
+    }
+
+    @Override
+    public void calculateRootLogLikelihoods(int[] bufferIndices,
+                                            int[] categoryWeightsIndices,
+                                            int[] stateFrequenciesIndices,
+                                            int[] cumulativeScaleIndices,
+                                            int count,
+                                            double[] outSumLogLikelihood) {
+        if (count != 1)
+            throw new UnsupportedOperationException("JavaBeagle only " +
+                    "supports root likelihoods for a single buffer.");
+
+        double[] rootPartials = partials[bufferIndices[0]];
+        double[] weights = categoryWeights[categoryWeightsIndices[0]];
+        double[] freqs = stateFrequencies[stateFrequenciesIndices[0]];
+        double[] factors = cumulativeScaleIndices[0] != NONE
+                ? scaleFactors[cumulativeScaleIndices[0]] : null;
+
+        runBlocks((from, to) -> {
+            for (int p=from; p<to; p++) {
+                double siteL = 0.0;
+                for (int c=0; c<categoryCount; c++) {
+                    int pOffset = (c*patternCount + p)*stateCount;
+                    double catL = 0.0;
+                    for (int i=0; i<stateCount; i++)
+                        catL += freqs[i]*rootPartials[pOffset + i];
+                    siteL += weights[c]*catL;
+                }
+
+                siteLogLikelihoods[p] = Math.log(siteL)
+                        + (factors != null ? factors[p] : 0.0);
+            }
+        });
+
+        double logL = 0.0;
+        for (int p=0; p<patternCount; p++)
+            logL += patternWeights[p]*siteLogLikelihoods[p];
+
+        outSumLogLikelihood[0] = logL;
+    }
+
+    @Override
+    public void calculateEdgeLogLikelihoods(int[] parentBufferIndices,
+                                            int[] childBufferIndices,
+                                            int[] probabilityIndices,
+                                            int[] firstDerivativeIndices,
+                                            int[] secondDerivativeIndices,
+                                            int[] categoryWeightsIndices,
+                                            int[] stateFrequenciesIndices,
+                                            int[] cumulativeScaleIndices,
+                                            int count,
+                                            double[] outSumLogLikelihood,
+                                            double[] outSumFirstDerivative,
+                                            double[] outSumSecondDerivative) {
+        throw new UnsupportedOperationException("JavaBeagle does not " +
+                "compute edge likelihoods.");
+    }
+
+    @Override
+    public void getSiteLogLikelihoods(double[] outLogLikelihoods) {
+        System.arraycopy(siteLogLikelihoods, 0, outLogLikelihoods, 0, patternCount);
+    }
+
+    @Override
+    public InstanceDetails getDetails() {
+        // No native resource is associated with this instance.
+        return null;
+    }
+
+    /**
+     * Pattern block task.
+     */
+    private interface BlockTask {
+        void run(int from, int to);
+    }
+
+    /**
+     * Run a task over the full pattern range, split into blocks which are
+     * evaluated in parallel when more than one thread is available.
+     *
+     * @param task task to run
+     */
+    private void runBlocks(BlockTask task) {
+        int blockCount = Math.min(threadCount, patternCount/MIN_PATTERNS_PER_BLOCK);
+        if (pool == null || blockCount < 2) {
+            task.run(0, patternCount);
+            return;
+        }
+
+        List<ForkJoinTask<?>> tasks = new ArrayList<>();
+        for (int b=0; b<blockCount; b++) {
+            int from = (int)((long)patternCount*b/blockCount);
+            int to = (int)((long)patternCount*(b+1)/blockCount);
+            tasks.add(pool.submit(() -> task.run(from, to)));
+        }
+
+        for (ForkJoinTask<?> forkJoinTask : tasks)
+            forkJoinTask.join();
+    }
+
+    private double[] getPartialsBuffer(int bufferIndex) {
+        if (partials[bufferIndex] == null)
+            partials[bufferIndex] = new double[partialsSize];
+
+        return partials[bufferIndex];
+    }
+
+    private double[] getMatrixBuffer(int matrixIndex) {
+        if (matrices[matrixIndex] == null)
+            matrices[matrixIndex] = new double[matrixSize];
+
+        return matrices[matrixIndex];
+    }
+
+    private double[] getScaleBuffer(int scaleIndex) {
+        if (scaleFactors[scaleIndex] == null)
+            scaleFactors[scaleIndex] = new double[patternCount];
+
+        return scaleFactors[scaleIndex];
+    }
+}
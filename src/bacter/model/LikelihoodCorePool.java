@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2015 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bacter.model;
+
+import beast.evolution.likelihood.LikelihoodCore;
+
+import java.util.*;
+
+/**
+ * Pool of likelihood cores, bucketed by pattern capacity and rate
+ * category count.  Cores released when their site ranges drop out of
+ * use are handed out again to new site ranges of similar size, avoiding
+ * the allocation of fresh partials arrays.
+ *
+ * Pattern counts are rounded up to a bucket capacity with a granularity
+ * of 1/8 of the leading power of two, so at most about 12% of the
+ * patterns evaluated by a core are padding.  Padding patterns should
+ * be given missing leaf states, making their likelihood exactly 1.
+ *
+ * Cores may hold their partials in double precision or in single
+ * precision, optionally off the Java heap.  All cores rescale partials
+ * on demand.
+ *
+ * Pools are not thread-safe.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class LikelihoodCorePool {
+
+    /**
+     * Storage used for partials by the cores of a pool.
+     */
+    public enum CoreType { DOUBLE, FLOAT, FLOAT_OFF_HEAP }
+
+    /**
+     * Maximum number of idle cores retained per bucket.
+     */
+    public static final int MAX_IDLE_PER_BUCKET = 4;
+
+    private final int nStates, leafCount, slotCount;
+    private final boolean useAmbiguities;
+    private final CoreType coreType;
+
+    private final Map<Long, Deque<LikelihoodCore>> idleCores = new HashMap<>();
+    private final Map<LikelihoodCore, Long> bucketKeys = new IdentityHashMap<>();
+
+    private long allocationCount, reuseCount, releaseCount, discardCount;
+
+    /**
+     * Construct a new pool.
+     *
+     * @param nStates number of states in data type
+     * @param leafCount number of leaves in marginal trees
+     * @param slotCount number of partials buffers per core
+     * @param useAmbiguities whether cores will be seeded with leaf partials
+     *                       rather than states
+     */
+    public LikelihoodCorePool(int nStates, int leafCount, int slotCount,
+                              boolean useAmbiguities) {
+        this(nStates, leafCount, slotCount, useAmbiguities, CoreType.DOUBLE);
+    }
+
+    /**
+     * Construct a new pool.
+     *
+     * @param nStates number of states in data type
+     * @param leafCount number of leaves in marginal trees
+     * @param slotCount number of partials buffers per core
+     * @param useAmbiguities whether cores will be seeded with leaf partials
+     *                       rather than states
+     * @param coreType storage used for partials
+     */
+    public LikelihoodCorePool(int nStates, int leafCount, int slotCount,
+                              boolean useAmbiguities, CoreType coreType) {
+        this.nStates = nStates;
+        this.leafCount = leafCount;
+        this.slotCount = slotCount;
+        this.useAmbiguities = useAmbiguities;
+        this.coreType = coreType;
+    }
+
+    /**
+     * @param patternCount number of patterns to be evaluated
+     * @return number of patterns a core handed out for this pattern
+     * count will actually evaluate
+     */
+    public static int getPatternCapacity(int patternCount) {
+        if (patternCount <= 8)
+            return Math.max(patternCount, 1);
+
+        int granularity = Integer.highestOneBit(patternCount) >> 3;
+        return ((patternCount + granularity - 1) / granularity) * granularity;
+    }
+
+    /**
+     * Obtain a core able to evaluate the given number of patterns.  The
+     * core will have partials allocated for all internal slots, but its
+     * leaf states or partials and transition matrices are undefined.
+     *
+     * @param patternCount number of patterns to evaluate
+     * @param categoryCount number of rate categories
+     * @return likelihood core evaluating getPatternCapacity(patternCount)
+     * patterns
+     */
+    public LikelihoodCore acquire(int patternCount, int categoryCount) {
+        int capacity = getPatternCapacity(patternCount);
+        long key = ((long)capacity << 32) | categoryCount;
+
+        Deque<LikelihoodCore> idle = idleCores.get(key);
+        if (idle != null && !idle.isEmpty()) {
+            reuseCount += 1;
+            return idle.pop();
+        }
+
+        LikelihoodCore core;
+        switch (coreType) {
+            case FLOAT:
+                core = new FloatLikelihoodCore(nStates, false);
+                break;
+
+            case FLOAT_OFF_HEAP:
+                core = new FloatLikelihoodCore(nStates, true);
+                break;
+
+            default:
+                if (nStates==4)
+                    core = new NucleotideLikelihoodCore();
+                else
+                    core = new ScalingLikelihoodCore(nStates);
+        }
+
+        core.initialize(slotCount, capacity, categoryCount, true, useAmbiguities);
+
+        for (int i=leafCount; i<slotCount; i++)
+            core.createNodePartials(i);
+
+        bucketKeys.put(core, key);
+        allocationCount += 1;
+
+        return core;
+    }
+
+    /**
+     * Return a core to the pool.  The caller must not use the core again.
+     *
+     * @param core core previously obtained from acquire()
+     */
+    public void release(LikelihoodCore core) {
+        Long key = bucketKeys.get(core);
+        if (key == null)
+            throw new IllegalArgumentException("Likelihood core not " +
+                    "allocated by this pool.");
+
+        Deque<LikelihoodCore> idle = idleCores.computeIfAbsent(key, k -> new ArrayDeque<>());
+        if (idle.size() < MAX_IDLE_PER_BUCKET) {
+            idle.push(core);
+            releaseCount += 1;
+        } else {
+            bucketKeys.remove(core);
+            discardCount += 1;
+        }
+    }
+
+    /**
+     * Discard a core rather than retaining it for reuse, allowing its
+     * memory to be reclaimed.  The caller must not use the core again.
+     *
+     * @param core core previously obtained from acquire()
+     */
+    public void discard(LikelihoodCore core) {
+        if (bucketKeys.remove(core) == null)
+            throw new IllegalArgumentException("Likelihood core not " +
+                    "allocated by this pool.");
+
+        discardCount += 1;
+    }
+
+    /**
+     * Estimate the memory used by a core, including off-heap memory.
+     * For double-precision cores this includes both the current and
+     * stored copies of its partials and transition matrices.  Scale
+     * factors are not included.
+     *
+     * @param core core previously obtained from acquire()
+     * @return approximate size of core's arrays in bytes
+     */
+    public long getCoreBytes(LikelihoodCore core) {
+        Long key = bucketKeys.get(core);
+        if (key == null)
+            throw new IllegalArgumentException("Likelihood core not " +
+                    "allocated by this pool.");
+
+        long capacity = key >>> 32;
+        long categoryCount = key & 0xffffffffL;
+        long partialsSize = capacity*categoryCount*nStates;
+
+        long matrixBytes = slotCount*categoryCount*nStates*nStates*Double.BYTES;
+
+        if (coreType != CoreType.DOUBLE) {
+            long bytes = (slotCount - leafCount)*partialsSize*Float.BYTES;
+            bytes += useAmbiguities
+                    ? leafCount*partialsSize*Float.BYTES
+                    : leafCount*capacity*Integer.BYTES;
+
+            return bytes + matrixBytes;
+        }
+
+        long bytes = 2*(slotCount - leafCount)*partialsSize*Double.BYTES;
+        bytes += useAmbiguities
+                ? 2*leafCount*partialsSize*Double.BYTES
+                : leafCount*capacity*Integer.BYTES;
+        bytes += 2*matrixBytes;
+
+        return bytes;
+    }
+
+    /**
+     * @return number of cores allocated by the pool
+     */
+    public long getAllocationCount() {
+        return allocationCount;
+    }
+
+    /**
+     * @return number of requests satisfied by recycled cores
+     */
+    public long getReuseCount() {
+        return reuseCount;
+    }
+
+    /**
+     * @return number of cores returned to the pool for reuse
+     */
+    public long getReleaseCount() {
+        return releaseCount;
+    }
+
+    /**
+     * @return number of cores discarded, either explicitly or because
+     * their bucket was full on release
+     */
+    public long getDiscardCount() {
+        return discardCount;
+    }
+
+    @Override
+    public String toString() {
+        return "Likelihood core pool: " + allocationCount + " allocated, "
+                + reuseCount + " reused, " + releaseCount + " released, "
+                + discardCount + " discarded.";
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2015 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bacter.model;
+
+/**
+ * Nucleotide likelihood core whose pruning kernels are laid out for
+ * vectorisation.  Before each partials update the transition matrices of
+ * both child edges are transposed into columns, one per child state plus
+ * a column of ones representing missing data.  The partials of all four
+ * parent states are then obtained as sums of whole columns scaled by
+ * child partials, i.e. as 4-lane multiply-adds with contiguous operands
+ * and no branches on missing states.  Rate categories are handled in a
+ * single fused loop over the category-major partials layout.
+ *
+ * The lanes are written out explicitly so that the JIT compiler can map
+ * them onto SIMD registers where the hardware allows, and otherwise run
+ * as straight-line scalar code.  Sums are accumulated in the same order
+ * as in BeerLikelihoodCore4, so results are identical to those of that
+ * core.  Partials are rescaled on demand as described in
+ * ScalingLikelihoodCore.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class NucleotideLikelihoodCore extends ScalingLikelihoodCore {
+
+    /**
+     * Number of columns per category: one per state, plus missing data.
+     */
+    private static final int COLUMNS = 5;
+
+    /**
+     * Transposed transition matrices of the two child edges, indexed by
+     * category, child state and parent state.
+     */
+    private double[] columns1 = new double[0], columns2 = new double[0];
+
+    public NucleotideLikelihoodCore() {
+        super(4);
+    }
+
+    /**
+     * Transpose the transition matrices of a child edge into columns.
+     *
+     * @param matrices transition matrices, indexed by category, parent
+     *                 state and child state
+     * @param columns array to hold transposed matrices
+     * @return columns, reallocated if necessary
+     */
+    private double[] transpose(double[] matrices, double[] columns) {
+        if (columns.length < nrOfMatrices*COLUMNS*4)
+            columns = new double[nrOfMatrices*COLUMNS*4];
+
+        for (int c=0; c<nrOfMatrices; c++) {
+            int w = c*16;
+            int col = c*COLUMNS*4;
+            for (int s=0; s<4; s++) {
+                columns[col + s*4] = matrices[w + s];
+                columns[col + s*4 + 1] = matrices[w + 4 + s];
+                columns[col + s*4 + 2] = matrices[w + 8 + s];
+                columns[col + s*4 + 3] = matrices[w + 12 + s];
+            }
+            columns[col + 16] = 1.0;
+            columns[col + 17] = 1.0;
+            columns[col + 18] = 1.0;
+            columns[col + 19] = 1.0;
+        }
+
+        return columns;
+    }
+
+    @Override
+    protected void calculateStatesStatesPruning(int[] stateIndex1, double[] matrices1,
+                                                int[] stateIndex2, double[] matrices2,
+                                                double[] partials3) {
+        double[] cols1 = columns1 = transpose(matrices1, columns1);
+        double[] cols2 = columns2 = transpose(matrices2, columns2);
+
+        int u = 0;
+        for (int c=0; c<nrOfMatrices; c++) {
+            int col = c*COLUMNS*4;
+            for (int k=0; k<nrOfPatterns; k++) {
+                int a = col + Math.min(stateIndex1[k], 4)*4;
+                int b = col + Math.min(stateIndex2[k], 4)*4;
+
+                partials3[u] = cols1[a] * cols2[b];
+                partials3[u + 1] = cols1[a + 1] * cols2[b + 1];
+                partials3[u + 2] = cols1[a + 2] * cols2[b + 2];
+                partials3[u + 3] = cols1[a + 3] * cols2[b + 3];
+                u += 4;
+            }
+        }
+    }
+
+    @Override
+    protected void calculateStatesPartialsPruning(int[] stateIndex1, double[] matrices1,
+                                                  double[] partials2, double[] matrices2,
+                                                  double[] partials3) {
+        double[] cols1 = columns1 = transpose(matrices1, columns1);
+        double[] cols2 = columns2 = transpose(matrices2, columns2);
+
+        int u = 0;
+        for (int c=0; c<nrOfMatrices; c++) {
+            int col = c*COLUMNS*4;
+            for (int k=0; k<nrOfPatterns; k++) {
+                int a = col + Math.min(stateIndex1[k], 4)*4;
+
+                double p0 = partials2[u], p1 = partials2[u + 1],
+                        p2 = partials2[u + 2], p3 = partials2[u + 3];
+
+                partials3[u] = cols1[a] * (cols2[col]*p0 + cols2[col + 4]*p1
+                        + cols2[col + 8]*p2 + cols2[col + 12]*p3);
+                partials3[u + 1] = cols1[a + 1] * (cols2[col + 1]*p0 + cols2[col + 5]*p1
+                        + cols2[col + 9]*p2 + cols2[col + 13]*p3);
+                partials3[u + 2] = cols1[a + 2] * (cols2[col + 2]*p0 + cols2[col + 6]*p1
+                        + cols2[col + 10]*p2 + cols2[col + 14]*p3);
+                partials3[u + 3] = cols1[a + 3] * (cols2[col + 3]*p0 + cols2[col + 7]*p1
+                        + cols2[col + 11]*p2 + cols2[col + 15]*p3);
+                u += 4;
+            }
+        }
+    }
+
+    @Override
+    protected void calculatePartialsPartialsPruning(double[] partials1, double[] matrices1,
+                                                    double[] partials2, double[] matrices2,
+                                                    double[] partials3) {
+        double[] cols1 = columns1 = transpose(matrices1, columns1);
+        double[] cols2 = columns2 = transpose(matrices2, columns2);
+
+        int u = 0;
+        for (int c=0; c<nrOfMatrices; c++) {
+            int col = c*COLUMNS*4;
+            for (int k=0; k<nrOfPatterns; k++) {
+                double q0 = partials1[u], q1 = partials1[u + 1],
+                        q2 = partials1[u + 2], q3 = partials1[u + 3];
+                double p0 = partials2[u], p1 = partials2[u + 1],
+                        p2 = partials2[u + 2], p3 = partials2[u + 3];
+
+                partials3[u] = (cols1[col]*q0 + cols1[col + 4]*q1
+                        + cols1[col + 8]*q2 + cols1[col + 12]*q3)
+                        * (cols2[col]*p0 + cols2[col + 4]*p1
+                        + cols2[col + 8]*p2 + cols2[col + 12]*p3);
+                partials3[u + 1] = (cols1[col + 1]*q0 + cols1[col + 5]*q1
+                        + cols1[col + 9]*q2 + cols1[col + 13]*q3)
+                        * (cols2[col + 1]*p0 + cols2[col + 5]*p1
+                        + cols2[col + 9]*p2 + cols2[col + 13]*p3);
+                partials3[u + 2] = (cols1[col + 2]*q0 + cols1[col + 6]*q1
+                        + cols1[col + 10]*q2 + cols1[col + 14]*q3)
+                        * (cols2[col + 2]*p0 + cols2[col + 6]*p1
+                        + cols2[col + 10]*p2 + cols2[col + 14]*p3);
+                partials3[u + 3] = (cols1[col + 3]*q0 + cols1[col + 7]*q1
+                        + cols1[col + 11]*q2 + cols1[col + 15]*q3)
+                        * (cols2[col + 3]*p0 + cols2[col + 7]*p1
+                        + cols2[col + 11]*p2 + cols2[col + 15]*p3);
+                u += 4;
+            }
+        }
+    }
+}
@@ -0,0 +1,349 @@
+/*
+ * Copyright (C) 2015 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bacter.model;
+
+import bacter.ConversionGraph;
+import beast.evolution.alignment.Alignment;
+import beast.evolution.datatype.DataType;
+import beast.evolution.tree.Node;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Locus-wide dictionary of unique site patterns.  Leaf states (and,
+ * when ambiguities are used, leaf partials) are computed once for every
+ * unique pattern of the alignment.  Individual regions are described
+ * only by the IDs of the patterns they contain together with the
+ * number of times each occurs.
+ *
+ * Pattern IDs are the alignment's own pattern indices, and the
+ * patterns of a region are always listed in increasing ID order.
+ *
+ * Dictionaries are not thread-safe.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class PatternDictionary {
+
+    /**
+     * Patterns present in a single region.
+     */
+    public static class RegionPatterns {
+
+        /**
+         * IDs of unique patterns found in region, in increasing order.
+         */
+        public final int[] patternIDs;
+
+        /**
+         * Number of sites in region displaying each pattern.
+         */
+        public final int[] weights;
+
+        RegionPatterns(int[] patternIDs, int[] weights) {
+            this.patternIDs = patternIDs;
+            this.weights = weights;
+        }
+
+        /**
+         * @return number of unique patterns in region
+         */
+        public int getPatternCount() {
+            return patternIDs.length;
+        }
+    }
+
+    private final Alignment alignment;
+    private final int nStates, patternCount;
+
+    /**
+     * Sorted site positions displaying each pattern.
+     */
+    private final int[][] patternSites;
+
+    /**
+     * Leaf states and partials, indexed by leaf node number then by
+     * pattern ID.  Partials are only available when ambiguities are used.
+     */
+    private final int[][] leafStates;
+    private final double[][] leafPartials;
+
+    /**
+     * States contributing to the invariant site probability of each
+     * pattern.  Empty for non-constant patterns.
+     */
+    private final int[][] constantStates;
+
+    private final int[] scratchCounts;
+    private final int[] scratchIDs;
+
+    /**
+     * Construct dictionary for the given alignment.
+     *
+     * @param acg conversion graph whose leaves are associated with taxa
+     * @param alignment alignment associated with locus
+     * @param useAmbiguities whether ambiguous states are to be handled
+     *                       rather than ignored
+     */
+    public PatternDictionary(ConversionGraph acg, Alignment alignment,
+                             boolean useAmbiguities) {
+        this.alignment = alignment;
+
+        DataType dataType = alignment.getDataType();
+        nStates = alignment.getMaxStateCount();
+        patternCount = alignment.getPatternCount();
+
+        // Site positions of each pattern
+        int siteCount = alignment.getSiteCount();
+        int[] siteCounts = new int[patternCount];
+        for (int site=0; site<siteCount; site++)
+            siteCounts[alignment.getPatternIndex(site)] += 1;
+
+        patternSites = new int[patternCount][];
+        for (int p=0; p<patternCount; p++)
+            patternSites[p] = new int[siteCounts[p]];
+
+        Arrays.fill(siteCounts, 0);
+        for (int site=0; site<siteCount; site++) {
+            int p = alignment.getPatternIndex(site);
+            patternSites[p][siteCounts[p]++] = site;
+        }
+
+        // Leaf states and partials
+        leafStates = new int[acg.getLeafNodeCount()][];
+        leafPartials = useAmbiguities ? new double[acg.getLeafNodeCount()][] : null;
+
+        for (Node node : acg.getExternalNodes()) {
+            int taxon = alignment.getTaxonIndex(node.getID());
+
+            int[] states = new int[patternCount];
+            for (int p=0; p<patternCount; p++) {
+                int code = alignment.getPattern(p)[taxon];
+                int[] statesForCode = dataType.getStatesForCode(code);
+                if (statesForCode.length==1)
+                    states[p] = statesForCode[0];
+                else
+                    states[p] = code; // Causes ambiguous states to be ignored.
+            }
+            leafStates[node.getNr()] = states;
+
+            if (useAmbiguities) {
+                double[] partials = new double[patternCount*nStates];
+                int k = 0;
+                for (int p=0; p<patternCount; p++) {
+                    boolean[] stateSet = dataType.getStateSet(alignment.getPattern(p)[taxon]);
+                    for (int iState=0; iState<nStates; iState++)
+                        partials[k++] = stateSet[iState] ? 1.0 : 0.0;
+                }
+                leafPartials[node.getNr()] = partials;
+            }
+        }
+
+        // Constant patterns
+        constantStates = new int[patternCount][];
+        for (int p=0; p<patternCount; p++) {
+            int[] pattern = alignment.getPattern(p);
+
+            boolean isConstant = true;
+            for (int i=1; i<pattern.length; i++)
+                if (pattern[i] != pattern[0]) {
+                    isConstant = false;
+                    break;
+                }
+
+            if (!isConstant)
+                constantStates[p] = new int[0];
+            else if (dataType.isAmbiguousCode(pattern[0]))
+                constantStates[p] = useAmbiguities
+                        ? dataType.getStatesForCode(pattern[0])
+                        : new int[0];
+            else
+                constantStates[p] = new int[] {pattern[0]};
+        }
+
+        scratchCounts = new int[patternCount];
+        scratchIDs = new int[patternCount];
+    }
+
+    /**
+     * @return number of unique patterns in alignment
+     */
+    public int getPatternCount() {
+        return patternCount;
+    }
+
+    /**
+     * Determine the patterns present in a range of sites.  Short ranges
+     * are scanned directly, while the pattern counts of longer ranges are
+     * obtained by bisecting each pattern's site list, so the cost is
+     * bounded by the smaller of the range length and the number of
+     * unique patterns (up to a logarithmic factor).
+     *
+     * @param leftBoundary first site in range
+     * @param rightBoundary site following last site in range
+     * @return pattern IDs and weights for range
+     */
+    public RegionPatterns getRegionPatterns(int leftBoundary, int rightBoundary) {
+        int nIDs = 0;
+
+        if (rightBoundary - leftBoundary < patternCount) {
+            for (int site=leftBoundary; site<rightBoundary; site++) {
+                int p = alignment.getPatternIndex(site);
+                if (scratchCounts[p]++ == 0)
+                    scratchIDs[nIDs++] = p;
+            }
+            Arrays.sort(scratchIDs, 0, nIDs);
+
+        } else {
+            for (int p=0; p<patternCount; p++) {
+                int count = lowerBound(patternSites[p], rightBoundary)
+                        - lowerBound(patternSites[p], leftBoundary);
+
+                if (count > 0) {
+                    scratchCounts[p] = count;
+                    scratchIDs[nIDs++] = p;
+                }
+            }
+        }
+
+        int[] patternIDs = Arrays.copyOf(scratchIDs, nIDs);
+        int[] weights = new int[nIDs];
+        for (int i=0; i<nIDs; i++) {
+            weights[i] = scratchCounts[patternIDs[i]];
+            scratchCounts[patternIDs[i]] = 0;
+        }
+
+        return new RegionPatterns(patternIDs, weights);
+    }
+
+    /**
+     * @param sites sorted array of site positions
+     * @param site site position
+     * @return number of elements of sites less than site
+     */
+    private static int lowerBound(int[] sites, int site) {
+        int lo = 0, hi = sites.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (sites[mid] < site)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+
+        return lo;
+    }
+
+    /**
+     * Retrieve leaf states for a subset of patterns.  Ambiguous states
+     * are represented by their codes, which likelihood cores ignore.
+     *
+     * @param leafNr leaf node number
+     * @param patternIDs IDs of patterns
+     * @return newly-allocated array of states
+     */
+    public int[] getLeafStates(int leafNr, int[] patternIDs) {
+        return getLeafStates(leafNr, patternIDs, patternIDs.length);
+    }
+
+    /**
+     * Retrieve leaf states for a subset of patterns, padded with missing
+     * data to the given length.
+     *
+     * @param leafNr leaf node number
+     * @param patternIDs IDs of patterns
+     * @param length length of array to return
+     * @return newly-allocated array of states
+     */
+    public int[] getLeafStates(int leafNr, int[] patternIDs, int length) {
+        int[] allStates = leafStates[leafNr];
+        int[] states = new int[length];
+        for (int i=0; i<patternIDs.length; i++)
+            states[i] = allStates[patternIDs[i]];
+
+        Arrays.fill(states, patternIDs.length, length, nStates);
+
+        return states;
+    }
+
+    /**
+     * Retrieve leaf partials for a subset of patterns.
+     *
+     * @param leafNr leaf node number
+     * @param patternIDs IDs of patterns
+     * @return newly-allocated array of partials
+     */
+    public double[] getLeafPartials(int leafNr, int[] patternIDs) {
+        return getLeafPartials(leafNr, patternIDs, patternIDs.length);
+    }
+
+    /**
+     * Retrieve leaf partials for a subset of patterns, padded with missing
+     * data to the given number of patterns.
+     *
+     * @param leafNr leaf node number
+     * @param patternIDs IDs of patterns
+     * @param length number of patterns to return partials for
+     * @return newly-allocated array of partials
+     */
+    public double[] getLeafPartials(int leafNr, int[] patternIDs, int length) {
+        if (leafPartials == null)
+            throw new IllegalStateException("Programmer error: leaf partials " +
+                    "requested from dictionary constructed without ambiguities.");
+
+        double[] allPartials = leafPartials[leafNr];
+        double[] partials = new double[length*nStates];
+        for (int i=0; i<patternIDs.length; i++)
+            System.arraycopy(allPartials, patternIDs[i]*nStates,
+                    partials, i*nStates, nStates);
+
+        Arrays.fill(partials, patternIDs.length*nStates, length*nStates, 1.0);
+
+        return partials;
+    }
+
+    /**
+     * @param patternID ID of pattern
+     * @return states contributing to the invariant site probability of
+     * the pattern (empty unless the pattern is constant).  The returned
+     * array must not be modified.
+     */
+    public int[] getConstantStates(int patternID) {
+        return constantStates[patternID];
+    }
+
+    /**
+     * Assemble list of root partials indices that receive the invariant
+     * site probability.
+     *
+     * @param patternIDs IDs of patterns
+     * @return list of (pattern index)*nStates + state values
+     */
+    public List<Integer> getConstantPatternList(int[] patternIDs) {
+        List<Integer> constantPatternList = new ArrayList<>();
+
+        for (int i=0; i<patternIDs.length; i++) {
+            for (int state : constantStates[patternIDs[i]])
+                constantPatternList.add(i*nStates + state);
+        }
+
+        return constantPatternList;
+    }
+}
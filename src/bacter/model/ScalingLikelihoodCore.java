@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2015 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bacter.model;
+
+import beast.evolution.likelihood.BeerLikelihoodCore;
+
+import java.util.Arrays;
+
+/**
+ * Double-precision likelihood core which rescales partials on demand.
+ * After each partials update, every pattern whose largest partial has
+ * fallen below SCALING_THRESHOLD is divided by that partial.  Log scale
+ * factors are accumulated up the tree, so each buffer carries the total
+ * scaling applied to its subtree and buffers can be shared between
+ * trees as SubtreePartialsCache requires.
+ *
+ * Patterns that never approach underflow are left untouched, and log
+ * scale arrays are only allocated for buffers whose subtree actually
+ * required scaling.  Scale factors are single-buffered, as ACGLikelihood
+ * never stores or restores the contents of its cores.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class ScalingLikelihoodCore extends BeerLikelihoodCore {
+
+    /**
+     * Patterns whose largest partial falls below this value are rescaled.
+     */
+    public static final double SCALING_THRESHOLD = 1e-100;
+
+    private final int nStates;
+    private int patternCount, categoryCount;
+
+    /**
+     * Accumulated log scale factors, indexed by node then by pattern.
+     * Arrays are retained once allocated, but only hold valid values
+     * when the corresponding element of nodeScaled is true.
+     */
+    private double[][] nodeLogScales;
+    private boolean[] nodeScaled;
+
+    /**
+     * Log scale factors of the node whose partials were last integrated.
+     */
+    private double[] rootLogScales;
+
+    /**
+     * Largest partial (and later the rescaling factor) of each pattern.
+     */
+    private double[] maxima;
+
+    /**
+     * Construct a new core.
+     *
+     * @param nStates number of states
+     */
+    public ScalingLikelihoodCore(int nStates) {
+        super(nStates);
+
+        this.nStates = nStates;
+    }
+
+    @Override
+    public void initialize(int nodeCount, int patternCount, int matrixCount,
+                           boolean integrateCategories, boolean useAmbiguities) {
+        super.initialize(nodeCount, patternCount, matrixCount,
+                integrateCategories, useAmbiguities);
+
+        this.patternCount = patternCount;
+        this.categoryCount = matrixCount;
+
+        nodeLogScales = new double[nodeCount][];
+        nodeScaled = new boolean[nodeCount];
+        maxima = new double[patternCount];
+    }
+
+    @Override
+    public void setNodePartials(int nodeIndex, double[] partials) {
+        super.setNodePartials(nodeIndex, partials);
+        nodeScaled[nodeIndex] = false;
+    }
+
+    @Override
+    public void setNodeStates(int nodeIndex, int[] states) {
+        super.setNodeStates(nodeIndex, states);
+        nodeScaled[nodeIndex] = false;
+    }
+
+    @Override
+    public void calculatePartials(int nodeIndex1, int nodeIndex2, int nodeIndex3) {
+        super.calculatePartials(nodeIndex1, nodeIndex2, nodeIndex3);
+
+        rescale(partials[currentPartialsIndex[nodeIndex3]][nodeIndex3],
+                nodeIndex1, nodeIndex2, nodeIndex3);
+    }
+
+    /**
+     * Rescale newly-computed partials where necessary and record the
+     * accumulated log scale factors of the node.
+     *
+     * @param partials3 partials of node, indexed by category, pattern
+     *                  and state
+     * @param nodeIndex1 first child
+     * @param nodeIndex2 second child
+     * @param nodeIndex3 node
+     */
+    private void rescale(double[] partials3, int nodeIndex1, int nodeIndex2,
+                         int nodeIndex3) {
+        double[] logScales1 = nodeScaled[nodeIndex1] ? nodeLogScales[nodeIndex1] : null;
+        double[] logScales2 = nodeScaled[nodeIndex2] ? nodeLogScales[nodeIndex2] : null;
+
+        Arrays.fill(maxima, 0.0);
+        int u = 0;
+        for (int c=0; c<categoryCount; c++) {
+            for (int k=0; k<patternCount; k++) {
+                for (int i=0; i<nStates; i++) {
+                    if (partials3[u] > maxima[k])
+                        maxima[k] = partials3[u];
+                    u += 1;
+                }
+            }
+        }
+
+        boolean scalingRequired = false;
+        for (int k=0; k<patternCount; k++) {
+            if (maxima[k] < SCALING_THRESHOLD && maxima[k] > 0.0) {
+                scalingRequired = true;
+                break;
+            }
+        }
+
+        if (!scalingRequired && logScales1 == null && logScales2 == null) {
+            nodeScaled[nodeIndex3] = false;
+            return;
+        }
+
+        if (nodeLogScales[nodeIndex3] == null)
+            nodeLogScales[nodeIndex3] = new double[patternCount];
+        double[] logScales3 = nodeLogScales[nodeIndex3];
+
+        // Maxima are replaced by the factors by which patterns are scaled.
+        for (int k=0; k<patternCount; k++) {
+            double logScale = 0.0;
+            if (maxima[k] < SCALING_THRESHOLD && maxima[k] > 0.0) {
+                logScale = Math.log(maxima[k]);
+                maxima[k] = 1.0/maxima[k];
+            } else
+                maxima[k] = 1.0;
+
+            if (logScales1 != null)
+                logScale += logScales1[k];
+            if (logScales2 != null)
+                logScale += logScales2[k];
+
+            logScales3[k] = logScale;
+        }
+
+        if (scalingRequired) {
+            u = 0;
+            for (int c=0; c<categoryCount; c++) {
+                for (int k=0; k<patternCount; k++) {
+                    if (maxima[k] != 1.0) {
+                        for (int i=0; i<nStates; i++)
+                            partials3[u + i] *= maxima[k];
+                    }
+                    u += nStates;
+                }
+            }
+        }
+
+        nodeScaled[nodeIndex3] = true;
+    }
+
+    @Override
+    public void integratePartials(int nodeIndex, double[] proportions,
+                                  double[] outPartials) {
+        super.integratePartials(nodeIndex, proportions, outPartials);
+
+        rootLogScales = nodeScaled[nodeIndex] ? nodeLogScales[nodeIndex] : null;
+    }
+
+    @Override
+    public void calculateLogLikelihoods(double[] partials, double[] frequencies,
+                                        double[] outLogLikelihoods) {
+        for (int k=0; k<patternCount; k++) {
+            double sum = 0.0;
+            for (int i=0; i<nStates; i++)
+                sum += frequencies[i]*partials[k*nStates + i];
+
+            outLogLikelihoods[k] = Math.log(sum) + getLogScalingFactor(k);
+        }
+    }
+
+    /**
+     * @param patternIndex pattern index
+     * @return log of the factor by which the most recently integrated
+     * partials of the given pattern were scaled
+     */
+    @Override
+    public double getLogScalingFactor(int patternIndex) {
+        return rootLogScales != null ? rootLogScales[patternIndex] : 0.0;
+    }
+
+    /**
+     * Scaling is always adaptive, so requests to enable it are ignored.
+     */
+    @Override
+    public void setUseScaling(double scale) { }
+}
@@ -18,8 +18,9 @@
 package bacter.model;
 
 import bacter.ConversionGraph;
+import bacter.FlatMarginalTree;
 import bacter.Locus;
-import bacter.MarginalTree;
+import bacter.MarginalTreeBuilder;
 import bacter.Region;
 import beast.core.Description;
 import beast.core.Input;
@@ -138,11 +139,13 @@ public class SimulatedAlignment extends Alignment {
         double[][] transitionProbs = new double[nCategories][nStates*nStates];
         
         int[][] alignment = new int[nTaxa][locus.getSiteCount()];
+
+        // Regions are visited from left to right, so the builder only
+        // needs to apply a single edit between successive marginal trees.
+        MarginalTreeBuilder marginalTreeBuilder = new MarginalTreeBuilder(acg);
         
         for (Region region : acg.getRegions(locus)) {
             int thisLength = region.getRegionLength();
-
-            MarginalTree marginalTree = new MarginalTree(acg, region);
             
             int[] categories = new int[thisLength];
             for (int i=0; i<thisLength; i++)
@@ -150,14 +153,14 @@ public class SimulatedAlignment extends Alignment {
             
             int[][] regionAlignment = new int[nTaxa][thisLength];
             
-            Node thisRoot = marginalTree.getRoot();
+            FlatMarginalTree thisTree = marginalTreeBuilder.getMarginalTree(region);
             
             int[] parentSequence = new int[region.getRegionLength()];
             double[] frequencies = siteModel.getSubstitutionModel().getFrequencies();
             for (int i=0; i<parentSequence.length; i++)
                 parentSequence[i] = Randomizer.randomChoicePDF(frequencies);
 
-            traverse(thisRoot, parentSequence,
+            traverse(thisTree, thisTree.getRoot(), parentSequence,
                     categories, transitionProbs,
                     regionAlignment);
             
@@ -186,26 +189,30 @@ public class SimulatedAlignment extends Alignment {
     
     /**
      * Traverse a marginal tree simulating a region of the sequence alignment
-     * down it.
+     * down it.  Marginal edges need not correspond to any Node, so none
+     * is passed to the site and substitution models.
      * 
-     * @param node Node of the marginal tree
+     * @param tree Marginal tree
+     * @param nodeNr Number of node in marginal tree
      * @param parentSequence Sequence at the parent node in the marginal tree
      * @param categories Mapping from sites to categories
      * @param transitionProbs
      * @param regionAlignment 
      */
-    private void traverse(Node node,
+    private void traverse(FlatMarginalTree tree, int nodeNr,
             int[] parentSequence,
             int[] categories, double[][] transitionProbs,
             int[][] regionAlignment) {
         
-        for (Node child : node.getChildren()) {
+        for (int child : new int[] {tree.left[nodeNr], tree.right[nodeNr]}) {
+            if (child < 0)
+                continue;
 
             // Calculate transition probabilities
             for (int i=0; i<siteModel.getCategoryCount(); i++) {
                 siteModel.getSubstitutionModel().getTransitionProbabilities(
-                        child, node.getHeight(), child.getHeight(),
-                        siteModel.getRateForCategory(i, child),
+                        null, tree.height[nodeNr], tree.height[child],
+                        siteModel.getRateForCategory(i, null),
                         transitionProbs[i]);
             }
             
@@ -220,11 +227,11 @@ public class SimulatedAlignment extends Alignment {
                 childSequence[i] = Randomizer.randomChoicePDF(charProb);
             }
             
-            if (child.isLeaf()) {
+            if (tree.isLeaf(child)) {
                 System.arraycopy(childSequence, 0,
-                        regionAlignment[child.getNr()], 0, childSequence.length);
+                        regionAlignment[child], 0, childSequence.length);
             } else {
-                traverse(child, childSequence,
+                traverse(tree, child, childSequence,
                         categories, transitionProbs,
                         regionAlignment);
             }
@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2015 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bacter.model;
+
+import beast.evolution.likelihood.LikelihoodCore;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Content-addressed store of marginal subtree partials for the patterns
+ * of a single site range.
+ *
+ * Each partials buffer ("slot") of the underlying likelihood core holds
+ * the partials of one marginal subtree.  Leaves occupy the slots matching
+ * their node numbers.  Internal subtrees are hash-consed: a subtree is
+ * identified by the slots of its two children together with the height
+ * of its root.  Since the children's slots identify their own subtrees
+ * in the same way, two marginal trees share a slot exactly when they
+ * share a subtree with identical topology and node heights, and hence
+ * identical partials.  When a marginal tree differs from a previously
+ * evaluated one in a single lineage, only the path from that lineage to
+ * the root has to be recomputed.
+ *
+ * Slot contents don't depend on the transition matrices of the edges
+ * above them, so the cache remains valid across clonal frame changes.
+ * It must be cleared whenever substitution or rate parameters change.
+ *
+ * Each tree evaluation forms a new generation.  Once all slots are
+ * occupied, those untouched by the current and previous generations are
+ * recycled.  Evaluating a node touches both of its children, so a slot
+ * is never recycled while a surviving subtree still refers to it.  This
+ * means that repeatedly perturbing a single lineage of a marginal tree
+ * only ever recomputes the path from that lineage to the root.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class SubtreePartialsCache {
+
+    /**
+     * Identity of an internal marginal subtree.
+     */
+    private static class SubtreeKey {
+        int childSlot1, childSlot2;
+        long heightBits;
+
+        void set(int childSlotA, int childSlotB, double height) {
+            childSlot1 = Math.min(childSlotA, childSlotB);
+            childSlot2 = Math.max(childSlotA, childSlotB);
+            heightBits = Double.doubleToLongBits(height);
+        }
+
+        SubtreeKey copy() {
+            SubtreeKey key = new SubtreeKey();
+            key.childSlot1 = childSlot1;
+            key.childSlot2 = childSlot2;
+            key.heightBits = heightBits;
+            return key;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            SubtreeKey that = (SubtreeKey) o;
+
+            return childSlot1 == that.childSlot1
+                    && childSlot2 == that.childSlot2
+                    && heightBits == that.heightBits;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = childSlot1;
+            result = 31 * result + childSlot2;
+            result = 31 * result + (int) (heightBits ^ (heightBits >>> 32));
+            return result;
+        }
+    }
+
+    private final LikelihoodCore core;
+    private final int leafCount, slotCount;
+
+    private final Map<SubtreeKey, Integer> slots = new HashMap<>();
+    private final SubtreeKey probe = new SubtreeKey();
+    private int nextSlot;
+
+    /**
+     * Keys of occupied internal slots, and generations in which the
+     * slots were last touched, indexed by slot.
+     */
+    private final SubtreeKey[] slotKeys;
+    private final int[] slotGenerations;
+    private final Deque<Integer> freeSlots = new ArrayDeque<>();
+    private int generation;
+    private long recycledSlotCount;
+
+    /**
+     * Construct a new cache around a likelihood core.
+     *
+     * @param core likelihood core with leaf states or partials already set
+     *             and partials allocated for all internal slots
+     * @param leafCount number of leaves in the marginal trees
+     * @param slotCount total number of partials buffers in the core
+     */
+    public SubtreePartialsCache(LikelihoodCore core, int leafCount, int slotCount) {
+        this.core = core;
+        this.leafCount = leafCount;
+        this.slotCount = slotCount;
+
+        nextSlot = leafCount;
+
+        slotKeys = new SubtreeKey[slotCount];
+        slotGenerations = new int[slotCount];
+    }
+
+    /**
+     * @return likelihood core holding the cached partials
+     */
+    public LikelihoodCore getCore() {
+        return core;
+    }
+
+    /**
+     * Retrieve slot holding partials for the subtree with the given
+     * children and root height.
+     *
+     * @param childSlot1 slot of first child subtree
+     * @param childSlot2 slot of second child subtree
+     * @param height height of subtree root
+     * @return slot index, or -1 if the subtree is not cached
+     */
+    public int getSlot(int childSlot1, int childSlot2, double height) {
+        probe.set(childSlot1, childSlot2, height);
+        Integer slot = slots.get(probe);
+        if (slot == null)
+            return -1;
+
+        slotGenerations[slot] = generation;
+        return slot;
+    }
+
+    /**
+     * Assign a slot to a subtree not already present in the cache.  The
+     * caller is responsible for computing the partials in this slot.
+     *
+     * @param childSlot1 slot of first child subtree
+     * @param childSlot2 slot of second child subtree
+     * @param height height of subtree root
+     * @return newly-assigned slot index
+     */
+    public int newSlot(int childSlot1, int childSlot2, double height) {
+        if (freeSlots.isEmpty() && nextSlot >= slotCount) {
+            evict(generation - 1);
+
+            if (freeSlots.isEmpty())
+                evict(generation);
+
+            if (freeSlots.isEmpty())
+                throw new IllegalStateException("Programmer error: subtree " +
+                        "partials cache too small to hold a single tree.");
+        }
+
+        int slot = freeSlots.isEmpty() ? nextSlot++ : freeSlots.pop();
+
+        probe.set(childSlot1, childSlot2, height);
+        SubtreeKey key = probe.copy();
+        slots.put(key, slot);
+        slotKeys[slot] = key;
+        slotGenerations[slot] = generation;
+
+        return slot;
+    }
+
+    /**
+     * Start a new generation.  Must be called before evaluating each tree,
+     * so that slots used earlier in the same evaluation aren't recycled.
+     */
+    public void beginTraversal() {
+        generation += 1;
+    }
+
+    /**
+     * Recycle all internal slots last touched before the given generation.
+     *
+     * @param oldestGeneration oldest generation to retain
+     */
+    private void evict(int oldestGeneration) {
+        for (int slot=leafCount; slot<nextSlot; slot++) {
+            if (slotKeys[slot] != null && slotGenerations[slot] < oldestGeneration) {
+                slots.remove(slotKeys[slot]);
+                slotKeys[slot] = null;
+                freeSlots.push(slot);
+                recycledSlotCount += 1;
+            }
+        }
+    }
+
+    /**
+     * @return number of internal slots recycled to make room for new
+     * subtrees
+     */
+    public long getRecycledSlotCount() {
+        return recycledSlotCount;
+    }
+
+    /**
+     * Discard all cached subtrees.
+     */
+    public void clear() {
+        slots.clear();
+        freeSlots.clear();
+        Arrays.fill(slotKeys, null);
+        nextSlot = leafCount;
+    }
+}
@@ -0,0 +1,309 @@
+/*
+ * Copyright (C) 2015 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bacter.model;
+
+import beast.evolution.branchratemodel.BranchRateModel;
+import beast.evolution.sitemodel.SiteModel;
+import beast.evolution.substitutionmodel.EigenDecomposition;
+import beast.evolution.substitutionmodel.GeneralSubstitutionModel;
+import beast.evolution.substitutionmodel.SubstitutionModel;
+import beast.evolution.tree.Node;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Cache of transition probability matrices for marginal tree edges,
+ * keyed by edge length and rate category.  Edges created by conversions
+ * typically appear in the marginal trees of many regions, so each
+ * distinct edge length only needs its matrices computed once for as
+ * long as the substitution parameters are unchanged.
+ *
+ * Matrices missing from the cache are computed together in a single
+ * batch.  For substitution models relying on the default eigen system
+ * based implementation of getTransitionProbabilities(), the batch is
+ * evaluated directly from the eigen decomposition, giving results
+ * identical to those of the substitution model itself.
+ *
+ * Cache contents are double-buffered: an invalidation following a
+ * store() starts a fresh map, leaving the stored one for restore().
+ * The cache assumes a strict clock, so that edge lengths determine the
+ * matrices completely.  No Node is therefore passed to the site,
+ * branch rate or substitution models, allowing edges of flat marginal
+ * trees to be handled without constructing Node objects.
+ *
+ * Caches are thread-safe.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class TransitionMatrixCache {
+
+    /**
+     * Number of edge lengths beyond which a fresh map is started.
+     */
+    public static final int MAX_ENTRIES = 1 << 16;
+
+    private final SiteModel.Base siteModel;
+    private final BranchRateModel.Base branchRateModel;
+    private final SubstitutionModel substitutionModel;
+    private final int nStates;
+    private final boolean useEigenSystem;
+
+    /**
+     * Matrices keyed by edge length bits, indexed by rate category.
+     */
+    private Map<Long, double[][]> matrices, storedMatrices;
+
+    private long hitCount, missCount, batchCount;
+
+    /**
+     * Scratch memory for batched computations.
+     */
+    private double[] batchLengths = new double[0];
+    private long[] batchKeys = new long[0];
+
+    /**
+     * Construct a new cache.
+     *
+     * @param siteModel site model used to compute transition probabilities
+     * @param branchRateModel (strict) branch rate model
+     */
+    public TransitionMatrixCache(SiteModel.Base siteModel,
+                                 BranchRateModel.Base branchRateModel) {
+        this.siteModel = siteModel;
+        this.branchRateModel = branchRateModel;
+
+        substitutionModel = siteModel.getSubstitutionModel();
+        nStates = substitutionModel.getStateCount();
+        useEigenSystem = usesDefaultEigenSystem(substitutionModel);
+
+        matrices = new HashMap<>();
+        storedMatrices = matrices;
+    }
+
+    /**
+     * @param substitutionModel substitution model
+     * @return true if the model computes transition probabilities using
+     * the implementation provided by GeneralSubstitutionModel
+     */
+    private static boolean usesDefaultEigenSystem(SubstitutionModel substitutionModel) {
+        if (!(substitutionModel instanceof GeneralSubstitutionModel)
+                || substitutionModel.canReturnComplexDiagonalization())
+            return false;
+
+        try {
+            return substitutionModel.getClass().getMethod(
+                    "getTransitionProbabilities",
+                    Node.class, double.class, double.class,
+                    double.class, double[].class)
+                    .getDeclaringClass() == GeneralSubstitutionModel.class;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Obtain transition probability matrices for a set of edges,
+     * computing any not already cached.  The matrices returned must not
+     * be modified.
+     *
+     * @param lengths edge lengths
+     * @param nodeNrs numbers of the nodes below each edge
+     * @param count number of edges to consider
+     * @param result array whose element at each node number is set to
+     *               that node's edge matrices, indexed by rate category
+     */
+    public synchronized void getMatrices(double[] lengths, int[] nodeNrs,
+                                         int count, double[][][] result) {
+        if (batchKeys.length < count) {
+            batchLengths = new double[count];
+            batchKeys = new long[count];
+        }
+
+        int nMisses = 0;
+        for (int i=0; i<count; i++) {
+            double length = lengths[i];
+            long key = Double.doubleToLongBits(length);
+
+            double[][] edgeMatrices = matrices.get(key);
+            if (edgeMatrices != null) {
+                result[nodeNrs[i]] = edgeMatrices;
+                hitCount += 1;
+                continue;
+            }
+
+            // Reserve entry so that repeated lengths are only computed once.
+            edgeMatrices = new double[siteModel.getCategoryCount()][];
+            matrices.put(key, edgeMatrices);
+            result[nodeNrs[i]] = edgeMatrices;
+
+            batchLengths[nMisses] = length;
+            batchKeys[nMisses] = key;
+            nMisses += 1;
+        }
+
+        if (nMisses == 0)
+            return;
+
+        computeMatrices(nMisses);
+
+        missCount += nMisses;
+        batchCount += 1;
+
+        if (matrices.size() > MAX_ENTRIES)
+            startNewMap();
+    }
+
+    /**
+     * Compute the matrices of the edges placed in the batch arrays,
+     * storing them in the entries reserved for them.
+     *
+     * @param nMisses number of edges in batch
+     */
+    private void computeMatrices(int nMisses) {
+        int categoryCount = siteModel.getCategoryCount();
+        int n2 = nStates*nStates;
+
+        // Substitution models aren't guaranteed to be thread-safe.
+        synchronized (substitutionModel) {
+            if (!useEigenSystem) {
+                for (int m=0; m<nMisses; m++) {
+                    double[][] edgeMatrices = matrices.get(batchKeys[m]);
+                    for (int c=0; c<categoryCount; c++) {
+                        double jointBranchRate = siteModel.getRateForCategory(c, null)
+                                * branchRateModel.getRateForBranch(null);
+
+                        // Some models write beyond the first nStates^2 elements.
+                        edgeMatrices[c] = new double[(nStates+1)*(nStates+1)];
+                        substitutionModel.getTransitionProbabilities(null,
+                                batchLengths[m], 0.0,
+                                jointBranchRate, edgeMatrices[c]);
+                    }
+                }
+
+                return;
+            }
+
+            EigenDecomposition eigen = substitutionModel.getEigenDecomposition(null);
+            double[] evec = eigen.getEigenVectors();
+            double[] ievc = eigen.getInverseEigenVectors();
+            double[] eval = eigen.getEigenValues();
+
+            // Exponentials of every eigenvalue for every distance in the
+            // batch, evaluated together.
+            int nDistances = nMisses*categoryCount;
+            double[] exps = new double[nDistances*nStates];
+            for (int m=0; m<nMisses; m++) {
+                for (int c=0; c<categoryCount; c++) {
+                    double jointBranchRate = siteModel.getRateForCategory(c, null)
+                            * branchRateModel.getRateForBranch(null);
+                    double distance = batchLengths[m]*jointBranchRate;
+
+                    int offset = (m*categoryCount + c)*nStates;
+                    for (int k=0; k<nStates; k++)
+                        exps[offset + k] = distance*eval[k];
+                }
+            }
+
+            for (int i=0; i<exps.length; i++)
+                exps[i] = Math.exp(exps[i]);
+
+            // Transform back from the eigenbasis, using the same
+            // operation order as GeneralSubstitutionModel.
+            double[] iexp = new double[n2];
+            for (int m=0; m<nMisses; m++) {
+                double[][] edgeMatrices = matrices.get(batchKeys[m]);
+                for (int c=0; c<categoryCount; c++) {
+                    int offset = (m*categoryCount + c)*nStates;
+                    for (int k=0; k<nStates; k++) {
+                        double temp = exps[offset + k];
+                        for (int j=0; j<nStates; j++)
+                            iexp[k*nStates + j] = ievc[k*nStates + j]*temp;
+                    }
+
+                    double[] matrix = new double[n2];
+                    int u = 0;
+                    for (int i=0; i<nStates; i++) {
+                        for (int j=0; j<nStates; j++) {
+                            double temp = 0.0;
+                            for (int k=0; k<nStates; k++)
+                                temp += evec[i*nStates + k]*iexp[k*nStates + j];
+                            matrix[u++] = Math.abs(temp);
+                        }
+                    }
+
+                    edgeMatrices[c] = matrix;
+                }
+            }
+        }
+    }
+
+    /**
+     * Begin a fresh map, retaining the stored one if necessary.
+     */
+    private void startNewMap() {
+        if (matrices == storedMatrices)
+            matrices = new HashMap<>();
+        else
+            matrices.clear();
+    }
+
+    /**
+     * Discard all cached matrices.  Called whenever the site model or
+     * branch rate model changes.
+     */
+    public synchronized void invalidate() {
+        startNewMap();
+    }
+
+    /**
+     * Record the current contents so that they can be reinstated by
+     * restore().
+     */
+    public synchronized void store() {
+        storedMatrices = matrices;
+    }
+
+    /**
+     * Reinstate the contents recorded by store().
+     */
+    public synchronized void restore() {
+        matrices = storedMatrices;
+    }
+
+    /**
+     * @return number of edges whose matrices were found in the cache
+     */
+    public long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * @return number of edges whose matrices had to be computed
+     */
+    public long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * @return number of batches of missing matrices computed
+     */
+    public long getBatchCount() {
+        return batchCount;
+    }
+}
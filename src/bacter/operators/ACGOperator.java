@@ -25,6 +25,9 @@ import beast.core.Operator;
 import beast.evolution.tree.Node;
 import beast.util.Randomizer;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Abstract class of operators which act on the ConversionGraph state.
  * 
@@ -91,15 +94,11 @@ public abstract class ACGOperator extends Operator {
             grandParent.addChild(sister);
         }
 
-        for (Locus locus : acg.getConvertibleLoci()) {
-            for (Conversion conv : acg.getConversions(locus)) {
-                if (conv.getNode1() == parent)
-                    conv.setNode1(sister);
+        for (Conversion conv : new ArrayList<>(acg.getDepartingConversions(parent)))
+            conv.setNode1(sister);
 
-                if (conv.getNode2() == parent)
-                    conv.setNode2(sister);
-            }
-        }
+        for (Conversion conv : new ArrayList<>(acg.getArrivingConversions(parent)))
+            conv.setNode2(sister);
     }
 
     /**
@@ -133,15 +132,42 @@ public abstract class ACGOperator extends Operator {
 
         parent.setHeight(destTime);
 
-        for (Locus locus : acg.getConvertibleLoci()) {
-            for (Conversion conv : acg.getConversions(locus)) {
-                if (conv.getNode1() == destEdgeBase && conv.getHeight1() > destTime)
-                    conv.setNode1(parent);
+        for (Conversion conv : getAttachmentsBetween(
+                acg.getDepartingConversions(destEdgeBase),
+                destTime, Double.POSITIVE_INFINITY, true))
+            conv.setNode1(parent);
+
+        for (Conversion conv : getAttachmentsBetween(
+                acg.getArrivingConversions(destEdgeBase),
+                destTime, Double.POSITIVE_INFINITY, false))
+            conv.setNode2(parent);
+    }
 
-                if (conv.getNode2() == destEdgeBase && conv.getHeight2() > destTime)
-                    conv.setNode2(parent);
-            }
+    /**
+     * Copy the conversions from a height-ordered attachment list whose
+     * attachment heights lie strictly between the given bounds.  The
+     * copy may safely be iterated over while attachments are modified.
+     *
+     * @param attachments departing or arriving conversions of a CF edge
+     * @param lower lower height bound
+     * @param upper upper height bound
+     * @param departures true if attachments are departures
+     * @return new list of conversions
+     */
+    protected List<Conversion> getAttachmentsBetween(List<Conversion> attachments,
+                                                     double lower, double upper,
+                                                     boolean departures) {
+        List<Conversion> result = new ArrayList<>();
+        for (Conversion conv : attachments) {
+            double height = departures ? conv.getHeight1() : conv.getHeight2();
+            if (height >= upper)
+                break;
+
+            if (height > lower)
+                result.add(conv);
         }
+
+        return result;
     }
 
     /**
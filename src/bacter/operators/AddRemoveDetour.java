@@ -18,7 +18,6 @@
 package bacter.operators;
 
 import bacter.Conversion;
-import bacter.Locus;
 import beast.core.Description;
 import beast.evolution.tree.Node;
 import beast.util.Randomizer;
@@ -113,15 +112,13 @@ public class AddRemoveDetour extends ConversionCreationOperator {
         // Count number of node1s and node2s attached to detour edge
         int node1Count = 0;
         int node2Count = 0;
-        for (Locus locus : acg.getConvertibleLoci()) {
-            for (Conversion thisConv : acg.getConversions(locus)) {
-                if (thisConv.getNode1() == detour && thisConv.getNode2() != detour)
-                    node1Count += 1;
+        for (Conversion thisConv : acg.getDepartingConversions(detour))
+            if (thisConv.getNode2() != detour)
+                node1Count += 1;
 
-                if (thisConv.getNode2() == detour && thisConv.getNode1() != detour)
-                    node2Count += 1;
-            }
-        }
+        for (Conversion thisConv : acg.getArrivingConversions(detour))
+            if (thisConv.getNode1() != detour)
+                node2Count += 1;
 
         // Incorporate probability of reverse move:
         logHGF += Math.log(1.0 / ((acg.getNodeCount() - 1) * node1Count * node2Count));
@@ -146,15 +143,13 @@ public class AddRemoveDetour extends ConversionCreationOperator {
         List<Conversion> convApotentials = new ArrayList<>();
         List<Conversion> convBpotentials = new ArrayList<>();
 
-        for (Locus locus : acg.getConvertibleLoci()) {
-            for (Conversion conv : acg.getConversions(locus)) {
-                if (conv.getNode2() == detour && conv.getNode1() != detour)
-                    convApotentials.add(conv);
+        for (Conversion conv : acg.getArrivingConversions(detour))
+            if (conv.getNode1() != detour)
+                convApotentials.add(conv);
 
-                if (conv.getNode1() == detour && conv.getNode2() != detour)
-                    convBpotentials.add(conv);
-            }
-        }
+        for (Conversion conv : acg.getDepartingConversions(detour))
+            if (conv.getNode2() != detour)
+                convBpotentials.add(conv);
 
         if (convApotentials.isEmpty() || convBpotentials.isEmpty())
             return Double.NEGATIVE_INFINITY;
@@ -168,11 +168,14 @@ public class AddRemoveRedundantConversion extends ACGOperator {
 
         double maxL = acg.getRoot().getHeight()*apertureInput.get();
 
-        for (Locus locus : acg.getConvertibleLoci()) {
-            for (Conversion conv : acg.getConversions(locus)) {
+        // Candidates depart from the edge above cfNode or its children.
+        List<Node> departureNodes = new ArrayList<>(cfNode.getChildren());
+        departureNodes.add(0, cfNode);
 
-                if (((conv.getNode1() == cfNode || conv.getNode1().getParent() == cfNode)
-                        && Math.abs(conv.getHeight1()-cfNode.getHeight()) < maxL)
+        for (Node node : departureNodes) {
+            for (Conversion conv : acg.getDepartingConversions(node)) {
+
+                if (Math.abs(conv.getHeight1()-cfNode.getHeight()) < maxL
                     && (conv.getNode2() == cfParent || conv.getNode2().getParent() == cfParent)
                         && Math.abs(conv.getHeight2()-cfParent.getHeight()) < maxL) {
 
@@ -1,7 +1,6 @@
 package bacter.operators;
 
 import bacter.Conversion;
-import bacter.Locus;
 import beast.core.Input;
 import beast.core.parameter.RealParameter;
 import beast.evolution.tree.Node;
@@ -48,27 +47,25 @@ public abstract class CFOperator extends ConversionCreationOperator {
             double upperBound = Math.min(node.getParent().getHeight(),
                     srcNodeP.getHeight());
 
-            for (Locus locus : acg.getConvertibleLoci()) {
-                for (Conversion conv : acg.getConversions(locus)) {
-                    if (conv.getHeight1() > lowerBound && conv.getHeight1() < upperBound) {
-                        if (conv.getNode1() == srcNode)
-                            conv.setNode1(node);
-
-                        if (conv.getNode1() == node &&
-                                (!reverseRootMove || conv.getHeight1() < volatileHeight))
-                            logP += Math.log(0.5);
-                    }
-
-                    if (conv.getHeight2() > lowerBound && conv.getHeight2() < upperBound) {
-                        if (conv.getNode2() == srcNode)
-                            conv.setNode2(node);
-
-                        if (conv.getNode2() == node
-                                && (!reverseRootMove || conv.getNode1() != node
-                                || conv.getHeight1() < volatileHeight))
-                            logP += Math.log(0.5);
-                    }
-                }
+            for (Conversion conv : getAttachmentsBetween(acg.getDepartingConversions(srcNode),
+                    lowerBound, upperBound, true))
+                conv.setNode1(node);
+
+            for (Conversion conv : getAttachmentsBetween(acg.getArrivingConversions(srcNode),
+                    lowerBound, upperBound, false))
+                conv.setNode2(node);
+
+            for (Conversion conv : getAttachmentsBetween(acg.getDepartingConversions(node),
+                    lowerBound, upperBound, true)) {
+                if (!reverseRootMove || conv.getHeight1() < volatileHeight)
+                    logP += Math.log(0.5);
+            }
+
+            for (Conversion conv : getAttachmentsBetween(acg.getArrivingConversions(node),
+                    lowerBound, upperBound, false)) {
+                if (!reverseRootMove || conv.getNode1() != node
+                        || conv.getHeight1() < volatileHeight)
+                    logP += Math.log(0.5);
             }
 
             node = node.getParent();
@@ -84,13 +81,11 @@ public abstract class CFOperator extends ConversionCreationOperator {
                     *(acg.getTotalConvertibleSequenceLength()
                     + acg.getConvertibleLoci().size()*(deltaInput.get().getValue() - 1.0));
 
+            // Only the edges below the root extend above volatileHeight.
             List<Conversion> toRemove = new ArrayList<>();
-            for (Locus locus : acg.getConvertibleLoci()) {
-                for (Conversion conv : acg.getConversions(locus)) {
-                    if (conv.getHeight1() > volatileHeight)
-                        toRemove.add(conv);
-                }
-            }
+            for (Node child : acg.getRoot().getChildren())
+                toRemove.addAll(getAttachmentsBetween(acg.getDepartingConversions(child),
+                        volatileHeight, Double.POSITIVE_INFINITY, true));
 
             logP += -Nexp + toRemove.size()*Math.log(Nexp);
             // Factorial cancelled due to sum over permutations of
@@ -138,21 +133,18 @@ public abstract class CFOperator extends ConversionCreationOperator {
 
         Node node = srcNode.getParent();
         while (node != null) {
-            for (Locus locus : acg.getConvertibleLoci()) {
-                for (Conversion conv : acg.getConversions(locus)) {
-                    if (conv.getNode1() == node && conv.getHeight1() < destTime) {
-                        if (Randomizer.nextBoolean())
-                            conv.setNode1(srcNode);
-                        logP += Math.log(0.5);
-                    }
-
-                    if (conv.getNode2() == node && conv.getHeight2() < destTime) {
-                        if (Randomizer.nextBoolean())
-                            conv.setNode2(srcNode);
-                        logP += Math.log(0.5);
-                    }
+            for (Conversion conv : getAttachmentsBetween(acg.getDepartingConversions(node),
+                    Double.NEGATIVE_INFINITY, destTime, true)) {
+                if (Randomizer.nextBoolean())
+                    conv.setNode1(srcNode);
+                logP += Math.log(0.5);
+            }
 
-                }
+            for (Conversion conv : getAttachmentsBetween(acg.getArrivingConversions(node),
+                    Double.NEGATIVE_INFINITY, destTime, false)) {
+                if (Randomizer.nextBoolean())
+                    conv.setNode2(srcNode);
+                logP += Math.log(0.5);
             }
 
             node = node.getParent();
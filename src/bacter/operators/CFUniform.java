@@ -17,7 +17,6 @@
 package bacter.operators;
 
 import bacter.Conversion;
-import bacter.Locus;
 import beast.core.Description;
 import beast.core.Input;
 import beast.core.parameter.RealParameter;
@@ -85,18 +84,16 @@ public class CFUniform extends ConversionCreationOperator {
         }
 
         if (newHeight>oldHeight) {
-            for (Locus locus : acg.getConvertibleLoci()) {
-                for (Conversion conv : acg.getConversions(locus)) {
-                    if (conv.getNode1() == node && conv.getHeight1() < newHeight) {
-                        conv.setNode1(Randomizer.nextBoolean() ? leftChild : rightChild);
-                        logHGF -= logHalf;
-                    }
+            for (Conversion conv : getAttachmentsBetween(acg.getDepartingConversions(node),
+                    Double.NEGATIVE_INFINITY, newHeight, true)) {
+                conv.setNode1(Randomizer.nextBoolean() ? leftChild : rightChild);
+                logHGF -= logHalf;
+            }
 
-                    if (conv.getNode2() == node && conv.getHeight2() < newHeight) {
-                        conv.setNode2(Randomizer.nextBoolean() ? leftChild : rightChild);
-                        logHGF -= logHalf;
-                    }
-                }
+            for (Conversion conv : getAttachmentsBetween(acg.getArrivingConversions(node),
+                    Double.NEGATIVE_INFINITY, newHeight, false)) {
+                conv.setNode2(Randomizer.nextBoolean() ? leftChild : rightChild);
+                logHGF -= logHalf;
             }
 
             node.setHeight(newHeight);
@@ -132,27 +129,32 @@ public class CFUniform extends ConversionCreationOperator {
 
             List<Conversion> toRemove = new ArrayList<>();
 
-            for (Locus locus : acg.getConvertibleLoci()) {
-                for (Conversion conv : acg.getConversions(locus)) {
-                    if ((conv.getNode1() == leftChild || conv.getNode1() == rightChild)
-                            && conv.getHeight1() > newHeight) {
-                        if (node.isRoot()) {
-                            toRemove.add(conv);
-                            continue;
-                        } else {
-                            conv.setNode1(node);
-                            logHGF += logHalf;
-                        }
-                    }
-
-                    if ((conv.getNode2() == leftChild || conv.getNode2() == rightChild)
-                            && conv.getHeight2() > newHeight) {
-                        conv.setNode2(node);
+            for (Node child : node.getChildren()) {
+                for (Conversion conv : getAttachmentsBetween(acg.getDepartingConversions(child),
+                        newHeight, Double.POSITIVE_INFINITY, true)) {
+                    if (node.isRoot()) {
+                        toRemove.add(conv);
+                    } else {
+                        conv.setNode1(node);
                         logHGF += logHalf;
                     }
                 }
             }
 
+            for (Node child : node.getChildren()) {
+                for (Conversion conv : getAttachmentsBetween(acg.getArrivingConversions(child),
+                        newHeight, Double.POSITIVE_INFINITY, false)) {
+
+                    // Conversions being removed are left alone.
+                    if (node.isRoot() && conv.getHeight1() > newHeight
+                            && conv.getNode1().getParent() == node)
+                        continue;
+
+                    conv.setNode2(node);
+                    logHGF += logHalf;
+                }
+            }
+
             if (node.isRoot()) {
                 double L = 2.0*(oldHeight-newHeight);
                 double Nexp = L*rhoInput.get().getValue()*
@@ -0,0 +1,329 @@
+/*
+ * Copyright (C) 2015 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bacter.util;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Ordered list of half-open integer ranges [x,y), stored as consecutive
+ * boundaries in a primitive array.  This is the unboxed counterpart of
+ * the range lists manipulated by IntRanges.
+ *
+ * Ranges are appended in order with add(), which does not merge a range
+ * with its neighbour: adjacent ranges may therefore touch, as happens
+ * when they carry different ancestries.  The set operations below write
+ * their results into caller-supplied sets, whose arrays are reused, so
+ * that no allocation is needed once buffers have grown to size.  Result
+ * sets must be distinct from the arguments.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class IntRangeSet {
+
+    private int[] bounds;
+    private int size;
+
+    public IntRangeSet() {
+        this(4);
+    }
+
+    /**
+     * @param capacity initial number of range boundaries (twice the
+     *                 number of ranges) to allocate space for
+     */
+    public IntRangeSet(int capacity) {
+        bounds = new int[Math.max(capacity, 2)];
+    }
+
+    /**
+     * Create a set containing the single range [x,y).
+     *
+     * @param x left boundary
+     * @param y right boundary
+     */
+    public IntRangeSet(int x, int y) {
+        this(2);
+        add(x, y);
+    }
+
+    /**
+     * @return number of ranges in set
+     */
+    public int getRangeCount() {
+        return size/2;
+    }
+
+    /**
+     * @return true if set contains no ranges
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @param i range index
+     * @return left boundary of range i
+     */
+    public int getStart(int i) {
+        return bounds[2*i];
+    }
+
+    /**
+     * @param i range index
+     * @return right boundary of range i
+     */
+    public int getEnd(int i) {
+        return bounds[2*i + 1];
+    }
+
+    /**
+     * @return right boundary of final range
+     */
+    public int getLastEnd() {
+        if (size == 0)
+            throw new IllegalStateException("Programmer error: " +
+                    "requested last end of empty range set.");
+
+        return bounds[size - 1];
+    }
+
+    /**
+     * Move the right boundary of the final range.
+     *
+     * @param y new right boundary
+     */
+    public void setLastEnd(int y) {
+        if (size == 0)
+            throw new IllegalStateException("Programmer error: " +
+                    "attempted to modify empty range set.");
+
+        bounds[size - 1] = y;
+    }
+
+    /**
+     * Remove all ranges, retaining the underlying array.
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * Append the range [x,y).  The range must not begin before the end of
+     * the current final range.
+     *
+     * @param x left boundary
+     * @param y right boundary
+     */
+    public void add(int x, int y) {
+        if (size + 2 > bounds.length)
+            bounds = Arrays.copyOf(bounds, 2*bounds.length);
+
+        bounds[size++] = x;
+        bounds[size++] = y;
+    }
+
+    /**
+     * Append the range [x,y), merging it with the current final range if
+     * the two touch or overlap.
+     *
+     * @param x left boundary
+     * @param y right boundary
+     */
+    private void addMerged(int x, int y) {
+        if (size > 0 && bounds[size - 1] >= x) {
+            if (bounds[size - 1] < y)
+                bounds[size - 1] = y;
+        } else
+            add(x, y);
+    }
+
+    /**
+     * Replace the contents of this set with those of another.
+     *
+     * @param other set to copy
+     */
+    public void set(IntRangeSet other) {
+        if (bounds.length < other.size)
+            bounds = new int[other.bounds.length];
+
+        System.arraycopy(other.bounds, 0, bounds, 0, other.size);
+        size = other.size;
+    }
+
+    /**
+     * @return total number of sites included in the ranges
+     */
+    public int getTotalSites() {
+        int res = 0;
+        for (int i=0; i<size; i+=2)
+            res += bounds[i+1] - bounds[i];
+
+        return res;
+    }
+
+    /**
+     * Compute the union of this set and another.  Touching or overlapping
+     * ranges are merged.
+     *
+     * @param other second argument
+     * @param union set to hold the union
+     */
+    public void union(IntRangeSet other, IntRangeSet union) {
+        union.clear();
+
+        int i1 = 0, i2 = 0;
+        while (i1 < size || i2 < other.size) {
+            if (i2 == other.size || (i1 < size && bounds[i1] < other.bounds[i2])) {
+                union.addMerged(bounds[i1], bounds[i1 + 1]);
+                i1 += 2;
+            } else {
+                union.addMerged(other.bounds[i2], other.bounds[i2 + 1]);
+                i2 += 2;
+            }
+        }
+    }
+
+    /**
+     * Compute the intersection of this set and another.
+     *
+     * @param other second argument
+     * @param intersection set to hold the intersection
+     */
+    public void intersection(IntRangeSet other, IntRangeSet intersection) {
+        intersection.clear();
+
+        int i = 0, j = 0;
+        while (i < size && j < other.size) {
+            int x = Math.max(bounds[i], other.bounds[j]);
+            int y = Math.min(bounds[i + 1], other.bounds[j + 1]);
+
+            if (x < y)
+                intersection.add(x, y);
+
+            if (bounds[i + 1] < other.bounds[j + 1])
+                i += 2;
+            else
+                j += 2;
+        }
+    }
+
+    /**
+     * Partition ranges into those inside and outside of the contiguous
+     * range [x,y).
+     *
+     * @param x left boundary of contiguous range
+     * @param y right boundary of contiguous range
+     * @param inside set to hold inside ranges
+     * @param outside set to hold outside ranges
+     */
+    public void partition(int x, int y, IntRangeSet inside, IntRangeSet outside) {
+        inside.clear();
+        outside.clear();
+
+        for (int i=0; i<size; i+=2) {
+            int start = bounds[i], end = bounds[i + 1];
+
+            if (start < x)
+                outside.add(start, Math.min(end, x));
+
+            int xp = Math.max(start, x), yp = Math.min(end, y);
+            if (xp < yp)
+                inside.add(xp, yp);
+
+            if (end > y)
+                outside.add(Math.max(start, y), end);
+        }
+    }
+
+    /**
+     * Test whether this set and another share any sites.  Costs time
+     * linear in the number of ranges.
+     *
+     * @param other set to compare with
+     * @return true iff no site is included in both sets
+     */
+    public boolean isDisjointFrom(IntRangeSet other) {
+        int i = 0, j = 0;
+        while (i < size && j < other.size) {
+            if (bounds[i] < other.bounds[j + 1] && other.bounds[j] < bounds[i + 1])
+                return false;
+
+            if (bounds[i + 1] < other.bounds[j + 1])
+                i += 2;
+            else
+                j += 2;
+        }
+
+        return true;
+    }
+
+    /**
+     * Read a range set from a string of the form "{ [1,3] [5,10] ... }",
+     * as accepted by IntRanges.fromString().
+     *
+     * @param string string to parse
+     * @return resulting range set
+     */
+    public static IntRangeSet fromString(String string) {
+        List<Integer> ranges = IntRanges.fromString(string);
+
+        IntRangeSet result = new IntRangeSet(ranges.size());
+        for (int i=0; i<ranges.size(); i+=2)
+            result.add(ranges.get(i), ranges.get(i+1));
+
+        return result;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        IntRangeSet that = (IntRangeSet) o;
+
+        if (size != that.size)
+            return false;
+
+        for (int i=0; i<size; i++) {
+            if (bounds[i] != that.bounds[i])
+                return false;
+        }
+
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = 1;
+        for (int i=0; i<size; i++)
+            result = 31*result + bounds[i];
+
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("{");
+
+        for (int i=0; i<size; i+=2)
+            sb.append(" [").append(bounds[i]).append(",").append(bounds[i+1]).append("]");
+
+        return sb.append(" }").toString();
+    }
+}
@@ -18,7 +18,6 @@
 package bacter.util;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 
 /**
@@ -180,7 +179,8 @@ public class IntRanges {
     }
 
     /**
-     * Test whether two range lists are disjoint.
+     * Test whether two range lists are disjoint.  The lists are merged
+     * rather than sorted, so this costs time linear in their length.
      *
      * @param as1 list 1
      * @param as2 list 2
@@ -188,25 +188,18 @@ public class IntRanges {
      */
     public static boolean rangesAreDisjoint(List<Integer> as1, List<Integer> as2) {
 
-        List<Integer> starts = new ArrayList<>();
-        List<Integer> ends = new ArrayList<>();
+        int i=0, j=0;
+        while (i<as1.size() && j<as2.size()) {
+            int x1 = as1.get(i), y1 = as1.get(i+1);
+            int x2 = as2.get(j), y2 = as2.get(j+1);
 
-        for (int i=0; i<as1.size(); i+=2) {
-            starts.add(as1.get(i));
-            ends.add(as1.get(i + 1));
-        }
-
-        for (int i=0; i<as2.size(); i+=2) {
-            starts.add(as2.get(i));
-            ends.add(as2.get(i+1));
-        }
-
-        Collections.sort(starts);
-        Collections.sort(ends);
-
-        for (int i=0; i<starts.size()-1; i++) {
-            if (starts.get(i+1)<ends.get(i))
+            if (x1<y2 && x2<y1)
                 return false;
+
+            if (y1<y2)
+                i += 2;
+            else
+                j += 2;
         }
 
         return true;
@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2015 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bacter.util;
+
+import java.util.*;
+import java.util.function.ToIntFunction;
+
+/**
+ * Map from keys carrying small non-negative integer indices (such as
+ * region IDs) to values, backed by arrays indexed by those indices.
+ * Lookups therefore involve neither hashing nor equality tests: a key
+ * is present only if the very same object occupies its slot.  Distinct
+ * keys may share an index provided they are never present together.
+ *
+ * The previous contents of each slot modified since the last call to
+ * store() are recorded in a journal, so that store() and restore() cost
+ * time proportional to the number of modifications rather than to the
+ * size of the map.  Null values are not permitted.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class JournaledArrayMap<K, V> {
+
+    private final ToIntFunction<K> indexer;
+
+    private Object[] keys = new Object[16];
+    private Object[] values = new Object[16];
+    private int size;
+
+    /**
+     * Slots modified since last store() together with their previous
+     * keys and values.  A null key indicates that the slot was empty.
+     */
+    private final List<K> journalKeys = new ArrayList<>();
+    private final List<V> journalValues = new ArrayList<>();
+    private int[] journalSlots = new int[16];
+
+    /**
+     * Retention marks used by retainAll().
+     */
+    private long[] marks = new long[16];
+    private long mark;
+
+    /**
+     * @param indexer function mapping keys onto array indices
+     */
+    public JournaledArrayMap(ToIntFunction<K> indexer) {
+        this.indexer = indexer;
+    }
+
+    /**
+     * @param key key
+     * @return slot index of key
+     */
+    private int slot(K key) {
+        int i = indexer.applyAsInt(key);
+        if (i < 0)
+            throw new IllegalArgumentException("Key " + key
+                    + " has negative index.");
+
+        return i;
+    }
+
+    /**
+     * @param key key
+     * @return value associated with key, or null if key is absent
+     */
+    @SuppressWarnings("unchecked")
+    public V get(K key) {
+        int i = slot(key);
+        if (i >= keys.length || keys[i] != key)
+            return null;
+
+        return (V)values[i];
+    }
+
+    /**
+     * @param key key
+     * @return true if map contains key
+     */
+    public boolean containsKey(K key) {
+        int i = slot(key);
+        return i < keys.length && keys[i] == key;
+    }
+
+    /**
+     * Associate value with key, replacing any other key sharing its
+     * index.
+     *
+     * @param key key
+     * @param value non-null value
+     */
+    public void put(K key, V value) {
+        if (value == null)
+            throw new IllegalArgumentException("JournaledArrayMap does not " +
+                    "support null values.");
+
+        int i = slot(key);
+        if (i >= keys.length)
+            grow(i + 1);
+
+        journal(i);
+        if (keys[i] == null)
+            size += 1;
+        keys[i] = key;
+        values[i] = value;
+    }
+
+    /**
+     * Remove key from map.
+     *
+     * @param key key
+     * @return previous value associated with key, or null if absent
+     */
+    public V remove(K key) {
+        V oldValue = get(key);
+        if (oldValue != null)
+            removeSlot(slot(key));
+
+        return oldValue;
+    }
+
+    /**
+     * Remove all keys not contained in the given collection.  This costs
+     * time proportional to the size of the collection plus the largest
+     * index in use, but involves no hashing.
+     *
+     * @param retainedKeys keys to retain
+     */
+    public void retainAll(Collection<K> retainedKeys) {
+        mark += 1;
+        for (K key : retainedKeys)
+            if (containsKey(key))
+                marks[slot(key)] = mark;
+
+        for (int i=0; i<keys.length; i++)
+            if (keys[i] != null && marks[i] != mark)
+                removeSlot(i);
+    }
+
+    /**
+     * Remove all keys.
+     */
+    public void clear() {
+        for (int i=0; i<keys.length; i++)
+            if (keys[i] != null)
+                removeSlot(i);
+    }
+
+    /**
+     * @return true if map is empty
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return number of keys in map
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return new list containing current keys in index order
+     */
+    @SuppressWarnings("unchecked")
+    public List<K> keyList() {
+        List<K> keyList = new ArrayList<>(size);
+        for (Object key : keys)
+            if (key != null)
+                keyList.add((K)key);
+
+        return keyList;
+    }
+
+    /**
+     * Assemble the keys as they were at the last call to store().  This
+     * costs time proportional to the largest index in use.
+     *
+     * @return new list containing stored keys
+     */
+    @SuppressWarnings("unchecked")
+    public List<K> getStoredKeyList() {
+        Object[] storedKeys = Arrays.copyOf(keys, keys.length);
+        for (int j=journalKeys.size()-1; j>=0; j--)
+            storedKeys[journalSlots[j]] = journalKeys.get(j);
+
+        List<K> keyList = new ArrayList<>();
+        for (Object key : storedKeys)
+            if (key != null)
+                keyList.add((K)key);
+
+        return keyList;
+    }
+
+    /**
+     * Commit all modifications made since the last call to store().
+     */
+    public void store() {
+        journalKeys.clear();
+        journalValues.clear();
+    }
+
+    /**
+     * Undo all modifications made since the last call to store().
+     */
+    public void restore() {
+        for (int j=journalKeys.size()-1; j>=0; j--) {
+            int i = journalSlots[j];
+            K key = journalKeys.get(j);
+
+            if (keys[i] == null && key != null)
+                size += 1;
+            else if (keys[i] != null && key == null)
+                size -= 1;
+
+            keys[i] = key;
+            values[i] = journalValues.get(j);
+        }
+
+        store();
+    }
+
+    private void removeSlot(int i) {
+        journal(i);
+        keys[i] = null;
+        values[i] = null;
+        size -= 1;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void journal(int i) {
+        int j = journalKeys.size();
+        if (j >= journalSlots.length)
+            journalSlots = Arrays.copyOf(journalSlots, 2*j);
+
+        journalSlots[j] = i;
+        journalKeys.add((K)keys[i]);
+        journalValues.add((V)values[i]);
+    }
+
+    private void grow(int minLength) {
+        int length = Math.max(minLength, 2*keys.length);
+        keys = Arrays.copyOf(keys, length);
+        values = Arrays.copyOf(values, length);
+        marks = Arrays.copyOf(marks, length);
+    }
+}
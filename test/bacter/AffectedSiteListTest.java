@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2015 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bacter;
+
+import bacter.model.SimulatedACG;
+import beast.core.State;
+import beast.core.parameter.RealParameter;
+import beast.evolution.tree.Node;
+import beast.evolution.tree.coalescent.ConstantPopulation;
+import beast.util.Randomizer;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for incremental maintenance of the affected site list.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class AffectedSiteListTest extends TestBase {
+
+    /**
+     * @param acg conversion graph
+     * @return true if the shared affected site list matches one computed
+     * from scratch
+     */
+    private boolean matchesFreshList(ConversionGraph acg) {
+        AffectedSiteList asList = acg.getAffectedSiteList();
+        AffectedSiteList freshList = new AffectedSiteList(acg);
+
+        if (asList.affectedSites.size() != freshList.affectedSites.size())
+            return false;
+
+        for (Conversion conv : freshList.affectedSites.keySet()) {
+            if (!asList.affectedSites.containsKey(conv)
+                    || !asList.affectedSites.get(conv).equals(
+                    freshList.affectedSites.get(conv)))
+                return false;
+        }
+
+        return true;
+    }
+
+    @Test
+    public void testIncrementalUpdate() throws Exception {
+        Randomizer.setSeed(53);
+
+        ConstantPopulation popFunc = new ConstantPopulation();
+        popFunc.initByName("popSize", new RealParameter("1.0"));
+
+        Locus locus = new Locus("locus", 10000);
+
+        ConversionGraph acg = new SimulatedACG();
+        acg.initByName(
+                "rho", 20.0/locus.getSiteCount(),
+                "delta", 500.0,
+                "populationModel", popFunc,
+                "locus", locus,
+                "taxonset", getTaxonSet(10));
+
+        State state = new State();
+        state.initByName("stateNode", acg);
+        state.initialise();
+
+        for (int step=0; step<50; step++) {
+            long buildCount = acg.getAffectedSiteList().getEventListBuildCount();
+            state.store(step);
+
+            List<Conversion> convs = acg.getConversions(locus);
+            if (convs.isEmpty())
+                break;
+
+            Conversion conv = convs.get(Randomizer.nextInt(convs.size()));
+            switch (Randomizer.nextInt(3)) {
+                case 0:
+                    // Move departure point along its current edge
+                    Node node1 = conv.getNode1();
+                    double upper = conv.getHeight2();
+                    if (!node1.isRoot())
+                        upper = Math.min(upper, node1.getParent().getHeight());
+                    conv.setHeight1(node1.getHeight()
+                            + Randomizer.nextDouble()*(upper - node1.getHeight()));
+                    break;
+                case 1:
+                    conv.setEndSite(conv.getStartSite()
+                            + Randomizer.nextInt(locus.getSiteCount() - conv.getStartSite()));
+                    break;
+                default:
+                    acg.deleteConversion(conv);
+            }
+
+            assertTrue(matchesFreshList(acg));
+
+            // Conversion edits are spliced into the existing event list.
+            assertTrue(acg.getAffectedSiteList().getEventListBuildCount() == buildCount);
+
+            if (step % 2 == 0) {
+                state.restore();
+                assertTrue(matchesFreshList(acg));
+            }
+        }
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2015 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bacter;
+
+import bacter.model.SimulatedACG;
+import beast.core.State;
+import beast.core.parameter.RealParameter;
+import beast.evolution.alignment.TaxonSet;
+import beast.evolution.tree.Node;
+import beast.evolution.tree.coalescent.ConstantPopulation;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for journaled store/restore of conversions.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class ConversionGraphTest extends TestBase {
+
+    @Test
+    public void testStoreRestore() throws Exception {
+        ConstantPopulation popFunc = new ConstantPopulation();
+        popFunc.initByName("popSize", new RealParameter("1.0"));
+
+        Locus locus = new Locus("locus", 10000);
+        TaxonSet taxonSet = getTaxonSet(10);
+
+        ConversionGraph acg = new SimulatedACG();
+        acg.initByName(
+                "rho", 5.0/locus.getSiteCount(),
+                "delta", 1000.0,
+                "populationModel", popFunc,
+                "locus", locus,
+                "taxonset", taxonSet);
+
+        State state = new State();
+        state.initByName("stateNode", acg);
+        state.initialise();
+        state.store(0);
+
+        String origNewick = acg.getExtendedNewick();
+        List<Conversion> origConvs = new ArrayList<>(acg.getConversions(locus));
+
+        // Edit, delete and add conversions
+        if (origConvs.size() > 0) {
+            Conversion conv = origConvs.get(0);
+            conv.setStartSite(conv.getStartSite()+1);
+            conv.setEndSite(conv.getEndSite()+2);
+        }
+
+        if (origConvs.size() > 1)
+            acg.deleteConversion(origConvs.get(1));
+
+        Node node1 = acg.getExternalNodes().get(0);
+        Node node2 = node1.getParent();
+        Conversion newConv = new Conversion(
+                node1, 0.5*(node1.getHeight() + node1.getParent().getHeight()),
+                node2, 0.5*(node2.getHeight() + node2.getParent().getHeight()),
+                500, 600, acg, locus);
+        acg.addConversion(newConv);
+        newConv.setEndSite(700);
+
+        assertTrue(!acg.getExtendedNewick().equals(origNewick));
+
+        state.restore();
+
+        assertTrue(acg.getExtendedNewick().equals(origNewick));
+
+        List<Conversion> restoredConvs = acg.getConversions(locus);
+        assertTrue(restoredConvs.size() == origConvs.size());
+        for (int i=0; i<origConvs.size(); i++)
+            assertTrue(restoredConvs.get(i) == origConvs.get(i));
+    }
+
+    @Test
+    public void testRegionIDs() throws Exception {
+        ConstantPopulation popFunc = new ConstantPopulation();
+        popFunc.initByName("popSize", new RealParameter("1.0"));
+
+        Locus locus = new Locus("locus", 10000);
+        TaxonSet taxonSet = getTaxonSet(10);
+
+        ConversionGraph acg = new SimulatedACG();
+        acg.initByName(
+                "rho", 10.0/locus.getSiteCount(),
+                "delta", 1000.0,
+                "populationModel", popFunc,
+                "locus", locus,
+                "taxonset", taxonSet);
+
+        State state = new State();
+        state.initByName("stateNode", acg);
+        state.initialise();
+
+        List<Region> origRegions = new ArrayList<>(acg.getRegions(locus));
+        state.store(0);
+
+        // Extend the conversion ending furthest along the locus
+        List<Conversion> convs = acg.getConversions(locus);
+        Conversion lastConv = null;
+        for (Conversion conv : convs)
+            if (lastConv == null || conv.getEndSite() > lastConv.getEndSite())
+                lastConv = conv;
+
+        if (lastConv != null && lastConv.getEndSite() < locus.getSiteCount()-1)
+            lastConv.setEndSite(lastConv.getEndSite()+1);
+
+        // Regions equal to those present before the edit must be the
+        // same objects, carrying the same IDs.
+        List<Region> regions = acg.getRegions(locus);
+        BitSet ids = new BitSet();
+        for (Region region : regions) {
+            assertTrue(region.getID() >= 0
+                    && region.getID() < acg.getRegionList(locus).getIDBound());
+            assertTrue(!ids.get(region.getID()));
+            ids.set(region.getID());
+
+            int idx = origRegions.indexOf(region);
+            if (idx >= 0)
+                assertTrue(origRegions.get(idx) == region);
+        }
+
+        state.restore();
+
+        regions = acg.getRegions(locus);
+        assertTrue(regions.size() == origRegions.size());
+        for (int i=0; i<regions.size(); i++)
+            assertTrue(regions.get(i) == origRegions.get(i));
+    }
+
+    /**
+     * Check attachment index against the conversion list.
+     *
+     * @param acg conversion graph
+     * @param locus locus
+     */
+    private void checkAttachmentIndex(ConversionGraph acg, Locus locus) {
+        int total = 0;
+        for (Node node : acg.getNodesAsArray()) {
+            List<Conversion> departures = acg.getDepartingConversions(node);
+            List<Conversion> arrivals = acg.getArrivingConversions(node);
+
+            for (int i=0; i<departures.size(); i++) {
+                assertTrue(departures.get(i).getNode1().getNr() == node.getNr());
+                if (i > 0)
+                    assertTrue(departures.get(i-1).getHeight1() <= departures.get(i).getHeight1());
+            }
+
+            for (int i=0; i<arrivals.size(); i++) {
+                assertTrue(arrivals.get(i).getNode2().getNr() == node.getNr());
+                if (i > 0)
+                    assertTrue(arrivals.get(i-1).getHeight2() <= arrivals.get(i).getHeight2());
+            }
+
+            total += departures.size();
+        }
+
+        assertTrue(total == acg.getConvCount(locus));
+        for (Conversion conv : acg.getConversions(locus)) {
+            assertTrue(acg.getDepartingConversions(conv.getNode1()).contains(conv));
+            assertTrue(acg.getArrivingConversions(conv.getNode2()).contains(conv));
+        }
+    }
+
+    @Test
+    public void testAttachmentIndex() throws Exception {
+        ConstantPopulation popFunc = new ConstantPopulation();
+        popFunc.initByName("popSize", new RealParameter("1.0"));
+
+        Locus locus = new Locus("locus", 10000);
+        TaxonSet taxonSet = getTaxonSet(10);
+
+        ConversionGraph acg = new SimulatedACG();
+        acg.initByName(
+                "rho", 10.0/locus.getSiteCount(),
+                "delta", 1000.0,
+                "populationModel", popFunc,
+                "locus", locus,
+                "taxonset", taxonSet);
+
+        State state = new State();
+        state.initByName("stateNode", acg);
+        state.initialise();
+        state.store(0);
+
+        checkAttachmentIndex(acg, locus);
+
+        // Move, delete and add conversions
+        List<Conversion> origConvs = new ArrayList<>(acg.getConversions(locus));
+        Node leaf = acg.getExternalNodes().get(0);
+        double leafHeight = 0.5*(leaf.getHeight() + leaf.getParent().getHeight());
+
+        if (origConvs.size() > 0) {
+            Conversion conv = origConvs.get(0);
+            conv.setNode1(leaf);
+            conv.setHeight1(leafHeight);
+            conv.setNode2(acg.getRoot());
+            conv.setHeight2(acg.getRoot().getHeight() + 1.0);
+        }
+
+        if (origConvs.size() > 1)
+            acg.deleteConversion(origConvs.get(1));
+
+        Conversion newConv = new Conversion(
+                leaf, leafHeight, leaf, leafHeight,
+                500, 600, acg, locus);
+        acg.addConversion(newConv);
+
+        checkAttachmentIndex(acg, locus);
+        assertTrue(acg.getDepartingConversions(leaf).contains(newConv));
+
+        state.restore();
+
+        checkAttachmentIndex(acg, locus);
+        assertTrue(!acg.getDepartingConversions(leaf).contains(newConv));
+    }
+}
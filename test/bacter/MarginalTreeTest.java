@@ -17,9 +17,16 @@
 
 package bacter;
 
+import bacter.model.SimulatedACG;
+import beast.core.parameter.RealParameter;
+import beast.evolution.tree.Node;
+import beast.evolution.tree.coalescent.ConstantPopulation;
+import beast.util.Randomizer;
 import beast.util.TreeParser;
 import org.junit.Test;
 
+import java.util.List;
+
 import static org.junit.Assert.assertTrue;
 
 /**
@@ -72,6 +79,7 @@ public class MarginalTreeTest extends TestBase {
             "(((0:0.04916909893812016,1:0.04916909893812016)10:0.5465237639426681,(((((3:0.07561592852503529,6:0.07561592852503529)11:0.1461919778724432,8:0.2218079063974785)13:0.010206467073885506,9:0.232014373471364)14:0.11654268918790511,(5:0.1074670293493194,7:0.1074670293493194)12:0.24109003330994971)15:0.028754070027424694,4:0.3773111326866938)16:0.21838173019409446)17:1.1073878800617445,2:1.7030807429425328)18:0.0"
         };
 
+        MarginalTreeBuilder builder = new MarginalTreeBuilder(acg);
         for (int r=0; r<acg.getRegionCount(locus); r++) {
             MarginalTree marginalTree = new MarginalTree(acg,
                 acg.getRegions(locus).get(r));
@@ -81,6 +89,10 @@ public class MarginalTreeTest extends TestBase {
             assertTrue(treesEquivalent(marginalTree.getRoot(),
                     new TreeParser(correctNewickStrings[r],
                             false, true, false, 0).getRoot(), 1e-15));
+
+            assertTrue(treesEquivalent(builder.getMarginalTree(acg.getRegions(locus).get(r)).getRootNode(),
+                    new TreeParser(correctNewickStrings[r],
+                            false, true, false, 0).getRoot(), 1e-15));
         }
     }
 
@@ -123,6 +135,7 @@ public class MarginalTreeTest extends TestBase {
             "(((0:0.04916909893812016,1:0.04916909893812016)10:0.5465237639426681,(((((3:0.07561592852503529,6:0.07561592852503529)11:0.1461919778724432,8:0.2218079063974785)13:0.010206467073885506,9:0.232014373471364)14:0.11654268918790511,(5:0.1074670293493194,7:0.1074670293493194)12:0.24109003330994971)15:0.028754070027424694,4:0.3773111326866938)16:0.21838173019409446)17:1.1073878800617445,2:1.7030807429425328)18:0.0;"
         };
 
+        MarginalTreeBuilder builder = new MarginalTreeBuilder(acg);
         for (int r=0; r<acg.getRegionCount(locus); r++) {
             MarginalTree marginalTree = new MarginalTree(acg,
                 acg.getRegions(locus).get(r));
@@ -132,6 +145,78 @@ public class MarginalTreeTest extends TestBase {
             assertTrue(treesEquivalent(marginalTree.getRoot(),
                 new TreeParser(correctNewickStrings[r],
                     false, true, false, 0).getRoot(), 1e-15));
+
+            assertTrue(treesEquivalent(builder.getMarginalTree(acg.getRegions(locus).get(r)).getRootNode(),
+                new TreeParser(correctNewickStrings[r],
+                    false, true, false, 0).getRoot(), 1e-15));
+        }
+
+        // Flat trees list children before their parents
+        for (int r=0; r<acg.getRegionCount(locus); r++) {
+            FlatMarginalTree tree = builder.getMarginalTree(acg.getRegions(locus).get(r));
+            assertTrue(tree.getNodeCount() == 2*acg.getLeafNodeCount()-1);
+            assertTrue(tree.postOrder[tree.getNodeCount()-1] == tree.getRoot());
+
+            boolean[] visited = new boolean[acg.getNodeCount()];
+            for (int i=0; i<tree.getNodeCount(); i++) {
+                int nr = tree.postOrder[i];
+                if (!tree.isLeaf(nr))
+                    assertTrue(visited[tree.left[nr]] && visited[tree.right[nr]]);
+                visited[nr] = true;
+            }
+        }
+
+        // Visiting regions out of order requires several edits per tree
+        for (int r=acg.getRegionCount(locus)-1; r>=0; r-=2) {
+            assertTrue(treesEquivalent(builder.getMarginalTree(acg.getRegions(locus).get(r)).getRootNode(),
+                new TreeParser(correctNewickStrings[r],
+                    false, true, false, 0).getRoot(), 1e-15));
+        }
+    }
+
+    @Test
+    public void testIncrementalEdits() throws Exception {
+        Randomizer.setSeed(13);
+
+        ConstantPopulation popFunc = new ConstantPopulation();
+        popFunc.initByName("popSize", new RealParameter("1.0"));
+
+        Locus locus = new Locus("locus", 10000);
+
+        ConversionGraph acg = new SimulatedACG();
+        acg.initByName(
+                "rho", 10.0/locus.getSiteCount(),
+                "delta", 1000.0,
+                "populationModel", popFunc,
+                "locus", locus,
+                "taxonset", getTaxonSet(10));
+
+        MarginalTreeBuilder builder = new MarginalTreeBuilder(acg);
+        for (int step=0; step<5; step++) {
+            List<Region> regions = acg.getRegions(locus);
+
+            // Visit regions from left to right, then in random order
+            for (int i=0; i<2*regions.size(); i++) {
+                Region region = i < regions.size()
+                        ? regions.get(i)
+                        : regions.get(Randomizer.nextInt(regions.size()));
+
+                assertTrue(treesEquivalent(builder.getMarginalTree(region).getRootNode(),
+                        new MarginalTree(acg, region).getRoot(), 1e-15));
+            }
+
+            // Editing a conversion must invalidate the builder's state
+            List<Conversion> convs = acg.getConversions(locus);
+            if (convs.isEmpty())
+                continue;
+
+            Conversion conv = convs.get(Randomizer.nextInt(convs.size()));
+            Node node2 = conv.getNode2();
+            double lower = Math.max(conv.getHeight1(), node2.getHeight());
+            double upper = node2.isRoot()
+                    ? lower + 1.0
+                    : node2.getParent().getHeight();
+            conv.setHeight2(lower + Randomizer.nextDouble()*(upper - lower));
         }
     }
 }
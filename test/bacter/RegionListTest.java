@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2015 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bacter;
+
+import bacter.model.SimulatedACG;
+import beast.core.State;
+import beast.core.parameter.RealParameter;
+import beast.evolution.alignment.TaxonSet;
+import beast.evolution.tree.coalescent.ConstantPopulation;
+import beast.util.Randomizer;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for incremental region list maintenance.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class RegionListTest extends TestBase {
+
+    @Test
+    public void testIncrementalUpdate() throws Exception {
+        Randomizer.setSeed(42);
+
+        ConstantPopulation popFunc = new ConstantPopulation();
+        popFunc.initByName("popSize", new RealParameter("1.0"));
+
+        Locus locus1 = new Locus("locus1", 10000);
+        Locus locus2 = new Locus("locus2", 5000);
+        List<Locus> loci = new ArrayList<>();
+        loci.add(locus1);
+        loci.add(locus2);
+
+        ConversionGraph acg = new SimulatedACG();
+        acg.initByName(
+                "rho", 20.0/locus1.getSiteCount(),
+                "delta", 500.0,
+                "populationModel", popFunc,
+                "locus", loci,
+                "taxonset", getTaxonSet(10));
+
+        State state = new State();
+        state.initByName("stateNode", acg);
+        state.initialise();
+
+        for (int step=0; step<50; step++) {
+            acg.getRegions(locus1);
+            acg.getRegions(locus2);
+            state.store(step);
+
+            List<Conversion> convs = acg.getConversions(locus1);
+            if (convs.isEmpty())
+                break;
+
+            Conversion conv = convs.get(Randomizer.nextInt(convs.size()));
+            switch (Randomizer.nextInt(3)) {
+                case 0:
+                    conv.setStartSite(Randomizer.nextInt(conv.getEndSite() + 1));
+                    break;
+                case 1:
+                    conv.setEndSite(conv.getStartSite()
+                            + Randomizer.nextInt(locus1.getSiteCount() - conv.getStartSite()));
+                    break;
+                default:
+                    acg.deleteConversion(conv);
+                    conv.setStartSite(Randomizer.nextInt(locus1.getSiteCount()));
+                    conv.setEndSite(conv.getStartSite()
+                            + Randomizer.nextInt(locus1.getSiteCount() - conv.getStartSite()));
+                    acg.addConversion(conv);
+            }
+
+            // Edits to locus 1 leave the region list of locus 2 clean
+            assertTrue(!acg.getRegionList(locus2).isDirty());
+
+            // Incrementally-updated list must match a complete rebuild
+            List<Region> regions = acg.getRegions(locus1);
+            List<Region> expected = new RegionList(acg, locus1).getRegions();
+            assertTrue(regions.equals(expected));
+
+            if (step % 2 == 0) {
+                state.restore();
+                assertTrue(acg.getRegions(locus1).equals(
+                        new RegionList(acg, locus1).getRegions()));
+            }
+        }
+    }
+}
@@ -89,4 +89,28 @@ public class SiteAncestryTest {
                 "[120,150]{0,1} [150,250]{1} [250,300]{1,2} [300,400]{2}")));
         assertTrue(coalescence.equals(new Coalescence("[120,150]{0}{1} [250,300]{1}{2}")));
     }
+
+    @Test
+    public void testMergeInterned() {
+        LeafSetPool pool = new LeafSetPool();
+
+        SiteAncestry a = new SiteAncestry();
+        a.addInterval(0, 100, pool.getLeaf(0));
+        SiteAncestry b = new SiteAncestry();
+        b.addInterval(50, 150, pool.getLeaf(1));
+
+        SiteAncestry union = new SiteAncestry();
+        Coalescence coalescence = new Coalescence();
+        a.merge(b, coalescence, union, pool);
+
+        assertTrue(union.equals(new SiteAncestry("[0,50]{0} [50,100]{0,1} [100,150]{1}")));
+        assertTrue(coalescence.equals(new Coalescence("[50,100]{0}{1}")));
+        assertTrue(union.getDescendantLeaves(1)
+                == pool.getUnion(pool.getLeaf(0), pool.getLeaf(1)));
+
+        // Reused objects are cleared by merge()
+        b.merge(a, coalescence, union, pool);
+        assertTrue(union.equals(new SiteAncestry("[0,50]{0} [50,100]{0,1} [100,150]{1}")));
+        assertTrue(coalescence.getIntervalCount() == 1);
+    }
 }
@@ -22,14 +22,23 @@ import bacter.Locus;
 import bacter.TestBase;
 import beast.core.State;
 import beast.core.parameter.RealParameter;
+import beast.evolution.alignment.Alignment;
+import beast.evolution.alignment.Sequence;
 import beast.evolution.alignment.TaxonSet;
 import beast.evolution.sitemodel.SiteModel;
 import beast.evolution.substitutionmodel.JukesCantor;
 import beast.evolution.tree.Node;
 import beast.evolution.tree.coalescent.ConstantPopulation;
 import beast.util.ClusterTree;
+import beast.util.Randomizer;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 /**
@@ -454,4 +463,854 @@ public class ACGLikelihoodTest extends TestBase {
         }
     }
 
+    @Test
+    public void testJavaBeagleLikelihood() throws Exception {
+
+        Locus locus = new Locus("locus", getAlignment());
+
+        // ConversionGraph
+        ConversionGraph acg = new ConversionGraph();
+        ClusterTree tree = new ClusterTree();
+        tree.initByName(
+                "clusterType", "upgma",
+                "taxa", locus.getAlignment());
+
+        acg.assignFrom(tree);
+        acg.initByName("locus", locus);
+
+        // Site model:
+        JukesCantor jc = new JukesCantor();
+        jc.initByName();
+        SiteModel siteModel = new SiteModel();
+        siteModel.initByName(
+                "substModel", jc,
+                "gammaCategoryCount", 4,
+                "shape", new RealParameter("0.5"));
+
+        // Likelihood
+
+        ACGLikelihoodBeagle argLikelihood = new ACGLikelihoodBeagle();
+        argLikelihood.initByName(
+                "locus", locus,
+                "tree", acg,
+                "siteModel", siteModel,
+                "useJavaBeagle", true,
+                "threads", 2);
+
+        ACGLikelihood argLikelihoodJava = new ACGLikelihood();
+        argLikelihoodJava.initByName(
+                "locus", locus,
+                "tree", acg,
+                "siteModel", siteModel);
+
+        acg.setEverythingDirty(true);
+
+        double logP = argLikelihood.calculateLogP();
+        double logPtrue = argLikelihoodJava.calculateLogP();
+
+        double relativeDiff = Math.abs(2.0 * (logPtrue - logP) / (logPtrue + logP));
+        assertTrue(relativeDiff < 1e-13);
+
+        // Add a pair of recombination events
+        Node node1 = acg.getExternalNodes().get(0);
+        Node node2 = node1.getParent();
+        double height1 = 0.5 * (node1.getHeight() + node1.getParent().getHeight());
+        double height2 = 0.5 * (node2.getHeight() + node2.getParent().getHeight());
+        acg.addConversion(new Conversion(node1, height1, node2, height2,
+                100, 200, acg, locus));
+
+        node2 = acg.getNode(20);
+        height1 = 0.75 * (node1.getHeight() + node1.getParent().getHeight());
+        height2 = 0.5 * (node2.getHeight() + node2.getParent().getHeight());
+        acg.addConversion(new Conversion(node1, height1, node2, height2,
+                250, 300, acg, locus));
+
+        logP = argLikelihood.calculateLogP();
+        logPtrue = argLikelihoodJava.calculateLogP();
+
+        relativeDiff = Math.abs(2.0 * (logPtrue - logP) / (logPtrue + logP));
+        assertTrue(relativeDiff < 1e-13);
+    }
+
+    @Test
+    public void testThreadedLikelihood() throws Exception {
+        SimulatedData data = simulateData(1);
+
+        ACGLikelihood argLikelihood = new ACGLikelihood();
+        argLikelihood.initByName(
+                "locus", data.locus,
+                "data", data.alignment,
+                "tree", data.acg,
+                "siteModel", data.siteModel);
+
+        ACGLikelihood argLikelihoodThreaded = new ACGLikelihood();
+        argLikelihoodThreaded.initByName(
+                "locus", data.locus,
+                "data", data.alignment,
+                "tree", data.acg,
+                "siteModel", data.siteModel,
+                "threads", 4);
+
+        double logP = argLikelihood.calculateLogP();
+        double logPthreaded = argLikelihoodThreaded.calculateLogP();
+
+        System.out.format("logP=%g\nlogPthreaded=%g\n", logP, logPthreaded);
+        assertTrue(logP == logPthreaded);
+    }
+
+    @Test
+    public void testSharedClonalFrameCache() throws Exception {
+        SimulatedData data = simulateData(2);
+
+        ClonalFrameCache cfCache = new ClonalFrameCache();
+        cfCache.initByName(
+                "acg", data.acg,
+                "siteModel", data.siteModel);
+
+        ACGLikelihood argLikelihood = new ACGLikelihood();
+        argLikelihood.initByName(
+                "locus", data.locus,
+                "data", data.alignment,
+                "tree", data.acg,
+                "siteModel", data.siteModel);
+
+        ACGLikelihood argLikelihoodShared1 = new ACGLikelihood();
+        argLikelihoodShared1.initByName(
+                "locus", data.locus,
+                "data", data.alignment,
+                "tree", data.acg,
+                "siteModel", data.siteModel,
+                "clonalFrameCache", cfCache);
+
+        ACGLikelihood argLikelihoodShared2 = new ACGLikelihood();
+        argLikelihoodShared2.initByName(
+                "locus", data.locus,
+                "data", data.alignment,
+                "tree", data.acg,
+                "siteModel", data.siteModel,
+                "clonalFrameCache", cfCache,
+                "threads", 4);
+
+        double logP = argLikelihood.calculateLogP();
+        double logPshared1 = argLikelihoodShared1.calculateLogP();
+        double logPshared2 = argLikelihoodShared2.calculateLogP();
+
+        System.out.format("logP=%g\nlogPshared1=%g\nlogPshared2=%g\n",
+                logP, logPshared1, logPshared2);
+
+        // Shared likelihoods evaluate clonal frame regions through the
+        // pattern pool, which sums pattern contributions in the same order.
+        assertTrue(Math.abs(logP - logPshared1) < 1e-10);
+        assertTrue(Math.abs(logP - logPshared2) < 1e-10);
+
+        // Both loci share their patterns, so the pool evaluates them once.
+        ClonalFramePatternPool pool = cfCache.getPatternPool();
+        assertTrue(pool.getFullPassCount() == 1);
+        assertTrue(pool.getPartialPassCount() == 0);
+        assertTrue(pool.getPatternEvaluationCount() <= data.alignment.getPatternCount());
+    }
+
+    @Test
+    public void testPatternPoolSharedColumns() throws Exception {
+        Randomizer.setSeed(11);
+
+        ConstantPopulation popFunc = new ConstantPopulation();
+        popFunc.initByName("popSize", new RealParameter("1.0"));
+
+        Locus locus1 = new Locus("locus1", 1000);
+        Locus locus2 = new Locus("locus2", 1000);
+        List<Locus> loci = new ArrayList<>();
+        loci.add(locus1);
+        loci.add(locus2);
+
+        // Without conversions every region is a clonal frame region.
+        ConversionGraph acg = new SimulatedACG();
+        acg.initByName(
+                "rho", 0.0,
+                "delta", 100.0,
+                "populationModel", popFunc,
+                "locus", loci,
+                "taxonset", getTaxonSet(10));
+
+        SiteModel siteModel = getJCSiteModel();
+
+        SimulatedAlignment alignment1 = new SimulatedAlignment();
+        alignment1.initByName(
+                "acg", acg,
+                "siteModel", siteModel,
+                "locus", locus1);
+
+        SimulatedAlignment alignmentOther = new SimulatedAlignment();
+        alignmentOther.initByName(
+                "acg", acg,
+                "siteModel", siteModel,
+                "locus", locus2);
+
+        // Locus 2 repeats the first half of the columns of locus 1.
+        List<String> taxa = alignment1.getTaxaNames();
+        List<Sequence> sequences = new ArrayList<>();
+        for (String taxon : taxa)
+            sequences.add(new Sequence(taxon,
+                    alignment1.getSequenceAsString(taxon).substring(0, 500)
+                            + alignmentOther.getSequenceAsString(taxon).substring(500)));
+        Alignment alignment2 = new Alignment(sequences, "nucleotide");
+
+        Set<String> uniqueColumns = new HashSet<>();
+        for (Alignment alignment : new Alignment[] {alignment1, alignment2}) {
+            String[] seqs = new String[taxa.size()];
+            for (int i=0; i<taxa.size(); i++)
+                seqs[i] = alignment.getSequenceAsString(taxa.get(i));
+
+            for (int site=0; site<seqs[0].length(); site++) {
+                StringBuilder column = new StringBuilder();
+                for (String seq : seqs)
+                    column.append(seq.charAt(site));
+                uniqueColumns.add(column.toString());
+            }
+        }
+
+        ClonalFrameCache cfCache = new ClonalFrameCache();
+        cfCache.initByName(
+                "acg", acg,
+                "siteModel", siteModel);
+
+        Alignment[] alignments = {alignment1, alignment2};
+        Locus[] locusArray = {locus1, locus2};
+        for (int l=0; l<2; l++) {
+            ACGLikelihood argLikelihood = new ACGLikelihood();
+            argLikelihood.initByName(
+                    "locus", locusArray[l],
+                    "data", alignments[l],
+                    "tree", acg,
+                    "siteModel", siteModel);
+
+            ACGLikelihood argLikelihoodPooled = new ACGLikelihood();
+            argLikelihoodPooled.initByName(
+                    "locus", locusArray[l],
+                    "data", alignments[l],
+                    "tree", acg,
+                    "siteModel", siteModel,
+                    "clonalFrameCache", cfCache);
+
+            double logP = argLikelihood.calculateLogP();
+            double logPpooled = argLikelihoodPooled.calculateLogP();
+
+            System.out.format("logP=%g\nlogPpooled=%g\n", logP, logPpooled);
+            assertTrue(Math.abs(logP - logPpooled) < 1e-10);
+        }
+
+        // Columns shared by both loci are evaluated only once: the
+        // second locus only adds the patterns missing from the first.
+        ClonalFramePatternPool pool = cfCache.getPatternPool();
+        assertTrue(pool.getFullPassCount() == 1);
+        assertTrue(pool.getPartialPassCount() == 1);
+        assertTrue(pool.getPatternEvaluationCount() == uniqueColumns.size());
+    }
+
+    /**
+     * JC model that, like some BEAST models, writes to the padding of
+     * (nStates+1)^2 element transition matrices.
+     */
+    public static class PaddedJukesCantor extends JukesCantor {
+        @Override
+        public void getTransitionProbabilities(Node node, double startTime,
+                                               double endTime, double rate,
+                                               double[] matrix) {
+            super.getTransitionProbabilities(node, startTime, endTime, rate, matrix);
+
+            int nStates = getStateCount();
+            for (int i=nStates*nStates; i<(nStates+1)*(nStates+1); i++)
+                matrix[i] = Double.NaN;
+        }
+    }
+
+    @Test
+    public void testPaddedTransitionMatrices() throws Exception {
+        SimulatedData data = simulateData(12);
+
+        PaddedJukesCantor paddedJC = new PaddedJukesCantor();
+        paddedJC.initByName();
+        SiteModel paddedSiteModel = new SiteModel();
+        paddedSiteModel.initByName(
+                "mutationRate", new RealParameter("1"),
+                "substModel", paddedJC);
+
+        ClonalFrameCache cfCache = new ClonalFrameCache();
+        cfCache.initByName(
+                "acg", data.acg,
+                "siteModel", paddedSiteModel);
+
+        ACGLikelihood argLikelihoodPadded = new ACGLikelihood();
+        argLikelihoodPadded.initByName(
+                "locus", data.locus,
+                "data", data.alignment,
+                "tree", data.acg,
+                "siteModel", paddedSiteModel,
+                "clonalFrameCache", cfCache);
+
+        double logP = calculateFreshLogP(data);
+        double logPpadded = argLikelihoodPadded.calculateLogP();
+
+        System.out.format("logP=%g\nlogPpadded=%g\n", logP, logPpadded);
+        assertTrue(Math.abs(logP - logPpadded) < 1e-10);
+    }
+
+    @Test
+    public void testSubtreePartialsCache() throws Exception {
+        SimulatedData data = simulateData(3);
+
+        ACGLikelihood argLikelihood = new ACGLikelihood();
+        argLikelihood.initByName(
+                "locus", data.locus,
+                "data", data.alignment,
+                "tree", data.acg,
+                "siteModel", data.siteModel);
+
+        argLikelihood.calculateLogP();
+
+        // Shift conversion boundaries, creating regions whose marginal
+        // trees are assembled from cached subtrees.
+        for (Conversion conv : data.acg.getConversions(data.locus)) {
+            if (conv.getSiteCount() < 3)
+                continue;
+
+            conv.setEndSite(conv.getEndSite()-1);
+            conv.setStartSite(conv.getStartSite()+1);
+
+            double logP = argLikelihood.calculateLogP();
+            double logPfresh = calculateFreshLogP(data);
+
+            System.out.format("logP=%g\nlogPfresh=%g\n", logP, logPfresh);
+            assertTrue(logP == logPfresh);
+        }
+    }
+
+    @Test
+    public void testRetiredRegionReuse() throws Exception {
+        SimulatedData data = simulateData(9);
+        ConversionGraph acg = data.acg;
+
+        // Conversion moving the first leaf onto the edge of its sibling.
+        Node node1 = acg.getExternalNodes().get(0);
+        Node parent = node1.getParent();
+        Node node2 = parent.getLeft() == node1 ? parent.getRight() : parent.getLeft();
+        double height1 = 0.5*(node1.getHeight() + parent.getHeight());
+        double height2 = 0.5*(Math.max(height1, node2.getHeight()) + parent.getHeight());
+        Conversion conv = new Conversion(node1, height1, node2, height2,
+                1000, 2000, acg, data.locus);
+        acg.addConversion(conv);
+
+        ACGLikelihood argLikelihood = new ACGLikelihood();
+        argLikelihood.initByName(
+                "locus", data.locus,
+                "data", data.alignment,
+                "tree", acg,
+                "siteModel", data.siteModel);
+
+        argLikelihood.calculateLogP();
+        assertTrue(argLikelihood.getRetiredRegionReuseCount() == 0);
+
+        // Regions on either side of each moved boundary keep their marginal
+        // trees, so their likelihoods follow from the regions they replace.
+        conv.setStartSite(conv.getStartSite()+1);
+        conv.setEndSite(conv.getEndSite()-1);
+
+        double logP = argLikelihood.calculateLogP();
+        double logPfresh = calculateFreshLogP(data);
+
+        System.out.format("logP=%g\nlogPfresh=%g\n", logP, logPfresh);
+        assertTrue(argLikelihood.getRetiredRegionReuseCount() > 0);
+        assertEquals(logPfresh, logP, 0.0);
+    }
+
+    @Test
+    public void testSubtreePartialsCacheRecycling() throws Exception {
+        SimulatedData data = simulateData(10);
+        ConversionGraph acg = data.acg;
+
+        State state = new State();
+        state.initByName("stateNode", acg);
+        state.initialise();
+
+        ACGLikelihood argLikelihood = new ACGLikelihood();
+        argLikelihood.initByName(
+                "locus", data.locus,
+                "data", data.alignment,
+                "tree", acg,
+                "siteModel", data.siteModel);
+
+        argLikelihood.calculateLogP();
+
+        // Every move creates new subtrees, so the caches soon fill and
+        // must recycle slots of earlier generations.
+        for (int step=0; step<50; step++) {
+            state.store(step);
+            argLikelihood.store();
+            acg.setEverythingDirty(false);
+
+            if (step % 2 == 0)
+                moveCFNode(acg, data.locus);
+            else
+                moveConversion(acg, data.locus);
+
+            argLikelihood.requiresRecalculation();
+            double logP = argLikelihood.calculateLogP();
+            double logPfresh = calculateFreshLogP(data);
+
+            System.out.format("logP=%g\nlogPfresh=%g\n", logP, logPfresh);
+            assertEquals(logPfresh, logP, 0.0);
+
+            if (step % 3 == 0) {
+                state.restore();
+                argLikelihood.restore();
+
+                logP = argLikelihood.calculateLogP();
+                logPfresh = calculateFreshLogP(data);
+
+                System.out.format("logP=%g\nlogPfresh=%g\n", logP, logPfresh);
+                assertEquals(logPfresh, logP, 0.0);
+            } else {
+                argLikelihood.accept();
+            }
+        }
+
+        long recycledSlotCount = 0;
+        for (SubtreePartialsCache cache : argLikelihood.partialsCaches.values())
+            recycledSlotCount += cache.getRecycledSlotCount();
+        assertTrue(recycledSlotCount > 0);
+    }
+
+    @Test
+    public void testCacheBudget() throws Exception {
+        SimulatedData data = simulateData(4);
+
+        // A budget this small evicts every cache not in current use.
+        ACGLikelihood argLikelihood = new ACGLikelihood();
+        argLikelihood.initByName(
+                "locus", data.locus,
+                "data", data.alignment,
+                "tree", data.acg,
+                "siteModel", data.siteModel,
+                "cacheBudget", 1L);
+
+        argLikelihood.calculateLogP();
+
+        int shiftCount = 0;
+        for (Conversion conv : data.acg.getConversions(data.locus)) {
+            if (conv.getSiteCount() < 3)
+                continue;
+
+            conv.setEndSite(conv.getEndSite()-1);
+            conv.setStartSite(conv.getStartSite()+1);
+            shiftCount += 1;
+
+            double logP = argLikelihood.calculateLogP();
+            double logPfresh = calculateFreshLogP(data);
+
+            System.out.format("logP=%g\nlogPfresh=%g\n", logP, logPfresh);
+            assertTrue(logP == logPfresh);
+        }
+
+        if (shiftCount > 0)
+            assertTrue(argLikelihood.getPartialsCacheEvictionCount() > 0);
+        assertTrue(argLikelihood.getPartialsCacheMissCount()
+                >= data.acg.getRegions(data.locus).size());
+    }
+
+    @Test
+    public void testFloatPartials() throws Exception {
+        JukesCantor jc = new JukesCantor();
+        jc.initByName();
+        SiteModel siteModel = new SiteModel();
+        siteModel.initByName(
+                "mutationRate", new RealParameter("1"),
+                "gammaCategoryCount", 4,
+                "shape", new RealParameter("1.0"),
+                "proportionInvariant", new RealParameter("0.1"),
+                "substModel", jc);
+
+        Locus locus = new Locus("locus", 10000);
+        SimulatedData data = simulateData(5, locus, 10, 1.0,
+                5.0/locus.getSiteCount(), siteModel);
+
+        ACGLikelihood argLikelihood = new ACGLikelihood();
+        argLikelihood.initByName(
+                "locus", data.locus,
+                "data", data.alignment,
+                "tree", data.acg,
+                "siteModel", data.siteModel);
+        double logP = argLikelihood.calculateLogP();
+
+        for (LikelihoodCorePool.CoreType coreType : new LikelihoodCorePool.CoreType[] {
+                LikelihoodCorePool.CoreType.FLOAT,
+                LikelihoodCorePool.CoreType.FLOAT_OFF_HEAP}) {
+
+            ACGLikelihood argLikelihoodFloat = new ACGLikelihood();
+            argLikelihoodFloat.initByName(
+                    "locus", data.locus,
+                    "data", data.alignment,
+                    "tree", data.acg,
+                    "siteModel", data.siteModel,
+                    "partialsStorage", coreType);
+            double logPfloat = argLikelihoodFloat.calculateLogP();
+
+            System.out.format("logP=%g\nlogPfloat=%g\n", logP, logPfloat);
+            double relativeDiff = Math.abs(2.0*(logP-logPfloat)/(logP+logPfloat));
+            assertTrue(relativeDiff < 1e-6);
+        }
+    }
+
+    @Test
+    public void testFloatPartialsScaling() throws Exception {
+        // Partials of a pattern spanning this many long edges underflow
+        // single precision unless rescaled.
+        SimulatedData data = simulateData(6, new Locus("locus", 1000),
+                100, 100.0, 0.0, getJCSiteModel());
+
+        ACGLikelihood argLikelihood = new ACGLikelihood();
+        argLikelihood.initByName(
+                "locus", data.locus,
+                "data", data.alignment,
+                "tree", data.acg,
+                "siteModel", data.siteModel);
+        double logP = argLikelihood.calculateLogP();
+
+        ACGLikelihood argLikelihoodFloat = new ACGLikelihood();
+        argLikelihoodFloat.initByName(
+                "locus", data.locus,
+                "data", data.alignment,
+                "tree", data.acg,
+                "siteModel", data.siteModel,
+                "partialsStorage", LikelihoodCorePool.CoreType.FLOAT);
+        double logPfloat = argLikelihoodFloat.calculateLogP();
+
+        System.out.format("logP=%g\nlogPfloat=%g\n", logP, logPfloat);
+        double relativeDiff = Math.abs(2.0*(logP-logPfloat)/(logP+logPfloat));
+        assertTrue(relativeDiff < 1e-6);
+    }
+
+    @Test
+    public void testAdaptiveScaling() throws Exception {
+        // Site likelihoods on a saturated tree with this many leaves
+        // underflow double precision unless partials are rescaled.
+        SimulatedData data = simulateData(7, new Locus("locus", 100),
+                600, 100.0, 0.0, getJCSiteModel());
+
+        ACGLikelihood argLikelihood = new ACGLikelihood();
+        argLikelihood.initByName(
+                "locus", data.locus,
+                "data", data.alignment,
+                "tree", data.acg,
+                "siteModel", data.siteModel);
+        double logP = argLikelihood.calculateLogP();
+
+        ACGLikelihood argLikelihoodFloat = new ACGLikelihood();
+        argLikelihoodFloat.initByName(
+                "locus", data.locus,
+                "data", data.alignment,
+                "tree", data.acg,
+                "siteModel", data.siteModel,
+                "partialsStorage", LikelihoodCorePool.CoreType.FLOAT);
+        double logPfloat = argLikelihoodFloat.calculateLogP();
+
+        System.out.format("logP=%g\nlogPfloat=%g\n", logP, logPfloat);
+        assertTrue(logP > Double.NEGATIVE_INFINITY);
+
+        // Each site's likelihood is at most that of observing a single
+        // leaf state at every leaf.
+        assertTrue(logP < 0.0);
+
+        double relativeDiff = Math.abs(2.0*(logP-logPfloat)/(logP+logPfloat));
+        assertTrue(relativeDiff < 1e-6);
+    }
+
+    @Test
+    public void testInvariantSitesScaling() throws Exception {
+        // Constant sites on a saturated tree with this many leaves have
+        // variable-site likelihoods far below the smallest double, so the
+        // invariant site contribution must survive rescaling.
+        ConstantPopulation popFunc = new ConstantPopulation();
+        popFunc.initByName("popSize", new RealParameter("100.0"));
+
+        Locus locus = new Locus("locus", 100);
+        TaxonSet taxonSet = getTaxonSet(600);
+
+        ConversionGraph acg = new SimulatedACG();
+        acg.initByName(
+                "rho", 0.0,
+                "delta", 100.0,
+                "populationModel", popFunc,
+                "locus", locus,
+                "taxonset", taxonSet);
+
+        StringBuilder seq = new StringBuilder();
+        for (int i=0; i<locus.getSiteCount(); i++)
+            seq.append("A");
+
+        List<Sequence> sequences = new ArrayList<>();
+        for (String taxon : taxonSet.asStringList())
+            sequences.add(new Sequence(taxon, seq.toString()));
+        Alignment alignment = new Alignment(sequences, "nucleotide");
+
+        double pInv = 0.5;
+        JukesCantor jc = new JukesCantor();
+        jc.initByName();
+        SiteModel siteModel = new SiteModel();
+        siteModel.initByName(
+                "mutationRate", new RealParameter("1"),
+                "proportionInvariant", new RealParameter(String.valueOf(pInv)),
+                "substModel", jc);
+
+        ClonalFrameCache cfCache = new ClonalFrameCache();
+        cfCache.initByName(
+                "acg", acg,
+                "siteModel", siteModel);
+
+        // Every site is explained by the invariant category alone.
+        double logPexpected = locus.getSiteCount()*Math.log(0.25*pInv);
+
+        ACGLikelihood argLikelihood = new ACGLikelihood();
+        argLikelihood.initByName(
+                "locus", locus,
+                "data", alignment,
+                "tree", acg,
+                "siteModel", siteModel);
+
+        ACGLikelihood argLikelihoodFloat = new ACGLikelihood();
+        argLikelihoodFloat.initByName(
+                "locus", locus,
+                "data", alignment,
+                "tree", acg,
+                "siteModel", siteModel,
+                "partialsStorage", LikelihoodCorePool.CoreType.FLOAT);
+
+        // Clonal frame regions of this likelihood are evaluated by the
+        // pattern pool.
+        ACGLikelihood argLikelihoodShared = new ACGLikelihood();
+        argLikelihoodShared.initByName(
+                "locus", locus,
+                "data", alignment,
+                "tree", acg,
+                "siteModel", siteModel,
+                "clonalFrameCache", cfCache);
+
+        for (ACGLikelihood likelihood : new ACGLikelihood[] {
+                argLikelihood, argLikelihoodFloat, argLikelihoodShared}) {
+            double logP = likelihood.calculateLogP();
+
+            System.out.format("logP=%g\nlogPexpected=%g\n", logP, logPexpected);
+            assertTrue(Math.abs(logP - logPexpected) < 1e-10);
+        }
+
+        assertTrue(cfCache.getPatternPool().getFullPassCount() > 0);
+    }
+
+    @Test
+    public void testDirtyRegionDetection() throws Exception {
+        SimulatedData data = simulateData(8);
+        ConversionGraph acg = data.acg;
+
+        State state = new State();
+        state.initByName("stateNode", acg);
+        state.initialise();
+
+        ACGLikelihood argLikelihood = new ACGLikelihood();
+        argLikelihood.initByName(
+                "locus", data.locus,
+                "data", data.alignment,
+                "tree", acg,
+                "siteModel", data.siteModel);
+
+        argLikelihood.calculateLogP();
+
+        // Move each internal CF node free of attached conversions and
+        // compare with a freshly-computed likelihood.
+        for (Node node : acg.getInternalNodes()) {
+            if (node.isRoot())
+                continue;
+
+            boolean hasConversions = false;
+            for (Conversion conv : acg.getConversions(data.locus)) {
+                for (Node convNode : new Node[] {conv.getNode1(), conv.getNode2()}) {
+                    if (convNode == node || convNode.getParent() == node)
+                        hasConversions = true;
+                }
+            }
+
+            if (hasConversions)
+                continue;
+
+            acg.setEverythingDirty(false);
+            node.setHeight(0.5*(node.getHeight()
+                    + Math.max(node.getLeft().getHeight(), node.getRight().getHeight())));
+
+            argLikelihood.requiresRecalculation();
+            double logP = argLikelihood.calculateLogP();
+            double logPfresh = calculateFreshLogP(data);
+
+            System.out.format("logP=%g\nlogPfresh=%g\n", logP, logPfresh);
+            assertTrue(logP == logPfresh);
+        }
+    }
+
+    /**
+     * Move the height of a random internal CF node free of attached
+     * conversions to a point between its children and its parent.
+     *
+     * @param acg conversion graph
+     * @param locus locus whose conversions are checked
+     */
+    private void moveCFNode(ConversionGraph acg, Locus locus) {
+        List<Node> candidates = new ArrayList<>();
+        for (Node node : acg.getInternalNodes()) {
+            if (node.isRoot())
+                continue;
+
+            boolean hasConversions = false;
+            for (Conversion conv : acg.getConversions(locus)) {
+                for (Node convNode : new Node[] {conv.getNode1(), conv.getNode2()}) {
+                    if (convNode == node || convNode.getParent() == node)
+                        hasConversions = true;
+                }
+            }
+
+            if (!hasConversions)
+                candidates.add(node);
+        }
+
+        if (candidates.isEmpty())
+            return;
+
+        Node node = candidates.get(Randomizer.nextInt(candidates.size()));
+        double lower = Math.max(node.getLeft().getHeight(), node.getRight().getHeight());
+        double upper = node.getParent().getHeight();
+        node.setHeight(lower + Randomizer.nextDouble()*(upper - lower));
+    }
+
+    /**
+     * Move the departure point or a boundary of a random conversion.
+     *
+     * @param acg conversion graph
+     * @param locus locus whose conversions are moved
+     */
+    private void moveConversion(ConversionGraph acg, Locus locus) {
+        List<Conversion> convs = acg.getConversions(locus);
+        if (convs.isEmpty())
+            return;
+
+        Conversion conv = convs.get(Randomizer.nextInt(convs.size()));
+        switch (Randomizer.nextInt(3)) {
+            case 0:
+                if (conv.getNode1().isRoot())
+                    break;
+
+                double lower = conv.getNode1().getHeight();
+                double upper = Math.min(conv.getNode1().getParent().getHeight(),
+                        conv.getHeight2());
+                conv.setHeight1(lower + Randomizer.nextDouble()*(upper - lower));
+                break;
+
+            case 1:
+                if (conv.getStartSite() < conv.getEndSite())
+                    conv.setStartSite(conv.getStartSite()+1);
+                break;
+
+            default:
+                if (conv.getEndSite() < locus.getSiteCount()-1)
+                    conv.setEndSite(conv.getEndSite()+1);
+        }
+    }
+
+    /**
+     * Simulated ACG together with an alignment evolved along it.
+     */
+    private static class SimulatedData {
+        Locus locus;
+        ConversionGraph acg;
+        SiteModel siteModel;
+        SimulatedAlignment alignment;
+    }
+
+    /**
+     * @return site model using the JC substitution model with unit rate
+     */
+    private SiteModel getJCSiteModel() throws Exception {
+        JukesCantor jc = new JukesCantor();
+        jc.initByName();
+        SiteModel siteModel = new SiteModel();
+        siteModel.initByName(
+                "mutationRate", new RealParameter("1"),
+                "substModel", jc);
+
+        return siteModel;
+    }
+
+    /**
+     * Simulate an ACG of 10 taxa with an expected 5 conversions affecting
+     * a 10000 site locus, together with a JC alignment.
+     *
+     * @param seed random number seed
+     * @return simulated data
+     */
+    private SimulatedData simulateData(long seed) throws Exception {
+        Locus locus = new Locus("locus", 10000);
+        return simulateData(seed, locus, 10, 1.0,
+                5.0/locus.getSiteCount(), getJCSiteModel());
+    }
+
+    /**
+     * Simulate an ACG under a constant population size coalescent,
+     * together with an alignment evolved along it.
+     *
+     * @param seed random number seed
+     * @param locus locus
+     * @param taxonCount number of taxa
+     * @param popSize population size
+     * @param rho conversion rate per site
+     * @param siteModel site model used to simulate alignment
+     * @return simulated data
+     */
+    private SimulatedData simulateData(long seed, Locus locus, int taxonCount,
+                                       double popSize, double rho,
+                                       SiteModel siteModel) throws Exception {
+        Randomizer.setSeed(seed);
+
+        ConstantPopulation popFunc = new ConstantPopulation();
+        popFunc.initByName("popSize", new RealParameter(String.valueOf(popSize)));
+
+        SimulatedData data = new SimulatedData();
+        data.locus = locus;
+        data.siteModel = siteModel;
+
+        data.acg = new SimulatedACG();
+        data.acg.initByName(
+                "rho", rho,
+                "delta", 1000.0,
+                "populationModel", popFunc,
+                "locus", locus,
+                "taxonset", getTaxonSet(taxonCount));
+
+        data.alignment = new SimulatedAlignment();
+        data.alignment.initByName(
+                "acg", data.acg,
+                "siteModel", siteModel);
+
+        return data;
+    }
+
+    /**
+     * @param data simulated data
+     * @return log likelihood of data computed by a newly created
+     * ACGLikelihood, and therefore free of any cached state
+     */
+    private double calculateFreshLogP(SimulatedData data) throws Exception {
+        ACGLikelihood argLikelihoodFresh = new ACGLikelihood();
+        argLikelihoodFresh.initByName(
+                "locus", data.locus,
+                "data", data.alignment,
+                "tree", data.acg,
+                "siteModel", data.siteModel);
+
+        return argLikelihoodFresh.calculateLogP();
+    }
 }
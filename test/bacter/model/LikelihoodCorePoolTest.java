@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2015 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bacter.model;
+
+import beast.evolution.likelihood.LikelihoodCore;
+import org.junit.Test;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class LikelihoodCorePoolTest {
+
+    @Test
+    public void testPatternCapacity() throws Exception {
+        for (int n=1; n<10000; n++) {
+            int capacity = LikelihoodCorePool.getPatternCapacity(n);
+            assertTrue(capacity >= n);
+            assertTrue(capacity <= n + n/8);
+        }
+    }
+
+    @Test
+    public void testReuse() throws Exception {
+        LikelihoodCorePool pool = new LikelihoodCorePool(4, 5, 9, false);
+
+        LikelihoodCore core1 = pool.acquire(100, 1);
+        pool.release(core1);
+
+        LikelihoodCore core2 = pool.acquire(101, 1);
+        assertTrue(core2 == core1);
+
+        LikelihoodCore core3 = pool.acquire(101, 4);
+        assertTrue(core3 != core1);
+
+        assertTrue(pool.getAllocationCount() == 2);
+        assertTrue(pool.getReuseCount() == 1);
+        assertTrue(pool.getReleaseCount() == 1);
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2015 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bacter.model;
+
+import beast.evolution.likelihood.BeerLikelihoodCore4;
+import beast.evolution.likelihood.LikelihoodCore;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class NucleotideLikelihoodCoreTest {
+
+    /**
+     * Evaluate a small tree exercising states-states, states-partials
+     * and partials-partials updates.  Leaves 0, 1 and 3 carry states
+     * (including missing data), node 2 joins leaves 0 and 1, node 4
+     * joins leaf 3 and node 2, and node 5 joins nodes 2 and 4.
+     *
+     * @param core likelihood core
+     * @param seed seed for random leaf states and matrices
+     * @return partials of nodes 2, 4 and 5
+     */
+    private double[][] evaluate(LikelihoodCore core, long seed) {
+        int patternCount = 37, categoryCount = 3;
+        Random random = new Random(seed);
+
+        core.initialize(6, patternCount, categoryCount, true, false);
+        for (int nodeNr : new int[] {2, 4, 5})
+            core.createNodePartials(nodeNr);
+
+        for (int nodeNr : new int[] {0, 1, 3}) {
+            int[] states = new int[patternCount];
+            for (int k=0; k<patternCount; k++)
+                states[k] = random.nextInt(6);
+            core.setNodeStates(nodeNr, states);
+        }
+
+        double[] matrix = new double[16];
+        for (int nodeNr=0; nodeNr<5; nodeNr++) {
+            core.setNodeMatrixForUpdate(nodeNr);
+            for (int c=0; c<categoryCount; c++) {
+                for (int i=0; i<16; i++)
+                    matrix[i] = random.nextDouble();
+                core.setNodeMatrix(nodeNr, c, matrix);
+            }
+        }
+
+        int[][] updates = {{0, 1, 2}, {3, 2, 4}, {2, 4, 5}};
+        double[][] result = new double[updates.length][patternCount*categoryCount*4];
+        for (int u=0; u<updates.length; u++) {
+            core.setNodePartialsForUpdate(updates[u][2]);
+            core.calculatePartials(updates[u][0], updates[u][1], updates[u][2]);
+            core.getNodePartials(updates[u][2], result[u]);
+        }
+
+        return result;
+    }
+
+    @Test
+    public void testAgainstBeerCore() throws Exception {
+        for (long seed=1; seed<=5; seed++) {
+            double[][] expected = evaluate(new BeerLikelihoodCore4(), seed);
+            double[][] actual = evaluate(new NucleotideLikelihoodCore(), seed);
+
+            for (int u=0; u<expected.length; u++)
+                for (int i=0; i<expected[u].length; i++)
+                    assertTrue(actual[u][i] == expected[u][i]);
+        }
+    }
+}
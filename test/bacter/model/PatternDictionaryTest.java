@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2015 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bacter.model;
+
+import bacter.ConversionGraph;
+import bacter.Locus;
+import bacter.TestBase;
+import beast.evolution.alignment.Alignment;
+import beast.util.ClusterTree;
+import org.junit.Test;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests region pattern counts obtained from the locus-wide dictionary.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class PatternDictionaryTest extends TestBase {
+
+    @Test
+    public void testRegionPatterns() throws Exception {
+
+        Locus locus = new Locus("locus", getAlignment());
+        Alignment alignment = locus.getAlignment();
+
+        ConversionGraph acg = new ConversionGraph();
+        ClusterTree tree = new ClusterTree();
+        tree.initByName(
+                "clusterType", "upgma",
+                "taxa", alignment);
+
+        acg.assignFrom(tree);
+        acg.initByName("locus", locus);
+
+        PatternDictionary dictionary = new PatternDictionary(acg, alignment, false);
+        int siteCount = alignment.getSiteCount();
+
+        // Include ranges both shorter and longer than the pattern count,
+        // which are handled differently.
+        int[][] ranges = {
+                {0, 10},
+                {5, 100},
+                {0, siteCount},
+                {17, siteCount-23},
+                {siteCount/2, siteCount}};
+
+        for (int[] range : ranges) {
+            int[] expectedCounts = new int[dictionary.getPatternCount()];
+            for (int site=range[0]; site<range[1]; site++)
+                expectedCounts[alignment.getPatternIndex(site)] += 1;
+
+            PatternDictionary.RegionPatterns regionPatterns =
+                    dictionary.getRegionPatterns(range[0], range[1]);
+
+            int[] counts = new int[dictionary.getPatternCount()];
+            for (int i=0; i<regionPatterns.getPatternCount(); i++) {
+                if (i>0)
+                    assertTrue(regionPatterns.patternIDs[i]
+                            > regionPatterns.patternIDs[i-1]);
+
+                assertTrue(regionPatterns.weights[i] > 0);
+                counts[regionPatterns.patternIDs[i]] = regionPatterns.weights[i];
+            }
+
+            for (int p=0; p<counts.length; p++)
+                assertTrue(counts[p] == expectedCounts[p]);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2015 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bacter.model;
+
+import beast.core.parameter.RealParameter;
+import beast.evolution.branchratemodel.StrictClockModel;
+import beast.evolution.sitemodel.SiteModel;
+import beast.evolution.substitutionmodel.Frequencies;
+import beast.evolution.substitutionmodel.GTR;
+import beast.evolution.substitutionmodel.JukesCantor;
+import beast.evolution.substitutionmodel.SubstitutionModel;
+import beast.evolution.tree.Node;
+import org.junit.Test;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class TransitionMatrixCacheTest {
+
+    /**
+     * Check cached matrices against those computed by the substitution
+     * model for a handful of edges, two of which share a length.
+     *
+     * @param substModel substitution model
+     */
+    private void checkMatrices(SubstitutionModel.Base substModel) throws Exception {
+        SiteModel siteModel = new SiteModel();
+        siteModel.initByName(
+                "mutationRate", new RealParameter("1"),
+                "gammaCategoryCount", 4,
+                "shape", new RealParameter("0.5"),
+                "substModel", substModel);
+
+        StrictClockModel clockModel = new StrictClockModel();
+        clockModel.initByName();
+
+        TransitionMatrixCache cache = new TransitionMatrixCache(siteModel, clockModel);
+
+        double parentHeight = 1.5;
+        double[] heights = {0.0, 0.3, 1.2, 0.3};
+        double[] lengths = new double[heights.length];
+        int[] nodeNrs = new int[heights.length];
+        for (int i=0; i<heights.length; i++) {
+            lengths[i] = parentHeight - heights[i];
+            nodeNrs[i] = i;
+        }
+
+        double[][][] result = new double[heights.length][][];
+        cache.getMatrices(lengths, nodeNrs, heights.length, result);
+
+        assertTrue(cache.getMissCount() == 3);
+        assertTrue(cache.getHitCount() == 1);
+        assertTrue(cache.getBatchCount() == 1);
+
+        int nStates = substModel.getStateCount();
+        double[] probs = new double[(nStates+1)*(nStates+1)];
+        for (int i=0; i<heights.length; i++) {
+            Node node = new Node();
+            node.setHeight(heights[i]);
+
+            for (int c=0; c<siteModel.getCategoryCount(); c++) {
+                substModel.getTransitionProbabilities(node,
+                        parentHeight, heights[i],
+                        siteModel.getRateForCategory(c, node), probs);
+
+                for (int k=0; k<nStates*nStates; k++)
+                    assertTrue(result[i][c][k] == probs[k]);
+            }
+        }
+
+        // Matrices survive a store/restore following an invalidation.
+        cache.store();
+        cache.invalidate();
+        cache.getMatrices(lengths, nodeNrs, 1, result);
+        assertTrue(cache.getMissCount() == 4);
+
+        cache.restore();
+        cache.getMatrices(lengths, nodeNrs, heights.length, result);
+        assertTrue(cache.getMissCount() == 4);
+    }
+
+    @Test
+    public void testEigenSystemBatch() throws Exception {
+        Frequencies freqs = new Frequencies();
+        freqs.initByName("frequencies", new RealParameter("0.1 0.2 0.3 0.4"));
+
+        GTR gtr = new GTR();
+        gtr.initByName(
+                "rateAC", new RealParameter("0.5"),
+                "rateAG", new RealParameter("2.0"),
+                "rateAT", new RealParameter("0.7"),
+                "rateCG", new RealParameter("1.1"),
+                "rateGT", new RealParameter("0.9"),
+                "frequencies", freqs);
+
+        checkMatrices(gtr);
+    }
+
+    @Test
+    public void testFallback() throws Exception {
+        JukesCantor jc = new JukesCantor();
+        jc.initByName();
+
+        checkMatrices(jc);
+    }
+}
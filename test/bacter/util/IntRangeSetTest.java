@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2015 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bacter.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class IntRangeSetTest {
+
+    @Test
+    public void testUnion() {
+        IntRangeSet as1 = IntRangeSet.fromString("[3,5] [9,17]");
+        IntRangeSet as2 = IntRangeSet.fromString("[1,2] [5,10]");
+
+        IntRangeSet union = new IntRangeSet();
+        as1.union(as2, union);
+
+        assertTrue(union.equals(IntRangeSet.fromString("[1,2] [3,17]")));
+    }
+
+    @Test
+    public void testPartition() {
+        IntRangeSet as = IntRangeSet.fromString("[1,2] [3,17]");
+
+        IntRangeSet inside = new IntRangeSet();
+        IntRangeSet outside = new IntRangeSet();
+        as.partition(4, 24, inside, outside);
+
+        assertTrue(inside.equals(IntRangeSet.fromString("[4,17]")));
+        assertTrue(outside.equals(IntRangeSet.fromString("[1,2] [3,4]")));
+
+        as.partition(5, 10, inside, outside);
+
+        assertTrue(inside.equals(IntRangeSet.fromString("[5,10]")));
+        assertTrue(outside.equals(IntRangeSet.fromString("[1,2] [3,5] [10,17]")));
+    }
+
+    @Test
+    public void testDisjoint() {
+        IntRangeSet as1 = IntRangeSet.fromString("[10,20] [30,40]");
+        IntRangeSet as2 = IntRangeSet.fromString("[1,10] [20,30]");
+        IntRangeSet as3 = IntRangeSet.fromString("[1,10] [35,36]");
+
+        assertTrue(as1.isDisjointFrom(as2));
+        assertTrue(!as1.isDisjointFrom(as3));
+        assertTrue(!as3.isDisjointFrom(as1));
+    }
+
+    @Test
+    public void testIntersection() {
+        IntRangeSet as1 = IntRangeSet.fromString("[10,20] [30,40]");
+        IntRangeSet as2 = IntRangeSet.fromString("[15,22] [27,38]");
+
+        IntRangeSet intersection = new IntRangeSet();
+        as1.intersection(as2, intersection);
+
+        assertTrue(intersection.equals(IntRangeSet.fromString("[15,20] [30,38]")));
+        assertTrue(intersection.getTotalSites() == 13);
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2015 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bacter.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class JournaledArrayMapTest {
+
+    private static class Key {
+        final int index;
+
+        Key(int index) {
+            this.index = index;
+        }
+    }
+
+    @Test
+    public void testStoreRestore() throws Exception {
+        JournaledArrayMap<Key, Integer> map = new JournaledArrayMap<>(key -> key.index);
+        Key a = new Key(0), b = new Key(1), c = new Key(40);
+        map.put(a, 1);
+        map.put(b, 2);
+        map.put(c, 3);
+        map.store();
+
+        // Key sharing an index with b displaces it
+        Key d = new Key(1);
+        map.put(a, 10);
+        map.put(d, 4);
+        assertTrue(!map.containsKey(b));
+        assertTrue(map.get(new Key(0)) == null);
+        map.put(a, 100);
+
+        List<Key> keep = new ArrayList<>();
+        keep.add(a);
+        keep.add(d);
+        map.retainAll(keep);
+
+        assertTrue(map.size() == 2);
+        assertTrue(map.get(a) == 100);
+
+        List<Key> storedKeys = map.getStoredKeyList();
+        assertTrue(storedKeys.size() == 3);
+        assertTrue(storedKeys.contains(a)
+                && storedKeys.contains(b)
+                && storedKeys.contains(c));
+
+        map.restore();
+
+        assertTrue(map.size() == 3);
+        assertTrue(map.get(a) == 1);
+        assertTrue(map.get(b) == 2);
+        assertTrue(map.get(c) == 3);
+        assertTrue(!map.containsKey(d));
+
+        map.clear();
+        assertTrue(map.isEmpty());
+
+        map.restore();
+        assertTrue(map.size() == 3);
+    }
+}